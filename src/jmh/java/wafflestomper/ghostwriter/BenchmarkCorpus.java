@@ -0,0 +1,189 @@
+package wafflestomper.ghostwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates the text used by the benchmarks. Everything is built from a fixed seed, so every run (and every fork)
+ * measures exactly the same input.
+ */
+public class BenchmarkCorpus {
+	private static final String[] WORDS = {
+			"the", "of", "and", "a", "to", "in", "is", "you", "that", "it", "he", "was", "for", "on", "are", "as",
+			"with", "his", "they", "I", "at", "be", "this", "have", "from", "or", "one", "had", "by", "word", "but",
+			"not", "what", "all", "were", "we", "when", "your", "can", "said", "there", "use", "an", "each", "which",
+			"creeper", "redstone", "obsidian", "enchantment", "nether", "villager", "lectern", "ghostwriter",
+			"supercalifragilisticexpialidocious", "antidisestablishmentarianism", "na\u00efve", "caf\u00e9", "\u00c4rger", "\u00d8resund"
+	};
+	private static final String FORMAT_CODES = "0123456789abcdeflmnor";
+	
+	private final Random random;
+	
+	
+	public BenchmarkCorpus(){
+		this.random = new Random(0x6768_6f73_74L);
+	}
+	
+	
+	private void appendWords(StringBuilder out, int count){
+		for (int i=0; i<count; i++){
+			if (i > 0){
+				out.append(' ');
+			}
+			out.append(WORDS[this.random.nextInt(WORDS.length)]);
+			if (this.random.nextInt(12) == 0){
+				out.append(this.random.nextBoolean() ? ',' : '.');
+			}
+		}
+	}
+	
+	
+	/**
+	 * Plain text with paragraphs separated by newlines, roughly chars long
+	 */
+	public String plainText(int chars){
+		StringBuilder out = new StringBuilder(chars + 256);
+		while (out.length() < chars){
+			this.appendWords(out, 20 + this.random.nextInt(80));
+			out.append('\n');
+		}
+		return out.toString();
+	}
+	
+	
+	/**
+	 * A few paragraphs, i.e. a book that fits on a handful of pages
+	 */
+	public String shortBook(){
+		return this.plainText(2000);
+	}
+	
+	
+	/**
+	 * Enough text to fill the 100 pages that a vanilla book can hold
+	 */
+	public String fullBook(){
+		return this.plainText(100 * Paginator.MAX_CHARS_PER_PAGE);
+	}
+	
+	
+	/**
+	 * Plain text with a formatting code every few words, including bold runs (which change the glyph widths)
+	 */
+	public String formattedText(int chars){
+		StringBuilder out = new StringBuilder(chars + 256);
+		while (out.length() < chars){
+			out.append('\u00a7').append(FORMAT_CODES.charAt(this.random.nextInt(FORMAT_CODES.length())));
+			this.appendWords(out, 1 + this.random.nextInt(6));
+			out.append(this.random.nextInt(10) == 0 ? '\n' : ' ');
+		}
+		return out.toString();
+	}
+	
+	
+	/**
+	 * The same text split up with page break markers every so often
+	 */
+	public String textWithPageBreaks(int chars, String pageBreak){
+		StringBuilder out = new StringBuilder(chars + 256);
+		while (out.length() < chars){
+			out.append(this.plainText(200 + this.random.nextInt(1500)));
+			out.append(pageBreak);
+		}
+		return out.toString();
+	}
+	
+	
+	/**
+	 * A GHB file with lots of comments (of both kinds) mixed in with the ## and >>>> markers
+	 */
+	public String commentHeavyGhb(int chars){
+		StringBuilder out = new StringBuilder(chars + 256);
+		out.append("//Generated for benchmarking\n");
+		out.append("title:Benchmark /* inline */ Book\n");
+		out.append("author:Ghostwriter // trailing comment\n");
+		while (out.length() < chars){
+			switch (this.random.nextInt(6)){
+				case 0:
+					out.append("// ");
+					this.appendWords(out, 8);
+					out.append('\n');
+					break;
+				case 1:
+					out.append("/* ");
+					this.appendWords(out, 5);
+					out.append("\n");
+					this.appendWords(out, 5);
+					out.append(" */");
+					break;
+				case 2:
+					out.append("\n>>>>\n");
+					break;
+				default:
+					this.appendWords(out, 10 + this.random.nextInt(20));
+					out.append(this.random.nextBoolean() ? " ##\n" : "\n");
+			}
+		}
+		return out.toString();
+	}
+	
+	
+	/**
+	 * A Bookworm book (see FileHandler.loadBookwormBook()) with roughly chars of text on its one long line
+	 */
+	public List<String> bookwormBook(int chars){
+		StringBuilder text = new StringBuilder(chars + 256);
+		while (text.length() < chars){
+			this.appendWords(text, 30 + this.random.nextInt(100));
+			// Single :: is a new paragraph, two or more is a new page
+			text.append(this.random.nextInt(4) == 0 ? " :: ::" : " ::");
+		}
+		List<String> lines = new ArrayList<>();
+		lines.add("46");
+		lines.add("Benchmark Book With A Rather Long Title");
+		lines.add("Ghostwriter");
+		lines.add("|!|hiddenkey0|hiddendata0");
+		lines.add(text.toString());
+		lines.add("");
+		return lines;
+	}
+	
+	
+	/**
+	 * Pages the way they're stored in book NBT (as JSON text components) for deJSONify()
+	 */
+	public List<String> jsonPages(int count){
+		List<String> pages = new ArrayList<>();
+		for (int i=0; i<count; i++){
+			StringBuilder text = new StringBuilder();
+			this.appendWords(text, 20 + this.random.nextInt(30));
+			String escaped = text.toString().replace("\\", "\\\\").replace("\"", "\\\"");
+			if (i % 2 == 0){
+				pages.add("{\"text\":\"" + escaped + "\"}");
+			}
+			else{
+				pages.add("\"" + escaped + "\"");
+			}
+		}
+		return pages;
+	}
+	
+	
+	public static File writeFile(File dir, String name, List<String> lines) throws IOException {
+		File f = new File(dir, name);
+		Files.write(f.toPath(), lines, StandardCharsets.UTF_8);
+		return f;
+	}
+	
+	
+	public static File writeFile(File dir, String name, String text) throws IOException {
+		File f = new File(dir, name);
+		Files.write(f.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		return f;
+	}
+}
@@ -0,0 +1,110 @@
+package wafflestomper.ghostwriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Layout benchmarks for BookUtilities. These use DefaultFontMetrics, so they run without a game.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BookUtilitiesBenchmark {
+	private static final String PAGE_BREAK = ">>>><<<<>>>><<<<";
+	
+	@Param({"short", "full", "formatted", "large"})
+	public String corpus;
+	
+	private final FontMetrics metrics = DefaultFontMetrics.INSTANCE;
+	private String text;
+	private String textWithPageBreaks;
+	private List<String> jsonPages;
+	
+	
+	@Setup
+	public void setup(){
+		BenchmarkCorpus gen = new BenchmarkCorpus();
+		switch (this.corpus){
+			case "short":
+				this.text = gen.shortBook();
+				break;
+			case "full":
+				this.text = gen.fullBook();
+				break;
+			case "formatted":
+				this.text = gen.formattedText(100 * Paginator.MAX_CHARS_PER_PAGE);
+				break;
+			case "large":
+				this.text = gen.plainText(2 * 1024 * 1024);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown corpus: " + this.corpus);
+		}
+		this.textWithPageBreaks = gen.textWithPageBreaks(this.text.length(), PAGE_BREAK);
+		this.jsonPages = gen.jsonPages(100);
+	}
+	
+	
+	@Benchmark
+	public List<String> stringToPages(){
+		return BookUtilities.stringToPages(this.text, this.metrics);
+	}
+	
+	
+	@Benchmark
+	public List<String> stringWithPageBreaksToPages(){
+		return BookUtilities.stringWithPageBreaksToPages(this.textWithPageBreaks, PAGE_BREAK, this.metrics);
+	}
+	
+	
+	@Benchmark
+	public List<String> splitStringIntoLines(){
+		return BookUtilities.splitStringIntoLines(this.text, this.metrics);
+	}
+	
+	
+	@Benchmark
+	public void deJSONify(Blackhole bh){
+		for (String page : this.jsonPages){
+			bh.consume(BookUtilities.deJSONify(page));
+		}
+	}
+	
+	
+	/**
+	 * The hand-rolled decoder on its own, without the deJSONify() cache
+	 */
+	@Benchmark
+	public void deJSONifyFastPath(Blackhole bh){
+		for (String page : this.jsonPages){
+			bh.consume(JsonPageDecoder.decode(page));
+		}
+	}
+	
+	
+	/**
+	 * The Gson conversion on its own, for comparison with deJSONifyFastPath
+	 */
+	@Benchmark
+	public void deJSONifyWithGson(Blackhole bh){
+		for (String page : this.jsonPages){
+			bh.consume(BookUtilities.deJSONifyWithGson(page));
+		}
+	}
+}
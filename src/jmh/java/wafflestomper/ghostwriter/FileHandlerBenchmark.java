@@ -0,0 +1,108 @@
+package wafflestomper.ghostwriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading benchmarks for FileHandler, including reading the files from disk. The files are generated into a
+ * temporary directory that's deleted afterwards. These use DefaultFontMetrics, so they run without a game.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileHandlerBenchmark {
+	/** Size of the generated files in KiB */
+	@Param({"64", "4096"})
+	public int sizeKiB;
+	
+	private final FontMetrics metrics = DefaultFontMetrics.INSTANCE;
+	private File root;
+	private FileHandler fileHandler;
+	private File bookwormFile;
+	private File ghbFile;
+	private File plainTextFile;
+	private File gwbFile;
+	private String ghbText;
+	
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		this.root = Files.createTempDirectory("ghostwriter-bench").toFile();
+		this.fileHandler = new FileHandler(new Clipboard(), this.root);
+		
+		BenchmarkCorpus gen = new BenchmarkCorpus();
+		int chars = this.sizeKiB * 1024;
+		this.bookwormFile = BenchmarkCorpus.writeFile(this.root, "bookworm.txt", gen.bookwormBook(chars));
+		this.ghbText = gen.commentHeavyGhb(chars);
+		this.ghbFile = BenchmarkCorpus.writeFile(this.root, "comments.ghb", this.ghbText);
+		this.plainTextFile = BenchmarkCorpus.writeFile(this.root, "plain.txt", gen.textWithPageBreaks(chars, ">>>><<<<>>>><<<<"));
+		this.gwbFile = new File(this.root, "book.gwb");
+		try (OutputStream out = new FileOutputStream(this.gwbFile)){
+			GwbBook.write(out, "Title", "Author", BookUtilities.stringToPages(gen.plainText(chars), this.metrics));
+		}
+	}
+	
+	
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(this.root);
+	}
+	
+	
+	@Benchmark
+	public boolean loadBookwormBook(){
+		return this.fileHandler.loadBookwormBook(this.bookwormFile, this.metrics);
+	}
+	
+	
+	@Benchmark
+	public boolean loadPlainText(){
+		return this.fileHandler.loadPlainText(this.plainTextFile, this.metrics);
+	}
+	
+	
+	@Benchmark
+	public boolean loadBookFromGHBFile(){
+		return this.fileHandler.loadBookFromGHBFile(this.ghbFile, this.metrics);
+	}
+	
+	
+	/**
+	 * The same kind of text as loadPlainText, but already paginated and saved in the binary format
+	 */
+	@Benchmark
+	public boolean loadBookFromGWBFile(){
+		return this.fileHandler.loadBookFromGWBFile(this.gwbFile);
+	}
+	
+	
+	/**
+	 * Just the GHB cleanup (comments, headers, ## and >>>>) without reading the file or laying out pages
+	 */
+	@Benchmark
+	public String tokenizeGhb(){
+		return new GhbTokenizer(this.ghbText).getBody();
+	}
+}
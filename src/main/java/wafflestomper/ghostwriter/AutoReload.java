@@ -0,0 +1,210 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reloads a book whenever its file changes, so it can be edited in another program and shown in the game as it's
+ * saved.
+ *
+ * Changes are picked up by a FileWatcher on the file's directory rather than by polling. Editors tend to save in
+ * bursts (or write a temp file and move it into place), so a reload only starts once the file has been left alone
+ * for DEBOUNCE_MILLIS, and it's skipped if the contents are the same as last time. Reading and paginating happen on
+ * a background thread, and the screen picks up the finished book with poll() on the client thread.
+ */
+public class AutoReload {
+	private static final Logger LOG = LogManager.getLogger();
+	static final long DEBOUNCE_MILLIS = 200;
+	/** Shared by every AutoReload, so reloads never run at the same time as each other */
+	private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter autoreload");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final File file;
+	private final Path path;
+	/** Only used on the reload thread. It's kept between reloads so it can reuse the pages from the last one. */
+	private final FileHandler fileHandler;
+	private final Clipboard clipboard;
+	private volatile FontMetrics metrics;
+	/** Only used on the reload thread */
+	private ContentHash lastHash;
+	/**
+	 * The book as it was when AutoReload was turned on, until the first reload. The file could have been saved again
+	 * since that was loaded, so the first reload is compared to the book itself rather than to the file.
+	 * Only used on the reload thread.
+	 */
+	private Clipboard initialBook;
+	private FileWatcher watcher;
+	private ScheduledFuture<?> pendingReload;
+	private final AtomicReference<Update> update = new AtomicReference<>();
+
+
+	/**
+	 * The result of a reload, handed back to the client thread
+	 */
+	public static class Update {
+		/** The new version of the book, or null if it couldn't be loaded */
+		public final Clipboard book;
+		public final String error;
+
+
+		private Update(Clipboard _book, String _error){
+			this.book = _book;
+			this.error = _error;
+		}
+	}
+
+
+	/**
+	 * Has to be called on the client thread. Nothing happens until start() is called.
+	 * @param initialBookState The book as it was loaded from the file, which is what the first change is compared to
+	 */
+	public AutoReload(File _file, Clipboard initialBookState){
+		this.file = _file;
+		this.path = _file.toPath().toAbsolutePath();
+		this.clipboard = new Clipboard(initialBookState);
+		this.initialBook = new Clipboard(initialBookState);
+		this.fileHandler = new FileHandler(this.clipboard);
+		this.metrics = GlyphWidthTable.get().snapshot();
+	}
+
+
+	public File getFile(){
+		return this.file;
+	}
+
+
+	/**
+	 * Starts watching the file. Anything that changed while it was stopped is picked up straight away.
+	 * Calling this when it's already running does nothing.
+	 */
+	public synchronized void start(){
+		if (this.watcher != null){
+			return;
+		}
+		try {
+			this.watcher = new FileWatcher("Ghostwriter autoreload watcher", changed -> {
+				// Changes to the directory itself mean events were dropped, so the file might have changed too
+				if (changed.equals(this.path) || changed.equals(this.path.getParent())){
+					this.scheduleReload();
+				}
+			});
+			this.watcher.watch(this.path.getParent());
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Couldn't watch " + this.path + " for changes", e);
+			this.post(new Update(null, "Can't watch the file for changes!"));
+			return;
+		}
+		this.scheduleReload();
+	}
+
+
+	/**
+	 * Stops watching the file (e.g. while the screen isn't open). Reloads that are already running still finish.
+	 */
+	public synchronized void stop(){
+		if (this.watcher != null){
+			this.watcher.close();
+			this.watcher = null;
+		}
+		if (this.pendingReload != null){
+			this.pendingReload.cancel(false);
+			this.pendingReload = null;
+		}
+	}
+
+
+	/**
+	 * Updates the font that's used to lay out the pages. Call this on the client thread.
+	 */
+	public void setMetrics(FontMetrics _metrics){
+		this.metrics = _metrics;
+	}
+
+
+	/**
+	 * @return The result of the latest reload that hasn't been picked up yet, or null if nothing's changed.
+	 *         Only the most recent result is kept.
+	 */
+	public Update poll(){
+		return this.update.getAndSet(null);
+	}
+
+
+	/**
+	 * Called for every change. Each one pushes the reload back, so it only happens once the file has settled down.
+	 */
+	private synchronized void scheduleReload(){
+		if (this.watcher == null){
+			return;
+		}
+		if (this.pendingReload != null){
+			this.pendingReload.cancel(false);
+		}
+		this.pendingReload = EXECUTOR.schedule(() -> {
+			try {
+				this.reload();
+			} catch (RuntimeException e) {
+				// The executor would swallow this
+				LOG.error("Error reloading " + this.path, e);
+				this.post(new Update(null, "Book failed to automatically reload!"));
+			}
+		}, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	private void reload(){
+		if (!this.file.exists()){
+			this.post(new Update(null, "Source file disappeared!"));
+			return;
+		}
+		// Read it once, and hash and load the same bytes
+		TextFileDecoder contents;
+		try {
+			contents = TextFileDecoder.readUnshared(this.file);
+		} catch (IOException e) {
+			LOG.warn("Couldn't read " + this.path + ": " + e);
+			this.post(new Update(null, "Book failed to automatically reload!"));
+			return;
+		}
+		ContentHash hash = contents.hash();
+		if (hash.equals(this.lastHash)){
+			// Saved without changing anything
+			return;
+		}
+		if (this.fileHandler.loadBook(this.file, contents, this.metrics)){
+			this.lastHash = hash;
+			Clipboard initial = this.initialBook;
+			this.initialBook = null;
+			if (initial != null && isSameBook(initial, this.clipboard)){
+				// Still the version that's already loaded
+				return;
+			}
+			this.post(new Update(new Clipboard(this.clipboard), null));
+		}
+		else{
+			this.post(new Update(null, "Book failed to automatically reload!"));
+		}
+	}
+
+
+	private static boolean isSameBook(Clipboard a, Clipboard b){
+		return a.title.equals(b.title) && a.author.equals(b.author) && a.pages.equals(b.pages);
+	}
+
+
+	private void post(Update _update){
+		this.update.set(_update);
+	}
+}
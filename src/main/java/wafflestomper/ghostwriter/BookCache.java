@@ -0,0 +1,233 @@
+package wafflestomper.ghostwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Books that have already been loaded, so loading the same file again (selecting it in the browser and then loading
+ * it, or adding the signature pages every time the button's pressed) doesn't mean reading, decoding and laying it out
+ * all over again. Only FileHandler.loadBook() uses it. AutoReload loads from the bytes it's already read and hashed,
+ * and the library and search indexers use FileHandler.loadBookUncached(), since they go through every book once.
+ *
+ * Books are keyed by the file's canonical path, size and modification time, plus the font metrics they were laid out
+ * with if the format's paginated when it's loaded. The most recently used books are kept up to a memory budget. Ones
+ * that don't fit any more are only held by soft references, so they can still be used until the garbage collector
+ * wants the memory back.
+ *
+ * A file that was modified within the last couple of seconds isn't cached, since it could be changed again without
+ * its size or modification time changing (a lot of file systems only keep times to the second, or worse). That's
+ * exactly what happens when a book's being written with AutoReload on.
+ *
+ * All methods are safe from any thread.
+ */
+public class BookCache {
+	private static final long BUDGET_BYTES = 32L * 1024 * 1024;
+	private static final long RACY_MS = 2000;
+	private static final BookCache INSTANCE = new BookCache(BUDGET_BYTES);
+
+	private final long budget;
+	/** In least to most recently used order */
+	private final LinkedHashMap<Key, Book> recent = new LinkedHashMap<>(16, 0.75f, true);
+	private long recentBytes = 0;
+	/** Books that were pushed out of the budget */
+	private final Map<Key, SoftBook> evicted = new HashMap<>();
+	private final ReferenceQueue<Book> cleared = new ReferenceQueue<>();
+
+
+	/**
+	 * Which version of which file a book was loaded from, and how it was laid out
+	 */
+	public static final class Key {
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		/** Null if the pages don't depend on the font. Compared by identity, like PaginatedText does. */
+		private final FontMetrics metrics;
+
+
+		private Key(String _path, long _size, long _lastModified, FontMetrics _metrics){
+			this.path = _path;
+			this.size = _size;
+			this.lastModified = _lastModified;
+			this.metrics = _metrics;
+		}
+
+
+		@Override
+		public boolean equals(Object other){
+			if (!(other instanceof Key)){
+				return false;
+			}
+			Key key = (Key)other;
+			return this.path.equals(key.path) && this.size == key.size && this.lastModified == key.lastModified
+					&& this.metrics == key.metrics;
+		}
+
+
+		@Override
+		public int hashCode(){
+			return 31 * this.path.hashCode() + Long.hashCode(this.lastModified);
+		}
+	}
+
+
+	private static final class Book {
+		private final String title;
+		private final String author;
+		private final List<String> pages;
+		/** Roughly how much memory the book takes up */
+		private final long bytes;
+
+
+		private Book(Clipboard book){
+			this.title = book.title;
+			this.author = book.author;
+			this.pages = Collections.unmodifiableList(new ArrayList<>(book.pages));
+			long total = 64 + 2L * (this.title.length() + this.author.length());
+			for (String page : this.pages){
+				total += 48 + 2L * page.length();
+			}
+			this.bytes = total;
+		}
+	}
+
+
+	private static final class SoftBook extends SoftReference<Book> {
+		private final Key key;
+
+
+		private SoftBook(Key _key, Book book, ReferenceQueue<Book> queue){
+			super(book, queue);
+			this.key = _key;
+		}
+	}
+
+
+	private BookCache(long _budget){
+		this.budget = _budget;
+	}
+
+
+	public static BookCache get(){
+		return INSTANCE;
+	}
+
+
+	/**
+	 * @param metrics The metrics the book's laid out with, or null if the format isn't paginated when it's loaded.
+	 *                It should be a snapshot, so loads on different threads with the same font get the same key.
+	 * @return The key for the file as it is now, or null if it doesn't exist
+	 */
+	public static Key keyFor(File file, FontMetrics metrics){
+		if (!file.isFile()){
+			return null;
+		}
+		long modified = file.lastModified();
+		String path;
+		try {
+			path = file.getCanonicalPath();
+		} catch (IOException e) {
+			path = file.getAbsolutePath();
+		}
+		return new Key(path, file.length(), modified, metrics);
+	}
+
+
+	/**
+	 * Copies a cached book into a clipboard, the same way loading it would have
+	 * @return True if the book was cached
+	 */
+	public synchronized boolean load(Key key, Clipboard clipboard){
+		this.expungeCleared();
+		Book book = this.recent.get(key);
+		if (book == null){
+			SoftBook soft = this.evicted.remove(key);
+			book = soft == null ? null : soft.get();
+			if (book == null){
+				return false;
+			}
+			// It's been used again, so it goes back in with the recent ones
+			this.addRecent(key, book);
+		}
+		Clipboard loaded = new Clipboard();
+		loaded.title = book.title;
+		loaded.author = book.author;
+		loaded.pages.addAll(book.pages);
+		loaded.bookInClipboard = true;
+		clipboard.clone(loaded);
+		return true;
+	}
+
+
+	/**
+	 * Caches a book that's just been loaded, unless the file's changed since the key was made or might change again
+	 * without it showing (see the class comment)
+	 */
+	public void put(Key key, File file, Clipboard book){
+		if (System.currentTimeMillis() - key.lastModified < RACY_MS || !key.equals(keyFor(file, key.metrics))){
+			return;
+		}
+		Book cached = new Book(book);
+		synchronized (this){
+			this.expungeCleared();
+			this.remove(key.path);
+			this.addRecent(key, cached);
+		}
+	}
+
+
+	/**
+	 * Drops every version of a file
+	 */
+	private void remove(String path){
+		Iterator<Map.Entry<Key, Book>> recentIt = this.recent.entrySet().iterator();
+		while (recentIt.hasNext()){
+			Map.Entry<Key, Book> entry = recentIt.next();
+			if (entry.getKey().path.equals(path)){
+				this.recentBytes -= entry.getValue().bytes;
+				recentIt.remove();
+			}
+		}
+		this.evicted.keySet().removeIf(key -> key.path.equals(path));
+	}
+
+
+	private void addRecent(Key key, Book book){
+		if (book.bytes > this.budget / 4){
+			// Too big to keep hold of, but it can stay until the memory's needed
+			this.evicted.put(key, new SoftBook(key, book, this.cleared));
+			return;
+		}
+		this.recent.put(key, book);
+		this.recentBytes += book.bytes;
+		Iterator<Map.Entry<Key, Book>> it = this.recent.entrySet().iterator();
+		while (this.recentBytes > this.budget && it.hasNext()){
+			Map.Entry<Key, Book> eldest = it.next();
+			this.recentBytes -= eldest.getValue().bytes;
+			this.evicted.put(eldest.getKey(), new SoftBook(eldest.getKey(), eldest.getValue(), this.cleared));
+			it.remove();
+		}
+	}
+
+
+	/**
+	 * Forgets books whose soft references have been cleared
+	 */
+	private void expungeCleared(){
+		SoftBook soft;
+		while ((soft = (SoftBook)this.cleared.poll()) != null){
+			if (this.evicted.get(soft.key) == soft){
+				this.evicted.remove(soft.key);
+			}
+		}
+	}
+}
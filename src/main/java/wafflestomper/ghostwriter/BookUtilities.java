@@ -1,18 +1,39 @@
 package wafflestomper.ghostwriter;
 
 import com.google.gson.JsonParseException;
-import net.minecraft.client.Minecraft;
-import net.minecraft.client.gui.FontRenderer;
 import net.minecraft.util.text.ITextComponent;
 
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
+/**
+ * Text layout for books. Anything that measures text has an overload that takes a FontMetrics, which is what
+ * should be used off the client thread. The overloads without one measure with the live font (GlyphWidthTable.get()).
+ */
 public class BookUtilities {
 	public static final int BOOK_TEXT_WIDTH = 116;
 	public static final char SPLIT_CHAR = '\u1337';
-	private static final Minecraft mc = Minecraft.getInstance();
+	/** Below this many characters, splitting the work between threads costs more than it saves */
+	static final int PARALLEL_THRESHOLD = 64 * 1024;
+	/** Enough for a few full books, which is a few hundred KB at most */
+	private static final int DEJSONIFY_CACHE_SIZE = 512;
+	/** Pages are limited to 256 characters, so anything much longer than this isn't worth keeping */
+	private static final int DEJSONIFY_CACHE_MAX_LENGTH = 4096;
+	
+	/** Least recently used deJSONify() results, keyed by the raw page string */
+	private static final Map<String, String> deJSONifyCache = new LinkedHashMap<String, String>(DEJSONIFY_CACHE_SIZE, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest){
+			return this.size() > DEJSONIFY_CACHE_SIZE;
+		}
+	};
+	private static long deJSONifyCacheHits = 0;
+	private static long deJSONifyCacheMisses = 0;
 	
 	
 	/**
@@ -20,44 +41,15 @@ public class BookUtilities {
 	 * as part of the length of the output string.
 	 * KeepRightSide determines whether the right (end of the string) or left (start of the string) should be kept
 	 * (i.e. that the opposite end should be removed).
+	 * If the same string is going to be truncated over and over (e.g. every frame), keep a TextMeasure for it instead.
 	 */
 	public static String truncateStringPixels(String strIn, String substituteChars, int maxWidth, boolean keepRightSide){
-		FontRenderer f = mc.fontRenderer;
-		if (f.getStringWidth(strIn) <= maxWidth){
-			return strIn;
-		}
-		String strOut = "";
-		int subCharsWidth = f.getStringWidth(substituteChars);
-		
-		int startPos = 0;
-		int endPos = strIn.length()-1;
-		int direction = 1;
-		if (keepRightSide){
-			startPos = strIn.length()-1;
-			endPos = -1;
-			direction = -1;
-		}
-		for (int i=startPos; i!=endPos; i+=direction){
-			char c = strIn.charAt(i);
-			if (f.getStringWidth(c + strOut) + subCharsWidth <= maxWidth){
-				if (keepRightSide){
-					strOut = c + strOut;
-				}
-				else{
-					strOut = strOut + c;
-				}
-			}
-			else{
-				break;
-			}
-		}
-		if (keepRightSide){
-			return substituteChars + strOut;
-		}
-		else{
-			return strOut + substituteChars;
-		}
-		
+		return truncateStringPixels(strIn, substituteChars, maxWidth, keepRightSide, GlyphWidthTable.get());
+	}
+	
+	
+	public static String truncateStringPixels(String strIn, String substituteChars, int maxWidth, boolean keepRightSide, FontMetrics metrics){
+		return new TextMeasure(strIn, metrics).truncate(substituteChars, maxWidth, keepRightSide);
 	}
 	
 	
@@ -81,144 +73,127 @@ public class BookUtilities {
 //////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 	
 	
+	// TODO: It looks like a lot has changed internally in books. Check that this still functions as intended
+	//       It might be worth looking into replacing this with vanilla functions?
 	/**
-	 * Checks if the char code is O-K...lLrRk-o... used to set special formatting.
-	 */
-	private static boolean isFormatSpecial(char par0)
-	{
-		return par0 >= 107 && par0 <= 111 || par0 >= 75 && par0 <= 79 || par0 == 114 || par0 == 82;
-	}
-
-	
-	/**
-	 * Digests a string for nonprinting formatting characters then returns a string containing only that formatting.
+	 * Determines how many characters from the string (starting at startPos) will fit into the specified width.
+	 * Every line is measured as if it starts out not bold, however the text before it was formatted.
 	 */
-	private static String getFormatFromString(String par0Str)
+	private static int sizeStringToWidth(FormatRuns runs, int startPos, int maxWidth, FontMetrics widths)
 	{
-		String s1 = "";
-		int i = -1;
-		int j = par0Str.length();
-
-		while ((i = par0Str.indexOf(167, i + 1)) != -1)
+		String str = runs.getText();
+		int width = 0;
+		int lastSpace = -1;
+		boolean bold = false;
+		int previousEnd = startPos;
+		
+		// Formatting codes between the runs have no width, so they're skipped over entirely
+		for (int run = runs.findRun(startPos); run < runs.getRunCount(); run++)
 		{
-			if (i < j - 1)
+			int runStart = Math.max(startPos, runs.getRunStart(run));
+			bold = applyBoldCodes(bold, str, previousEnd, runStart);
+			int runEnd = runs.getRunEnd(run);
+			previousEnd = runEnd;
+			for (int i = runStart; i < runEnd; i++)
 			{
-				char c0 = par0Str.charAt(i + 1);
-
-				if (isFormatColor(c0))
+				char c0 = str.charAt(i);
+				if (c0 == '\n')
+				{
+					return i - startPos;
+				}
+				if (c0 == ' ')
+				{
+					lastSpace = i;
+				}
+				// Surrogate pairs are measured as one glyph so we never break between the two halves
+				boolean isPair = Character.isHighSurrogate(c0) && i < runEnd - 1 && Character.isLowSurrogate(str.charAt(i + 1));
+				width += widths.getWidth(isPair ? Character.toCodePoint(c0, str.charAt(i + 1)) : c0, bold);
+				if (width > maxWidth)
 				{
-					s1 = "\u00a7" + c0;
+					return (lastSpace != -1 && lastSpace < i ? lastSpace : i) - startPos;
 				}
-				else if (isFormatSpecial(c0))
+				if (isPair)
 				{
-					s1 = s1 + "\u00a7" + c0;
+					++i;
 				}
 			}
 		}
-
-		return s1;
+		return str.length() - startPos;
 	}
 	
 	
 	/**
-	 * Checks if the char code is a hexadecimal character, used to set colour.
+	 * Works out whether text is bold after the formatting codes between two runs, which are all section signs
+	 * followed by their codes
 	 */
-	private static boolean isFormatColor(char par0)
+	private static boolean applyBoldCodes(boolean bold, String str, int start, int end)
 	{
-		return par0 >= 48 && par0 <= 57 || par0 >= 97 && par0 <= 102 || par0 >= 65 && par0 <= 70;
-	}
-
-
-	// TODO: It looks like a lot has changed internally in books. Check that this still functions as intended
-	//       It might be worth looking into replacing this with vanilla functions?
-	/**
-	 * Determines how many characters from the string will fit into the specified width.
-	 */
-	private static int sizeStringToWidth(String par1Str, int par2)
-	{
-		int j = par1Str.length();
-		int k = 0;
-		int l = 0;
-		int i1 = -1;
-
-		for (boolean flag = false; l < j; ++l)
+		for (int i = start + 1; i < end; i += 2)
 		{
-			char c0 = par1Str.charAt(l);
-
-			switch (c0)
+			char code = str.charAt(i);
+			if (code == 'l' || code == 'L')
 			{
-				case 10:
-					--l;
-					break;
-				case 167:
-					if (l < j - 1)
-					{
-						++l;
-						char c1 = par1Str.charAt(l);
-
-						if (c1 != 108 && c1 != 76)
-						{
-							if (c1 == 114 || c1 == 82 || isFormatColor(c1))
-							{
-								flag = false;
-							}
-						}
-						else
-						{
-							flag = true;
-						}
-					}
-
-					break;
-				case 32:
-					i1 = l;
-				default:
-					// TODO: Does the function still work now that we've replaced getCharWidth with getStringWidth?
-					//       Note that I'm also converting the character back to a string
-					k += mc.fontRenderer.getStringWidth(String.valueOf(c0));
-
-					if (flag)
-					{
-						++k;
-					}
+				bold = true;
 			}
-
-			if (c0 == 10)
+			else if (FormatRuns.isResetCode(code))
 			{
-				++l;
-				i1 = l;
-				break;
+				bold = false;
 			}
-
-			if (k > par2)
-			{
+		}
+		return bold;
+	}
+	
+	
+	/**
+	 * Works out where a string needs to be broken so each line fits within maxWidth.
+	 * Each entry is the offset just past the end of a line (any space or newline that the line was broken on
+	 * stays on the end of that line), so the lines are contiguous and the last one runs to the end of the string.
+	 * This is a single forward pass, so it's fine to throw a multi-megabyte paragraph at it.
+	 */
+	static int[] findLineBreaks(String strIn, int maxWidth, FontMetrics metrics){
+		FormatRuns runs = new FormatRuns(strIn);
+		int[] breaks = new int[16];
+		int breakCount = 0;
+		int lineStart = 0;
+		int len = strIn.length();
+		while (true){
+			int maxCharsInWidth = sizeStringToWidth(runs, lineStart, maxWidth, metrics);
+			if (len - lineStart <= maxCharsInWidth){
 				break;
 			}
+			int lineEnd = lineStart + maxCharsInWidth;
+			//Keep the space or newline that we're breaking on at the end of this line
+			char c0 = strIn.charAt(lineEnd);
+			if (c0 == 32 || c0 == 10 || maxCharsInWidth == 0){
+				// A zero-width line would never make any progress, so take at least one character
+				lineEnd++;
+			}
+			if (breakCount == breaks.length){
+				breaks = Arrays.copyOf(breaks, breaks.length * 2);
+			}
+			breaks[breakCount++] = lineEnd;
+			lineStart = lineEnd;
 		}
-
-		return l != j && i1 != -1 && i1 < l ? i1 : l;
+		return Arrays.copyOf(breaks, breakCount);
 	}
 	
 	
 	/**
 	 * Inserts splitchar into a string to wrap it within the specified width.
 	 */
-	private static String wrapFormattedStringToWidth(String strIn, int maxWidth){
-		int maxCharsInWidth = sizeStringToWidth(strIn, maxWidth);
-
-		if (strIn.length() <= maxCharsInWidth){
+	private static String wrapFormattedStringToWidth(String strIn, int maxWidth, FontMetrics metrics){
+		int[] breaks = findLineBreaks(strIn, maxWidth, metrics);
+		if (breaks.length == 0){
 			return strIn;
 		}
-		else{
-			//grab the most characters you can fit into maxWidth and put it in s1
-			String s1 = strIn.substring(0, maxCharsInWidth);
-			//grab the very next character after that string and put it in c0
-			char c0 = strIn.charAt(maxCharsInWidth);
-			boolean newlineOrSpace = c0 == 32 || c0 == 10; //Check if it's a newline character or a space
-			String s2 = strIn.substring(maxCharsInWidth + (newlineOrSpace ? 1 : 0));
-			if (newlineOrSpace){s1 += c0;}
-			return s1 + SPLIT_CHAR + wrapFormattedStringToWidth(s2, maxWidth);
+		StringBuilder out = new StringBuilder(strIn.length() + breaks.length);
+		int lineStart = 0;
+		for (int lineEnd : breaks){
+			out.append(strIn, lineStart, lineEnd).append(SPLIT_CHAR);
+			lineStart = lineEnd;
 		}
+		out.append(strIn, lineStart, strIn.length());
+		return out.toString();
 	}
 	
 	
@@ -238,6 +213,11 @@ public class BookUtilities {
 	 * Note 2: this preserves trailing whitespace (unlike FontRenderer.listFormattedStringToWidth())
 	 */
 	public static List<String> splitStringIntoLines(String str){
+		return splitStringIntoLines(str, GlyphWidthTable.get());
+	}
+	
+	
+	public static List<String> splitStringIntoLines(String str, FontMetrics metrics){
 		//Trim trailing newline characters
 		while (str.endsWith("\n") || str.endsWith(" ")){
 			str = str.substring(0, str.length() - 1);
@@ -246,9 +226,16 @@ public class BookUtilities {
 		String[] lines = str.split("\\n");
 		List<String> out = new ArrayList<>();
 		for (String line : lines){
-			out.addAll(Arrays.asList(wrapFormattedStringToWidth(line, BOOK_TEXT_WIDTH).split("" + SPLIT_CHAR)));
+			int lineStart = 0;
+			for (int lineEnd : findLineBreaks(line, BOOK_TEXT_WIDTH, metrics)){
+				out.add(line.substring(lineStart, lineEnd));
+				lineStart = lineEnd;
+			}
+			// A line that was broken right at its end doesn't leave an empty line behind, but an empty line stays
+			if (lineStart < line.length() || lineStart == 0){
+				out.add(line.substring(lineStart));
+			}
 		}
-		//return Arrays.asList(wrapFormattedStringToWidth(str, BOOK_TEXT_WIDTH).split("" + SPLIT_CHAR));
 		return out;
 	}
 	
@@ -258,45 +245,12 @@ public class BookUtilities {
 	 * book page.
 	 */
 	public static List<String> stringToPages(String str){
-		String wrapped = wrapFormattedStringToWidth(str, BOOK_TEXT_WIDTH);
-		List<String> pages = new ArrayList<>();
-		int newLineCount = 0;
-		int charCount = 0;
-		char currChar;
-		int lastSubstringEnd = 0;
-		for (int i=0; i<wrapped.length(); i++){
-			currChar = wrapped.charAt(i);
-			if (currChar == SPLIT_CHAR){
-				newLineCount++;
-			}
-			else{
-				charCount++;
-			}
-			
-			if (newLineCount == 13){
-				//we can throw away this line break
-				pages.add(wrapped.substring(lastSubstringEnd, i).replaceAll("" + SPLIT_CHAR, ""));
-				lastSubstringEnd = i+1;
-				newLineCount = 0;
-				charCount = 0;
-			}
-			else if (charCount == 256){
-				//go back and find the last instance of a space or newline
-				while(i>=0 && currChar != '\n' && currChar != ' ' && currChar != SPLIT_CHAR){
-					i--;
-					currChar = wrapped.charAt(i);
-				}
-				pages.add(wrapped.substring(lastSubstringEnd, i).replaceAll("" + SPLIT_CHAR, ""));
-				lastSubstringEnd = i+1;
-				newLineCount = 0;
-				charCount = 0;
-			}
-			//add the last little bit of the string as a page
-			if (i == wrapped.length()-1 && lastSubstringEnd < i){
-				pages.add(wrapped.substring(lastSubstringEnd).replaceAll("" + SPLIT_CHAR, ""));
-			}
-		}
-		return pages;
+		return stringToPages(str, GlyphWidthTable.get());
+	}
+	
+	
+	public static List<String> stringToPages(String str, FontMetrics metrics){
+		return paginate(new Paginator(new StringReader(str), null, metrics));
 	}
 	
 	/**
@@ -307,35 +261,128 @@ public class BookUtilities {
 	 * @return ArrayList of Strings representing pages
 	 */
 	public static List<String> stringWithPageBreaksToPages(String str, String pageBreakString){
-		//Remove any page breaks from the beginning of the string
-		while (str.startsWith(pageBreakString)){
-			str = str.substring(pageBreakString.length(), str.length()-1);
+		return stringWithPageBreaksToPages(str, pageBreakString, GlyphWidthTable.get());
+	}
+	
+	
+	public static List<String> stringWithPageBreaksToPages(String str, String pageBreakString, FontMetrics metrics){
+		List<String> chunks = new ArrayList<>();
+		int chunkStart = 0;
+		while (chunkStart <= str.length()){
+			int chunkEnd = str.indexOf(pageBreakString, chunkStart);
+			if (chunkEnd < 0){
+				chunkEnd = str.length();
+			}
+			chunks.add(str.substring(chunkStart, chunkEnd));
+			chunkStart = chunkEnd + pageBreakString.length();
 		}
-		String[] pageBroken = str.split(pageBreakString);
-		List<String> out = new ArrayList<>();
-		for (String largePage : pageBroken){
-			out.addAll(stringToPages(largePage));
+		// Drop any pages that are left with nothing printable on them (e.g. from consecutive page breaks)
+		return chunksToPages(chunks, metrics, true);
+	}
+	
+	
+	/**
+	 * Paginates each chunk of text separately (i.e. every chunk starts on a new page) and returns all the pages in order.
+	 * Chunks don't depend on each other, so if there's enough text to make it worthwhile they're paginated in
+	 * parallel on the common ForkJoin pool. In that case the workers use metrics.snapshot(), so this still has to be
+	 * called on the client thread if metrics is the live GlyphWidthTable.
+	 * @param dropBlankPages True to leave out pages with nothing but whitespace and formatting codes on them
+	 */
+	public static List<String> chunksToPages(List<String> chunks, FontMetrics metrics, boolean dropBlankPages){
+		long totalLength = 0;
+		for (String chunk : chunks){
+			totalLength += chunk.length();
 		}
-		
-		// This is a quick hack to remove blank pages until I can figure out why they're
-		//   being inserted erroneously
-		// TODO: FIX THIS PROPERLY
-		List<String> cleanedOut = new ArrayList<>();
-		for (String page : out){
-			if (page.replaceAll("[ \n\r\t]|(\\u00A7.)", "").length() > 0){
-				cleanedOut.add(page);
+		if (chunks.size() < 2 || totalLength < PARALLEL_THRESHOLD){
+			List<String> out = new ArrayList<>();
+			for (String chunk : chunks){
+				out.addAll(chunkToPages(chunk, metrics, dropBlankPages));
 			}
+			return out;
 		}
-		
-		return cleanedOut;
+		FontMetrics sharedMetrics = metrics.snapshot();
+		List<List<String>> chunkPages = chunks.parallelStream()
+				.map(chunk -> chunkToPages(chunk, sharedMetrics, dropBlankPages))
+				.collect(Collectors.toList());
+		List<String> out = new ArrayList<>();
+		for (List<String> pages : chunkPages){
+			out.addAll(pages);
+		}
+		return out;
+	}
+	
+	
+	private static List<String> chunkToPages(String chunk, FontMetrics metrics, boolean dropBlankPages){
+		List<String> pages = stringToPages(chunk, metrics);
+		if (dropBlankPages){
+			pages.removeIf(Paginator::isBlankPage);
+		}
+		return pages;
+	}
+	
+	
+	/**
+	 * Collects every page from a Paginator into a list
+	 */
+	public static List<String> paginate(Paginator paginator){
+		List<String> pages = new ArrayList<>();
+		while (paginator.hasNext()){
+			pages.add(paginator.next());
+		}
+		return pages;
 	}
 	
 	
 	/**
 	 * Converts the new JSON strings with their escaped quotation marks back into regular old strings
 	 * Hopefully this is just temporary.
+	 * Results are cached (see DEJSONIFY_CACHE_SIZE), since the screens convert every page in the book each time
+	 * pages are copied, cut, removed or pasted, even though most of them haven't changed since last time.
 	 */
 	public static String deJSONify(String jsonIn){
+		if (jsonIn.length() > DEJSONIFY_CACHE_MAX_LENGTH){
+			return deJSONifyUncached(jsonIn);
+		}
+		synchronized (deJSONifyCache){
+			String cached = deJSONifyCache.get(jsonIn);
+			if (cached != null){
+				deJSONifyCacheHits++;
+				return cached;
+			}
+			deJSONifyCacheMisses++;
+		}
+		String out = deJSONifyUncached(jsonIn);
+		synchronized (deJSONifyCache){
+			deJSONifyCache.put(jsonIn, out);
+		}
+		return out;
+	}
+	
+	
+	public static long getDeJSONifyCacheHits(){
+		synchronized (deJSONifyCache){
+			return deJSONifyCacheHits;
+		}
+	}
+	
+	
+	public static long getDeJSONifyCacheMisses(){
+		synchronized (deJSONifyCache){
+			return deJSONifyCacheMisses;
+		}
+	}
+	
+	
+	private static String deJSONifyUncached(String jsonIn){
+		String decoded = JsonPageDecoder.decode(jsonIn);
+		return decoded != null ? decoded : deJSONifyWithGson(jsonIn);
+	}
+	
+	
+	/**
+	 * The original (slow) conversion, used for anything JsonPageDecoder can't handle
+	 */
+	static String deJSONifyWithGson(String jsonIn){
 		try{
 			// func_240643_a_() is fromJson()
 			ITextComponent i = ITextComponent.Serializer.func_240643_a_(jsonIn);
@@ -0,0 +1,364 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where each book is in a Bookworm archive, which is any number of Bookworm books (see
+ * FileHandler.loadBookwormBook()) one after another in a single .txt file.
+ *
+ * The archive is scanned once, a line at a time, and only the short lines at the start of each book are decoded.
+ * The book text itself is skipped over. The index is saved next to the archive as a hidden file, so opening the
+ * archive again only has to read that (files with fewer than two books aren't worth it, since they're read in full
+ * anyway). It's scanned again if the archive's size or modification time changes.
+ * Any one book can then be read by seeking straight to it.
+ */
+public class BookwormIndex {
+	private static final Logger LOG = LogManager.getLogger();
+	private static final int MAGIC = 0x4757424b; // GWBK
+	/** 2: books have to start at the top of the file or after another book, rather than at any numeric line */
+	private static final int VERSION = 2;
+	/** Lines longer than this can't be the ID, title, author or a hidden data line, so the rest isn't kept */
+	private static final int MAX_HEADER_LINE = 1024;
+	private static final String INDEX_SUFFIX = ".gwindex";
+
+	private final long archiveSize;
+	private final long archiveModified;
+	private final List<Book> books;
+
+
+	/**
+	 * A book in the archive. The offset and length cover every line of the book, from the ID to the end of the text.
+	 */
+	public static class Book {
+		public final String id;
+		public final String title;
+		public final String author;
+		public final long offset;
+		public final long length;
+
+
+		private Book(String _id, String _title, String _author, long _offset, long _length){
+			this.id = _id;
+			this.title = _title;
+			this.author = _author;
+			this.offset = _offset;
+			this.length = _length;
+		}
+	}
+
+
+	private BookwormIndex(long _archiveSize, long _archiveModified, List<Book> _books){
+		this.archiveSize = _archiveSize;
+		this.archiveModified = _archiveModified;
+		this.books = Collections.unmodifiableList(_books);
+	}
+
+
+	public List<Book> getBooks(){
+		return this.books;
+	}
+
+
+	public static File getIndexFile(File archive){
+		return new File(archive.getAbsoluteFile().getParentFile(), "." + archive.getName() + INDEX_SUFFIX);
+	}
+
+
+	/**
+	 * Checks if a file is one of our saved indexes, so it can be left out of directory listings
+	 */
+	public static boolean isIndexFile(File file){
+		String name = file.getName();
+		return name.startsWith(".") && name.endsWith(INDEX_SUFFIX);
+	}
+
+
+	/**
+	 * Reads the saved index if it's up to date, otherwise scans the archive and saves a new one
+	 * @return The index, which has no books if this isn't a Bookworm archive, or null if the archive's in an encoding
+	 *         that can't be scanned a byte at a time (i.e. UTF-16)
+	 */
+	public static BookwormIndex load(File archive) throws IOException {
+		BookwormIndex index = loadSaved(archive);
+		if (index != null){
+			return index;
+		}
+		index = scan(archive);
+		if (index != null && index.books.size() > 1){
+			// Not worth leaving a file behind for ordinary text files and single books, which are read in full anyway
+			index.save(archive);
+		}
+		return index;
+	}
+
+
+	/**
+	 * Only reads the saved index, so this is quick enough to use on the client thread
+	 * @return The index, or null if there isn't one or the archive has changed since it was saved
+	 */
+	public static BookwormIndex loadSaved(File archive){
+		File indexFile = getIndexFile(archive);
+		if (!indexFile.isFile()){
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))){
+			if (in.readInt() != MAGIC || in.readInt() != VERSION){
+				return null;
+			}
+			long size = in.readLong();
+			long modified = in.readLong();
+			if (size != archive.length() || modified != archive.lastModified()){
+				return null;
+			}
+			int count = in.readInt();
+			List<Book> books = new ArrayList<>(Math.min(count, 4096));
+			for (int i=0; i<count; i++){
+				books.add(new Book(in.readUTF(), in.readUTF(), in.readUTF(), in.readLong(), in.readLong()));
+			}
+			return new BookwormIndex(size, modified, books);
+		} catch (EOFException e) {
+			LOG.warn("Bookworm index " + indexFile + " is truncated");
+			return null;
+		} catch (IOException e) {
+			LOG.warn("Couldn't read Bookworm index " + indexFile, e);
+			return null;
+		}
+	}
+
+
+	private void save(File archive){
+		File indexFile = getIndexFile(archive);
+		// Written to a temp file first, so a crash or something reading it at the same time never sees half an index.
+		// The same archive can be indexed by a load and by the search indexer at once, and they'd share the temp file.
+		boolean saved;
+		synchronized (BookwormIndex.class){
+			saved = FileHandler.writeFileAtomically(indexFile, stream -> {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(this.archiveSize);
+				out.writeLong(this.archiveModified);
+				out.writeInt(this.books.size());
+				for (Book book : this.books){
+					out.writeUTF(book.id);
+					out.writeUTF(book.title);
+					out.writeUTF(book.author);
+					out.writeLong(book.offset);
+					out.writeLong(book.length);
+				}
+				out.flush();
+			});
+		}
+		if (!saved){
+			// It'll just be scanned again next time
+			LOG.warn("Couldn't save Bookworm index " + indexFile);
+		}
+	}
+
+
+	/**
+	 * Scans the archive for books without keeping any of the book text
+	 */
+	static BookwormIndex scan(File archive) throws IOException {
+		long size = archive.length();
+		long modified = archive.lastModified();
+		List<Book> books = new ArrayList<>();
+		try (InputStream in = new BufferedInputStream(new FileInputStream(archive), 64 * 1024)){
+			LineScanner lines = new LineScanner(in);
+			if (!lines.skipByteOrderMark()){
+				return null;
+			}
+			/*
+			Each book is:
+			<id number>
+			<title>
+			<author>
+			(optional)|!|hidden_key_n>|<hidden_data_n> (this may be repeated on successive lines)
+			<Book text as a single line>
+			The first line of the file has to be the first book's ID, like a single Bookworm book. After a book, blank
+			lines and separators (e.g. a row of #s) are skipped until the next ID. Anything else means the rest of the
+			file isn't Bookworm books, so it's left out. Otherwise a line like a chapter number or a year in an ordinary
+			text file would be taken for a book.
+			*/
+			boolean first = true;
+			while (lines.next()){
+				String id = lines.getLine();
+				if (!StringUtils.isNumeric(id)){
+					if (first || !isSeparator(id)){
+						break;
+					}
+					continue;
+				}
+				first = false;
+				long start = lines.getLineStart();
+				if (!lines.next()){
+					break;
+				}
+				String title = lines.getLine();
+				if (!lines.next()){
+					break;
+				}
+				String author = lines.getLine();
+				boolean hasText = false;
+				while (lines.next()){
+					if (!lines.getLine().startsWith("|!|")){
+						hasText = true;
+						break;
+					}
+				}
+				if (!hasText){
+					break;
+				}
+				books.add(new Book(id, title, author, start, lines.getLineEnd() - start));
+			}
+		}
+		return new BookwormIndex(size, modified, books);
+	}
+
+
+	/**
+	 * @return True if a line has nothing in it but whitespace and punctuation, so it could go between books
+	 */
+	private static boolean isSeparator(String line){
+		for (int i=0; i<line.length(); i++){
+			if (Character.isLetterOrDigit(line.charAt(i))){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Reads the raw bytes of one book, which can then be decoded and split into lines like a single-book file
+	 */
+	public static ByteBuffer readBook(File archive, Book book) throws IOException {
+		if (book.length > Integer.MAX_VALUE){
+			throw new IOException("Book is too big to load");
+		}
+		byte[] bytes = new byte[(int)book.length];
+		try (RandomAccessFile in = new RandomAccessFile(archive, "r")){
+			in.seek(book.offset);
+			in.readFully(bytes);
+		}
+		return ByteBuffer.wrap(bytes);
+	}
+
+
+	/**
+	 * Splits a stream into lines the same way BufferedReader.readLine() does, keeping track of the byte offset of
+	 * each line. Lines are decoded as UTF-8, or ISO-8859-15 if they aren't valid UTF-8 (which is what
+	 * FileHandler.readFile() falls back to for the whole file).
+	 */
+	private static class LineScanner {
+		private final InputStream in;
+		private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+		private long position = 0;
+		private long lineStart;
+		private long lineEnd;
+		private boolean lastWasCR = false;
+
+
+		private LineScanner(InputStream _in){
+			this.in = _in;
+		}
+
+
+		/**
+		 * Skips a UTF-8 byte order mark
+		 * @return False if the stream starts with a UTF-16 one instead
+		 */
+		private boolean skipByteOrderMark() throws IOException {
+			this.in.mark(3);
+			int b0 = this.in.read();
+			int b1 = this.in.read();
+			int b2 = this.in.read();
+			if (b0 == 0xEF && b1 == 0xBB && b2 == 0xBF){
+				this.position = 3;
+				return true;
+			}
+			this.in.reset();
+			return !((b0 == 0xFE && b1 == 0xFF) || (b0 == 0xFF && b1 == 0xFE));
+		}
+
+
+		/**
+		 * Moves on to the next line
+		 * @return False at the end of the stream
+		 */
+		private boolean next() throws IOException {
+			this.lineBytes.reset();
+			int b = this.in.read();
+			if (b == '\n' && this.lastWasCR){
+				// The second half of a \r\n
+				this.position++;
+				b = this.in.read();
+			}
+			this.lastWasCR = false;
+			if (b < 0){
+				return false;
+			}
+			this.lineStart = this.position;
+			while (b >= 0 && b != '\n' && b != '\r'){
+				if (this.lineBytes.size() < MAX_HEADER_LINE){
+					this.lineBytes.write(b);
+				}
+				this.position++;
+				b = this.in.read();
+			}
+			this.lineEnd = this.position;
+			if (b >= 0){
+				this.position++;
+				this.lastWasCR = b == '\r';
+			}
+			return true;
+		}
+
+
+		private String getLine(){
+			byte[] bytes = this.lineBytes.toByteArray();
+			try {
+				return StandardCharsets.UTF_8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(ByteBuffer.wrap(bytes)).toString();
+			} catch (CharacterCodingException e) {
+				return new String(bytes, TextFileDecoder.FALLBACK_CHARSET);
+			}
+		}
+
+
+		private long getLineStart(){
+			return this.lineStart;
+		}
+
+
+		/**
+		 * The offset just after the last char of the line, not counting the line break
+		 */
+		private long getLineEnd(){
+			return this.lineEnd;
+		}
+	}
+}
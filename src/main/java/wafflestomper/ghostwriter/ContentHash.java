@@ -0,0 +1,105 @@
+package wafflestomper.ghostwriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A SHA-256 hash of some content, used to tell if a file has really changed (editors often save several times in a
+ * row, or save without changing anything) without keeping the old contents around to compare against.
+ */
+public final class ContentHash {
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final byte[] hash;
+
+
+	private ContentHash(byte[] _hash){
+		this.hash = _hash;
+	}
+
+
+	private static MessageDigest newDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java implementation has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	public static ContentHash of(byte[] content){
+		return new ContentHash(newDigest().digest(content));
+	}
+
+
+	/**
+	 * Hashes the bytes between the buffer's position and limit, and leaves the position at the limit
+	 */
+	public static ContentHash of(ByteBuffer content){
+		MessageDigest digest = newDigest();
+		digest.update(content);
+		return new ContentHash(digest.digest());
+	}
+
+
+	/**
+	 * Hashes a file a block at a time, so it doesn't have to fit in memory
+	 */
+	public static ContentHash of(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buf = new byte[64 * 1024];
+		try (InputStream in = new FileInputStream(file)){
+			int read;
+			while ((read = in.read(buf)) >= 0){
+				digest.update(buf, 0, read);
+			}
+		}
+		return new ContentHash(digest.digest());
+	}
+
+
+	/**
+	 * Recreates a hash that was saved with getBytes()
+	 */
+	public static ContentHash fromBytes(byte[] hash){
+		return new ContentHash(hash.clone());
+	}
+
+
+	public byte[] getBytes(){
+		return this.hash.clone();
+	}
+
+
+	@Override
+	public boolean equals(Object other){
+		return other instanceof ContentHash && Arrays.equals(this.hash, ((ContentHash)other).hash);
+	}
+
+
+	@Override
+	public int hashCode(){
+		return Arrays.hashCode(this.hash);
+	}
+
+
+	/**
+	 * The hash as lowercase hex
+	 */
+	@Override
+	public String toString(){
+		char[] out = new char[this.hash.length * 2];
+		for (int i=0; i<this.hash.length; i++){
+			out[i*2] = HEX[(this.hash[i] >> 4) & 0xF];
+			out[i*2+1] = HEX[this.hash[i] & 0xF];
+		}
+		return new String(out);
+	}
+}
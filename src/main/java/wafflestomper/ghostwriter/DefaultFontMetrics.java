@@ -0,0 +1,53 @@
+package wafflestomper.ghostwriter;
+
+/**
+ * Widths from the vanilla default font (the ASCII sheet in 1.16), bundled so text can be laid out without a game
+ * running, e.g. in benchmarks or on a worker thread that started before the client finished loading.
+ * Anything outside printable ASCII comes from other font sheets in the game, so it's given the usual width of
+ * 6 pixels. That's close for accented Latin characters, but only an approximation for everything else.
+ */
+public class DefaultFontMetrics implements FontMetrics {
+	public static final DefaultFontMetrics INSTANCE = new DefaultFontMetrics();
+	
+	private static final int DEFAULT_WIDTH = 6;
+	private static final int[] ASCII_WIDTHS = new int[128];
+	
+	static {
+		for (int i=' '; i<127; i++){
+			ASCII_WIDTHS[i] = DEFAULT_WIDTH;
+		}
+		setWidth(" ", 4);
+		setWidth("!',.:;i|", 2);
+		setWidth("`l", 3);
+		setWidth("\"()*I[]t{}", 4);
+		setWidth("<>fk", 5);
+		setWidth("@~", 7);
+	}
+	
+	
+	private static void setWidth(String chars, int width){
+		for (int i=0; i<chars.length(); i++){
+			ASCII_WIDTHS[chars.charAt(i)] = width;
+		}
+	}
+	
+	
+	private DefaultFontMetrics(){}
+	
+	
+	@Override
+	public int getWidth(int codePoint, boolean bold){
+		int width;
+		if (codePoint < ASCII_WIDTHS.length){
+			width = ASCII_WIDTHS[codePoint];
+		}
+		else if (Character.isISOControl(codePoint)){
+			width = 0;
+		}
+		else{
+			width = DEFAULT_WIDTH;
+		}
+		// Bold glyphs are drawn twice, one pixel apart
+		return (bold && width > 0) ? width+1 : width;
+	}
+}
@@ -0,0 +1,155 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lists a directory on a background thread, so a huge or slow (e.g. network or USB) directory doesn't freeze the game.
+ *
+ * Entries are read a batch at a time. Each batch is sorted as it's read and merged into what's been listed so far,
+ * which is published for the client thread to pick up (the version goes up every time it changes). Batches get
+ * bigger as the listing does, so a fast directory is only merged a handful of times, but a slow one still shows
+ * something every so often.
+ *
+ * A lister that's refreshing a directory that was already listed carries on showing the old listing until the new
+ * one's finished, so the list doesn't empty and fill up again every time something in it changes.
+ */
+public class DirectoryLister {
+	private static final Logger LOG = LogManager.getLogger();
+	/** Each listing gets its own thread, so one stuck on an unresponsive drive doesn't hold up the next */
+	private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter directory lister");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final int MIN_BATCH_SIZE = 256;
+	/** How often something's published while a slow directory's being listed */
+	private static final long PUBLISH_INTERVAL_MS = 100;
+
+	private final File directory;
+	private final boolean showPartial;
+	private volatile FileListing listing;
+	private final AtomicInteger version = new AtomicInteger();
+	private volatile boolean done = false;
+	private volatile boolean cancelled = false;
+
+
+	private DirectoryLister(File _directory, FileListing previous){
+		this.directory = _directory;
+		this.showPartial = previous == null;
+		this.listing = previous == null ? FileListing.EMPTY : previous;
+	}
+
+
+	/**
+	 * Starts listing a directory in the background
+	 * @param previous The last listing of the same directory, which is kept until this one's finished. Null to show
+	 *                 entries as they're listed instead.
+	 */
+	public static DirectoryLister start(File directory, FileListing previous){
+		DirectoryLister lister = new DirectoryLister(directory.getAbsoluteFile(), previous);
+		EXECUTOR.execute(lister::run);
+		return lister;
+	}
+
+
+	public File getDirectory(){
+		return this.directory;
+	}
+
+
+	/**
+	 * What's been listed so far, in name order with directories first
+	 */
+	public FileListing getListing(){
+		return this.listing;
+	}
+
+
+	/**
+	 * Goes up every time the listing changes
+	 */
+	public int getVersion(){
+		return this.version.get();
+	}
+
+
+	public boolean isDone(){
+		return this.done;
+	}
+
+
+	/**
+	 * Stops listing at the next entry (e.g. because the user's gone to another directory). What's been listed so far
+	 * is kept.
+	 */
+	public void cancel(){
+		this.cancelled = true;
+	}
+
+
+	private void run(){
+		if (this.cancelled){
+			// Cancelled before it got a thread
+			this.done = true;
+			return;
+		}
+		FileListing listed = FileListing.EMPTY;
+		FileListing.Builder batch = new FileListing.Builder(this.directory);
+		long lastPublished = System.currentTimeMillis();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory.toPath())){
+			for (Path path : stream){
+				if (this.cancelled){
+					return;
+				}
+				File file = path.toFile();
+				if (BookwormIndex.isIndexFile(file)){
+					continue;
+				}
+				BasicFileAttributes attributes;
+				try {
+					// Links are followed, the same as File.isFile() and File.isDirectory()
+					attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				} catch (IOException | SecurityException e) {
+					attributes = null;
+				}
+				batch.add(file.getName(), attributes);
+				long now = System.currentTimeMillis();
+				if (batch.size() >= Math.max(MIN_BATCH_SIZE, listed.size()) || now - lastPublished >= PUBLISH_INTERVAL_MS){
+					listed = FileListing.merge(listed, batch.build());
+					batch = new FileListing.Builder(this.directory);
+					if (this.showPartial){
+						this.publish(listed);
+					}
+					lastPublished = now;
+				}
+			}
+		} catch (IOException | DirectoryIteratorException | InvalidPathException | SecurityException e) {
+			// Show whatever could be listed, which is nothing if the directory couldn't be opened at all
+			LOG.warn("Couldn't list " + this.directory + ": " + e);
+		} finally {
+			if (!this.cancelled){
+				this.publish(FileListing.merge(listed, batch.build()));
+			}
+			this.done = true;
+		}
+	}
+
+
+	private void publish(FileListing newListing){
+		this.listing = newListing;
+		this.version.incrementAndGet();
+	}
+}
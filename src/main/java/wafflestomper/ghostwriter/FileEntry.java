@@ -0,0 +1,87 @@
+package wafflestomper.ghostwriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A file in a directory listing, along with its attributes as they were when the directory was listed.
+ *
+ * The attributes are read once (in a single call, rather than one for each of exists(), isFile(), etc.) and never
+ * change, so they can be checked every frame without touching the disk. Listings are refreshed when a FileWatcher
+ * reports that the directory has changed, or when the user asks for it.
+ */
+public class FileEntry {
+	private final File path;
+	private final String name;
+	private final boolean exists;
+	private final boolean directory;
+	private final boolean file;
+	private final long size;
+	private final long lastModified;
+
+
+	FileEntry(File _path, boolean _exists, boolean _directory, boolean _file, long _size, long _lastModified){
+		this.path = _path;
+		this.name = _path.getName();
+		this.exists = _exists;
+		this.directory = _directory;
+		this.file = _file;
+		this.size = _size;
+		this.lastModified = _lastModified;
+	}
+
+
+	/**
+	 * Reads the attributes of a file. If it can't be read (e.g. it's been deleted since the directory was listed),
+	 * the entry is marked as not existing rather than throwing.
+	 */
+	public static FileEntry of(File path){
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(path.toPath(), BasicFileAttributes.class);
+		} catch (IOException | InvalidPathException | SecurityException e) {
+			return new FileEntry(path, false, false, false, 0, 0);
+		}
+		// Links are followed, the same as File.isFile() and File.isDirectory()
+		return new FileEntry(path, true, attributes.isDirectory(), attributes.isRegularFile(), attributes.size(),
+				attributes.lastModifiedTime().toMillis());
+	}
+
+
+	public File getPath(){
+		return this.path;
+	}
+
+
+	public String getName(){
+		return this.name;
+	}
+
+
+	public boolean exists(){
+		return this.exists;
+	}
+
+
+	public boolean isDirectory(){
+		return this.directory;
+	}
+
+
+	public boolean isFile(){
+		return this.file;
+	}
+
+
+	public long getSize(){
+		return this.size;
+	}
+
+
+	public long getLastModified(){
+		return this.lastModified;
+	}
+}
@@ -9,31 +9,68 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.*;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class FileHandler {
 	private final File defaultPath;
 	private final File bookSavePath;
 	private final File signaturePath;
-	private static final Printer printer = new Printer();
+	private final Printer printer;
+	/** True if this is for background work, so loading books shouldn't be reported (see quiet()) */
+	private final boolean quiet;
 	private final Clipboard clipboard;
 	private static final Logger LOG = LogManager.getLogger();
+	/** Background loads are done one at a time, and ones that were cancelled before they started are skipped */
+	private static final ExecutorService LOAD_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter book loader");
+		thread.setDaemon(true);
+		return thread;
+	});
+	/** Saves are written one at a time, so two saves to the same file can't get mixed up */
+	private static final ExecutorService SAVE_EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter book saver");
+		thread.setDaemon(true);
+		return thread;
+	});
 	
 	public File currentPath;
 	public File lastLoadedBook;
-	private final List<File> lastListing = new ArrayList<>();
-	private String lastCheckedPath = "";
+	/** Pages for the body of the last GHB file we loaded, so reloading it only needs to lay out what changed */
+	private PaginatedText lastLoadedGHBText;
+	/** Lists the last directory that was asked for, and keeps its listing once it's done */
+	private DirectoryLister lister;
 	
 	public FileHandler(Clipboard _clipboard){
+		this(_clipboard, new File(getGameDirPath(), "mods" + File.separator + "Ghostwriter"));
+	}
+	
+	/**
+	 * Uses rootPath as the Ghostwriter folder instead of the one in the game directory, so this can be used
+	 * without a game running (e.g. in the benchmarks)
+	 */
+	public FileHandler(Clipboard _clipboard, File rootPath){
+		this(_clipboard, rootPath, false);
+	}
+	
+	private FileHandler(Clipboard _clipboard, File rootPath, boolean _quiet){
 		this.clipboard = _clipboard;
-		String path = Minecraft.getInstance().gameDir.getAbsolutePath();
-		if (path.endsWith(".")){
-			path = path.substring(0, path.length()-2);
-		}
-		this.defaultPath = new File(path, "mods" + File.separator + "Ghostwriter");
+		this.quiet = _quiet;
+		this.printer = _quiet ? Printer.LOG_ONLY : new Printer();
+		this.defaultPath = rootPath;
 		if (!this.defaultPath.exists()) this.defaultPath.mkdirs();
 		this.bookSavePath = new File(defaultPath, "SavedBooks");
 		if (!this.bookSavePath.exists()) this.bookSavePath.mkdirs();
@@ -42,34 +79,61 @@ public class FileHandler {
 		this.currentPath = bookSavePath;
 	}
 	
+	/**
+	 * A file handler for background work the user didn't ask for directly, like indexing the library, which loads
+	 * every book in it. Nothing's printed in chat, and what would have been is only logged at debug level, along with
+	 * which format each book was loaded as.
+	 */
+	public static FileHandler quiet(Clipboard _clipboard, File rootPath){
+		return new FileHandler(_clipboard, rootPath, true);
+	}
+	
+	private static String getGameDirPath(){
+		String path = Minecraft.getInstance().gameDir.getAbsolutePath();
+		if (path.endsWith(".")){
+			path = path.substring(0, path.length()-2);
+		}
+		return path;
+	}
+	
 	public File getSignaturePath(){
 		return this.signaturePath;
 	}
 	
+	
+	/**
+	 * Where the pages of books saved as manifests (.ghm) are kept
+	 */
+	public PageStore getPageStore(){
+		return PageStore.get(new File(this.defaultPath, "PageStore"));
+	}
+	
 	public File getSavePath(){
 		return this.bookSavePath;
 	}
 	
-	public List<File> listFiles(File path, boolean forceRefresh){
-		if (!path.getAbsolutePath().equals(this.lastCheckedPath) || forceRefresh){
-			this.lastCheckedPath = path.getAbsolutePath();
-			this.lastListing.clear();
-			File[] newList = path.listFiles();
-			if (newList == null) return this.lastListing;
-			// TODO: Better sorting: https://stackoverflow.com/questions/16898029/how-to-sort-file-names-in-ascending-order
-			Arrays.sort(newList);
-			List<File> files = new ArrayList<>();
-			for (File f : newList){
-				if (f.isDirectory()){
-					this.lastListing.add(f);
-				}
-				else{
-					files.add(f);
-				}
-			}
-			this.lastListing.addAll(files);
+	/**
+	 * Lists a directory in the background, with subdirectories first. The attributes of each entry are read there,
+	 * once, so the listing can be drawn without going back to the disk. The same lister is returned until a different
+	 * directory is listed (which cancels it) or forceRefresh is set (e.g. because a FileWatcher saw the directory
+	 * change), in which case the new one keeps showing the old listing until it's done.
+	 */
+	public DirectoryLister listFiles(File path, boolean forceRefresh){
+		boolean sameDirectory = this.lister != null && this.lister.getDirectory().equals(path.getAbsoluteFile());
+		if (!sameDirectory || forceRefresh){
+			this.cancelListing();
+			this.lister = DirectoryLister.start(path, sameDirectory ? this.lister.getListing() : null);
+		}
+		return this.lister;
+	}
+	
+	/**
+	 * Stops listing the directory if it's still being listed (e.g. because the file browser's been closed)
+	 */
+	public void cancelListing(){
+		if (this.lister != null && !this.lister.isDone()){
+			this.lister.cancel();
 		}
-		return this.lastListing;
 	}
 	
 	/**
@@ -101,62 +165,144 @@ public class FileHandler {
 		return readFile(path, "UTF-8");
 	}
 	
+	
+	/**
+	 * Reads a file and splits it into lines. If it isn't valid UTF-8, it's decoded again as ISO-8859-15, but the file
+	 * itself is only read once. A byte order mark overrides the encoding.
+	 */
 	public List<String> readFile(File path, String encoding){
-		List<String> out = new ArrayList<>();
-		BufferedReader br;
-		
-		CharsetDecoder decoder = Charset.forName(encoding).newDecoder();
-		decoder.onMalformedInput(CodingErrorAction.REPORT);
-		decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+		String text = readText(path, encoding);
+		return text == null ? null : splitLines(text);
+	}
+	
+	
+	/**
+	 * Reads a whole file the same way as readFile(), without splitting it into lines
+	 * @return The text, or null if it couldn't be read (which has already been reported in chat)
+	 */
+	private String readText(File path, String encoding){
+		TextFileDecoder file;
 		try {
-			br = new BufferedReader(new InputStreamReader(new FileInputStream(path), decoder));
+			file = TextFileDecoder.read(path);
 		} catch (FileNotFoundException e) {
 			printer.gamePrint(Printer.RED + "File not found! " + path.getAbsolutePath());
 			return null;
+		} catch (IOException e) {
+			this.printStackTrace(e);
+			printer.gamePrint(Printer.RED + "Error reading file! " + path.getAbsolutePath());
+			return null;
 		}
+		return this.decodeText(path, file, encoding);
+	}
+	
+	
+	/**
+	 * Decodes a file that's already been read, trying ISO-8859-15 if it isn't valid UTF-8
+	 * @return The text, or null if it couldn't be decoded (which has already been reported in chat)
+	 */
+	private String decodeText(File path, TextFileDecoder file, String encoding){
+		Charset charset = file.getCharset(Charset.forName(encoding));
+		String text;
 		try {
-			String line = br.readLine();
-			while (line != null) {
-				out.add(line);
-				line = br.readLine();
-			}
+			text = file.decode(charset);
 		}
 		catch (CharacterCodingException e){
 			// ICEBERG! It seems we've hit a character that's not encoded with the specified encoding
-			if (encoding.equals("UTF-8")){
-				printer.gamePrint(Printer.DARK_GRAY + path.getAbsolutePath() + " doesn't seem to be UTF-8 encoded...");
-				// Try ISO-8859-15
-				try {
-					br.close();
-				} catch (IOException exc) {
-					e.printStackTrace();
-				}
-				return readFile(path, "ISO-8859-15");
+			if (!charset.equals(StandardCharsets.UTF_8) || file.getBomCharset() != null){
+				printer.gamePrint(Printer.RED + "Couldn't find a suitable decoder for " + path.getAbsolutePath());
+				return null;
 			}
-			printer.gamePrint(Printer.RED + "Couldn't find a suitable decoder for " + path.getAbsolutePath());
-			return null;
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-			printer.gamePrint(Printer.RED + "Error reading file! " + path.getAbsolutePath());
-			return null;
-		} 
-		finally {
+			printer.gamePrint(Printer.DARK_GRAY + path.getAbsolutePath() + " doesn't seem to be UTF-8 encoded...");
 			try {
-				br.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+				text = file.decode(TextFileDecoder.FALLBACK_CHARSET);
+			}
+			catch (CharacterCodingException exc){
+				printer.gamePrint(Printer.RED + "Couldn't find a suitable decoder for " + path.getAbsolutePath());
+				return null;
+			}
+		}
+		return text;
+	}
+	
+	
+	/**
+	 * Splits text into lines the same way BufferedReader.readLine() does
+	 */
+	private static List<String> splitLines(String text){
+		List<String> out = new ArrayList<>();
+		int len = text.length();
+		int lineStart = 0;
+		for (int i=0; i<len; i++){
+			char c = text.charAt(i);
+			if (c == '\n' || c == '\r'){
+				out.add(text.substring(lineStart, i));
+				if (c == '\r' && i < len-1 && text.charAt(i+1) == '\n'){
+					i++;
+				}
+				lineStart = i+1;
 			}
 		}
+		if (lineStart < len){
+			out.add(text.substring(lineStart));
+		}
 		return out;
 	}
 	
+	
 	/**
-	 * Loads a bookworm book from filePath into the clipboard
+	 * Loads a bookworm book from filePath into the clipboard. If the file is an archive of several books, this loads
+	 * the first one (see BookwormIndex).
 	 */
-	private boolean loadBookwormBook(File filePath){
-		List<String> f = readFile(filePath);
-		
+	boolean loadBookwormBook(File filePath, FontMetrics metrics){
+		BookwormIndex index;
+		try {
+			index = BookwormIndex.load(filePath);
+		} catch (FileNotFoundException e) {
+			printer.gamePrint(Printer.RED + "File not found! " + filePath.getAbsolutePath());
+			return false;
+		} catch (IOException e) {
+			this.printStackTrace(e);
+			printer.gamePrint(Printer.RED + "Error reading file! " + filePath.getAbsolutePath());
+			return false;
+		}
+		if (index == null){
+			// It can't be indexed (e.g. it's UTF-16), so it has to be read in one go
+			List<String> f = readFile(filePath);
+			return f != null && this.loadBookwormLines(f, filePath, metrics);
+		}
+		if (index.getBooks().isEmpty()){
+			return false;
+		}
+		return this.loadBookwormBook(filePath, index.getBooks().get(0), metrics);
+	}
+	
+	
+	/**
+	 * Loads one book from a Bookworm archive, without reading any of the others
+	 */
+	public boolean loadBookwormBook(File archive, BookwormIndex.Book book, FontMetrics metrics){
+		String text;
+		try {
+			ByteBuffer bytes = BookwormIndex.readBook(archive, book);
+			try {
+				text = StandardCharsets.UTF_8.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPORT)
+						.onUnmappableCharacter(CodingErrorAction.REPORT)
+						.decode(bytes.duplicate()).toString();
+			}
+			catch (CharacterCodingException e){
+				text = TextFileDecoder.FALLBACK_CHARSET.decode(bytes).toString();
+			}
+		} catch (IOException e) {
+			this.printStackTrace(e);
+			printer.gamePrint(Printer.RED + "Error reading file! " + archive.getAbsolutePath());
+			return false;
+		}
+		return this.loadBookwormLines(splitLines(text), archive, metrics);
+	}
+	
+	
+	private boolean loadBookwormLines(List<String> f, File filePath, FontMetrics metrics){
 		/*
 		Bookworm format:
 		
@@ -190,10 +336,11 @@ public class FileHandler {
 			
 			//split the book string anywhere there are two or more double colons
 			String[] largePages = bookText.split("(\\s::){2,}");
+			List<String> chunks = new ArrayList<>();
 			for (String largePage : largePages){
-				largePage = largePage.replaceAll("\\s*::\\s*", "\n  ");
-				this.clipboard.pages.addAll(BookUtilities.stringToPages(largePage));
+				chunks.add(largePage.replaceAll("\\s*::\\s*", "\n  "));
 			}
+			this.clipboard.pages.addAll(BookUtilities.chunksToPages(chunks, metrics, false));
 			
 			this.clipboard.bookInClipboard = true;
 			this.lastLoadedBook = filePath;
@@ -204,96 +351,401 @@ public class FileHandler {
 	
 	
 	public boolean writeFile(List<String> toWrite, File filePath){
-		boolean failedFlag = false;
-		
-		//Create directory if it doesn't exist
-		File path = filePath.getParentFile();
-		if (!path.exists()){
-			if (!path.mkdirs()){
-				failedFlag = true;
+		if (writeFileAtomically(filePath, stream -> {
+			Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+			for (String s : toWrite){
+				out.write(s);
+				out.write('\n');
 			}
+			out.flush();
+		})){
+			return true;
 		}
-		
-		//Write file
-		if (!failedFlag){
+		printer.gamePrint(Printer.RED + "WRITING TO DISK FAILED!");
+		return false;
+	}
+	
+	
+	interface FileContents {
+		void writeTo(OutputStream out) throws IOException;
+	}
+	
+	
+	/**
+	 * Writes a file so that it's either completely replaced or not touched at all, even if the game crashes halfway
+	 * through. The new contents go into a temp file next to it, which is flushed to the disk and then moved over
+	 * the original in one go.
+	 * @return False if it couldn't be written, in which case the original file is left as it was
+	 */
+	static boolean writeFileAtomically(File filePath, FileContents contents){
+		//Create directory if it doesn't exist
+		File dir = filePath.getAbsoluteFile().getParentFile();
+		if (!dir.exists() && !dir.mkdirs()){
+			LOG.error("Ghostwriter: Couldn't create " + dir);
+			return false;
+		}
+		// Each file is only ever written from one thread (e.g. the save thread), so the name doesn't need to be unique
+		Path temp = new File(dir, "." + filePath.getName() + ".tmp").toPath();
+		boolean moved = false;
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+				OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+				contents.writeTo(out);
+				out.flush();
+				channel.force(true);
+			}
 			try {
-				Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filePath), StandardCharsets.UTF_8));
-				try{
-					for (String s : toWrite){
-						out.write(s + '\n');
-					}
-				}
-				catch (IOException e){
-					LOG.error("Ghostwriter: Write failed!");
-					LOG.error(e.getMessage());
-					return false;
-				}
-				finally{
-					out.close();
+				Files.move(temp, filePath.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, filePath.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			moved = true;
+			return true;
+		}
+		catch (IOException | RuntimeException e) {
+			// A bug in whatever's writing the contents is reported the same as a disk error, rather than being lost in
+			// a future that nobody looks at
+			LOG.error("Ghostwriter: Write failed!", e);
+			return false;
+		}
+		finally {
+			if (!moved){
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException e2) {
+					LOG.error("Ghostwriter: Couldn't delete " + temp, e2);
 				}
-			} 
-			catch (IOException e) {
-				LOG.error("Ghostwriter: Write failed!");
-				LOG.error(e.getMessage());
-				return false;
 			}
 		}
-		
-		if (failedFlag){
-			printer.gamePrint(Printer.RED + "WRITING TO DISK FAILED!");
+	}
+	
+	
+	public boolean loadBook(File filePath){
+		return loadBook(filePath, GlyphWidthTable.get());
+	}
+	
+	
+	/**
+	 * Loads a book on a background thread, so big files don't freeze the game while they're read and paginated.
+	 * This has to be called on the client thread, since that's where the font is measured for the background thread
+	 * to use. The future completes on the background thread with a new clipboard (which doesn't have a book in it if
+	 * the file wasn't a valid book), and it can be cancelled if the result isn't wanted any more.
+	 * This FileHandler isn't touched by the load, so it's fine to keep using it in the meantime.
+	 */
+	public CompletableFuture<Clipboard> loadBookAsync(File filePath){
+		return this.loadAsync((handler, metrics) -> handler.loadBook(filePath, metrics));
+	}
+	
+	
+	/**
+	 * Loads one book from a Bookworm archive in the background, the same way as loadBookAsync()
+	 */
+	public CompletableFuture<Clipboard> loadBookwormBookAsync(File archive, BookwormIndex.Book book){
+		return this.loadAsync((handler, metrics) -> handler.loadBookwormBook(archive, book, metrics));
+	}
+	
+	
+	private interface BookLoader {
+		boolean load(FileHandler handler, FontMetrics metrics);
+	}
+	
+	
+	private CompletableFuture<Clipboard> loadAsync(BookLoader loader){
+		FontMetrics metrics = GlyphWidthTable.get().snapshot();
+		return CompletableFuture.supplyAsync(() -> {
+			Clipboard book = new Clipboard();
+			loader.load(new FileHandler(book, this.defaultPath), metrics);
+			return book;
+		}, LOAD_EXECUTOR);
+	}
+	
+	
+	/**
+	 * Repeat loads of a file that hasn't changed come from the BookCache.
+	 * @param metrics Glyph widths used to lay out the pages. Use a snapshot if this isn't called on the client thread.
+	 */
+	public boolean loadBook(File filePath, FontMetrics metrics){
+		// GWB and GHM books are stored already laid out, so they're the same whatever the font
+		boolean paginated = !filePath.getName().endsWith(".gwb") && !PageStore.isManifest(filePath);
+		BookCache.Key key = BookCache.keyFor(filePath, paginated ? metrics.snapshot() : null);
+		if (key != null && BookCache.get().load(key, this.clipboard)){
+			LOG.debug("Loaded " + filePath + " from the book cache");
+			this.loadedFromCache(filePath);
+			return true;
+		}
+		if (!this.readBook(filePath, metrics)){
 			return false;
-		}		
+		}
+		if (key != null){
+			BookCache.get().put(key, filePath, this.clipboard);
+		}
 		return true;
 	}
 	
 	
-	public boolean loadBook(File filePath){
+	/**
+	 * Loads a book from contents that have already been read from filePath (e.g. by AutoReload, which hashes them to
+	 * see if the file has really changed), so a .ghb or plain text file isn't read a second time. Other formats, and
+	 * Bookworm books, are still read from the file. This doesn't go through the BookCache.
+	 * @param contents Has to stay valid while the book's loaded, so it can't be one that the TextFileDecoder.read()
+	 *                 buffer could be reused for (see TextFileDecoder.readUnshared())
+	 */
+	public boolean loadBook(File filePath, TextFileDecoder contents, FontMetrics metrics){
+		if (filePath.getName().endsWith(".txt")){
+			this.logLoading("Trying to load .txt as bookworm book...");
+			if (loadBookwormBook(filePath, metrics)){return true;}
+			this.logLoading("Trying to load .txt as regular text file...");
+			return loadPlainText(filePath, contents, metrics);
+		}
+		if (filePath.getName().endsWith(".ghb")){
+			this.logLoading("Loading GHB book..." + filePath);
+			return this.loadGHBText(filePath, this.decodeText(filePath, contents, "UTF-8"), metrics);
+		}
+		return this.readBook(filePath, metrics);
+	}
+	
+	
+	/**
+	 * Does what loading the file itself would have done besides filling the clipboard
+	 */
+	private void loadedFromCache(File filePath){
+		if (PageStore.isManifest(filePath)){
+			// Keeps its pages, the same as loadBookFromGHMFile() does
+			try {
+				this.getPageStore().register(filePath, PageStore.readManifest(filePath));
+			} catch (IOException e) {
+				LOG.warn("Couldn't register " + filePath + " with the page store", e);
+			}
+		}
+		if (!filePath.equals(this.lastLoadedBook)){
+			// The pages kept for reloading belong to another file
+			this.lastLoadedGHBText = null;
+		}
+		this.lastLoadedBook = filePath;
+	}
+	
+	
+	/**
+	 * Loads a book straight from the file, without the BookCache. For background work that goes through every book
+	 * once (e.g. indexing), where caching them would only push out the books the player actually opens.
+	 */
+	public boolean loadBookUncached(File filePath, FontMetrics metrics){
+		return this.readBook(filePath, metrics);
+	}
+	
+	
+	private boolean readBook(File filePath, FontMetrics metrics){
 		// Handle bookwork books in .txt files
 		if (filePath.getName().endsWith(".txt")){
-			LOG.info("Trying to load .txt as bookworm book...");
-			if (loadBookwormBook(filePath)){return true;}
-			LOG.info("Trying to load .txt as regular text file...");
-			if (loadPlainText(filePath)){return true;}
+			this.logLoading("Trying to load .txt as bookworm book...");
+			if (loadBookwormBook(filePath, metrics)){return true;}
+			this.logLoading("Trying to load .txt as regular text file...");
+			if (loadPlainText(filePath, metrics)){return true;}
+		}
+		//Handle Ghostwriter books saved in the page store
+		if (PageStore.isManifest(filePath)){
+			this.logLoading("Loading GHM book..." + filePath);
+			return loadBookFromGHMFile(filePath);
+		}
+		//Handle Ghostwriter books in the binary format
+		if (filePath.getName().endsWith(".gwb")){
+			this.logLoading("Loading GWB book..." + filePath);
+			return loadBookFromGWBFile(filePath);
 		}
 		//Handle Ghostwriter books in .ghb
 		if (filePath.getName().endsWith(".ghb")){
-			LOG.info("Loading GHB book..." + filePath);
-			return loadBookFromGHBFile(filePath);
+			this.logLoading("Loading GHB book..." + filePath);
+			return loadBookFromGHBFile(filePath, metrics);
 		}
 		//This was not a valid book
 		return false;
 	}
 	
 	
+	private void logLoading(String message){
+		if (this.quiet){
+			LOG.debug(message);
+		}
+		else{
+			LOG.info(message);
+		}
+	}
+	
+	
+	private void printStackTrace(Exception e){
+		if (this.quiet){
+			LOG.debug("Couldn't load a book", e);
+		}
+		else{
+			e.printStackTrace();
+		}
+	}
+	
+	
+	public boolean loadPlainText(File filePath){
+		return loadPlainText(filePath, GlyphWidthTable.get());
+	}
+	
+	
 	/**
-	 * Removes Java-style comments, whitespace preceding linebreak and pagebreak symbols, and newline characters (\n)
+	 * Paginates the file as it's decoded, so we never hold more than a page or so of the decoded text in memory
 	 */
-	public static String cleanGHBString(String strIn){
-		//Remove single-line comments
-		strIn = strIn.replaceAll("(?s)//.*?((\\n)|(\\r\\n)|(\\Z))","\n");
-		//Remove multi-line comments
-		strIn = strIn.replaceAll("(?s)((/\\*).*?((\\*/)|(\\Z)))|(((/\\*)|(\\A)).*?(\\*/))", "");
-		//remove whitespace preceding linebreak and pagebreak characters
-		strIn = strIn.replaceAll("[\\t\\r\\n ]+(##|>>>>)", "$1");
-		//remove newline and carriage return characters
-		strIn = strIn.replaceAll("[\\r\\n]", "");
-		return strIn;
+	public boolean loadPlainText(File filePath, FontMetrics metrics){
+		if (filePath.length() == 0){
+			//There's nothing to load (or the file doesn't exist)
+			return false;
+		}
+		TextFileDecoder file;
+		try {
+			file = TextFileDecoder.read(filePath);
+		}
+		catch (FileNotFoundException e){
+			printer.gamePrint(Printer.RED + "File not found! " + filePath.getAbsolutePath());
+			return false;
+		}
+		catch (IOException e){
+			this.printStackTrace(e);
+			printer.gamePrint(Printer.RED + "Error reading file! " + filePath.getAbsolutePath());
+			return false;
+		}
+		return this.loadPlainText(filePath, file, metrics);
 	}
 	
 	
-	public boolean loadPlainText(File filePath){
+	private boolean loadPlainText(File filePath, TextFileDecoder file, FontMetrics metrics){
+		if (file.isEmpty()){
+			//There's nothing to load
+			return false;
+		}
+		Charset charset = file.getCharset(StandardCharsets.UTF_8);
 		Clipboard book = new Clipboard();
-		List<String> rawFile = readFile(filePath);
-		if (rawFile == null || rawFile.isEmpty()){
-			//File was not read successfully
+		try {
+			paginatePlainText(file, charset, metrics, book);
+		}
+		catch (UncheckedIOException e){
+			if (!(e.getCause() instanceof CharacterCodingException) || file.getBomCharset() != null){
+				this.printStackTrace(e);
+				printer.gamePrint(Printer.RED + "Error reading file! " + filePath.getAbsolutePath());
+				return false;
+			}
+			// The bytes are already in memory, so trying another encoding doesn't mean reading the file again
+			printer.gamePrint(Printer.DARK_GRAY + filePath.getAbsolutePath() + " doesn't seem to be UTF-8 encoded...");
+			book.clearBook();
+			try {
+				paginatePlainText(file, TextFileDecoder.FALLBACK_CHARSET, metrics, book);
+			}
+			catch (UncheckedIOException exc){
+				this.printStackTrace(exc);
+				printer.gamePrint(Printer.RED + "Couldn't find a suitable decoder for " + filePath.getAbsolutePath());
+				return false;
+			}
+		}
+		book.bookInClipboard = true;
+		this.clipboard.clone(book);
+		this.lastLoadedBook = filePath;
+		return true;
+	}
+	
+	
+	private static void paginatePlainText(TextFileDecoder file, Charset charset, FontMetrics metrics, Clipboard book){
+		Paginator pages = new Paginator(new LineTerminatingReader(file.openReader(charset)), ">>>><<<<>>>><<<<", metrics);
+		while (pages.hasNext()){
+			book.pages.add(pages.next());
+		}
+	}
+	
+	
+	/**
+	 * Adds a \n to the end of the text if the last line doesn't have one. Plain text files used to be read line by
+	 * line, with a \n added after every line, and this keeps the pages the same as they were then. In particular, a
+	 * last page with a single character on it isn't dropped, since the \n makes it long enough to count as a page.
+	 */
+	private static class LineTerminatingReader extends Reader {
+		private final Reader in;
+		private int last = -1;
+		private boolean terminated = false;
+		
+		
+		private LineTerminatingReader(Reader _in){
+			this.in = _in;
+		}
+		
+		
+		@Override
+		public int read(char[] buf, int off, int len) throws IOException {
+			if (len == 0){
+				return 0;
+			}
+			int count = this.in.read(buf, off, len);
+			if (count > 0){
+				this.last = buf[off + count - 1];
+				return count;
+			}
+			if (this.terminated || this.last < 0 || this.last == '\n' || this.last == '\r'){
+				return -1;
+			}
+			this.terminated = true;
+			buf[off] = '\n';
+			return 1;
+		}
+		
+		
+		@Override
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+	
+	
+	/**
+	 * Loads a book saved in the binary format. The pages are stored exactly as they were, so nothing needs to be laid
+	 * out again (and the font doesn't matter).
+	 */
+	public boolean loadBookFromGWBFile(File filePath){
+		Clipboard book = new Clipboard();
+		try {
+			GwbBook gwb = GwbBook.open(filePath);
+			book.title = gwb.getTitle();
+			book.author = gwb.getAuthor();
+			for (int i=0; i<gwb.getPageCount(); i++){
+				book.pages.add(gwb.getPage(i));
+			}
+		} catch (FileNotFoundException e) {
+			printer.gamePrint(Printer.RED + "File not found! " + filePath.getAbsolutePath());
+			return false;
+		} catch (IOException e) {
+			LOG.error("Couldn't read GWB book " + filePath, e);
+			printer.gamePrint(Printer.RED + "Error reading file! " + filePath.getAbsolutePath());
 			return false;
 		}
-		//Remove comments and anything else that can't be stored in a Minecraft book
-		StringBuilder concatFile = new StringBuilder();
-		for (String line : rawFile){
-			concatFile.append(line).append("\n");
+		book.bookInClipboard = true;
+		this.clipboard.clone(book);
+		this.lastLoadedBook = filePath;
+		return true;
+	}
+	
+	
+	/**
+	 * Loads a book that was saved as a manifest, with its pages coming from the page store. Like GWB, the pages are
+	 * stored exactly as they were.
+	 */
+	public boolean loadBookFromGHMFile(File filePath){
+		Clipboard book = new Clipboard();
+		try {
+			PageStore.Manifest manifest = PageStore.readManifest(filePath);
+			PageStore store = this.getPageStore();
+			book.title = manifest.title;
+			book.author = manifest.author;
+			book.pages.addAll(store.readPages(manifest.pages));
+			store.register(filePath, manifest);
+		} catch (FileNotFoundException e) {
+			printer.gamePrint(Printer.RED + "File not found! " + filePath.getAbsolutePath());
+			return false;
+		} catch (IOException e) {
+			LOG.error("Couldn't read GHM book " + filePath, e);
+			printer.gamePrint(Printer.RED + "Error reading file! " + filePath.getAbsolutePath());
+			return false;
 		}
-		book.pages.addAll(BookUtilities.stringWithPageBreaksToPages(concatFile.toString(), ">>>><<<<>>>><<<<"));
 		book.bookInClipboard = true;
 		this.clipboard.clone(book);
 		this.lastLoadedBook = filePath;
@@ -302,41 +754,40 @@ public class FileHandler {
 	
 	
 	public boolean loadBookFromGHBFile(File filePath){
+		return loadBookFromGHBFile(filePath, GlyphWidthTable.get());
+	}
+	
+	
+	public boolean loadBookFromGHBFile(File filePath, FontMetrics metrics){
+		return this.loadGHBText(filePath, readText(filePath, "UTF-8"), metrics);
+	}
+	
+	
+	/**
+	 * @param rawFile The contents of the file, or null if it couldn't be read
+	 */
+	private boolean loadGHBText(File filePath, String rawFile, FontMetrics metrics){
 		Clipboard book = new Clipboard();
-		List<String> rawFile = readFile(filePath);
 		if (rawFile == null || rawFile.isEmpty()){
 			//File was not read successfully
 			return false;
 		}
-		//Remove comments and anything else that can't be stored in a Minecraft book
-		StringBuilder concatFile = new StringBuilder();
-		for (String line : rawFile){
-			if (line.toLowerCase().startsWith("title:") && book.title.isEmpty()){
-				if (line.length() >= 7) {
-					book.title = cleanGHBString(line.substring(6)).trim();
-					if (line.contains("/*")) {
-						concatFile.append(line.substring(line.indexOf("/*"))).append("\\n");
-					}
-				}
-			}
-			else if (line.toLowerCase().startsWith("author:") && book.author.isEmpty()){
-				if (line.length() >= 8){
-					book.author = cleanGHBString(line.substring(7)).trim();
-					if (line.contains("/*")){
-						concatFile.append(line.substring(line.indexOf("/*"))).append("\\n");
-					}
-				}
-			}
-			else{
-				concatFile.append(line).append("\n");
-			}
+		if (rawFile.indexOf('\r') >= 0){
+			//The tokenizer only knows about \n line endings
+			rawFile = rawFile.replace("\r\n", "\n").replace('\r', '\n');
 		}
-		String concatFileStr = cleanGHBString(concatFile.toString());
+		//Remove comments and anything else that can't be stored in a Minecraft book, pick out the title and author,
+		//  and convert all the linebreak characters (##) to newline characters (\n)
+		GhbTokenizer ghb = new GhbTokenizer(rawFile);
+		book.title = ghb.getTitle();
+		book.author = ghb.getAuthor();
 		
-		//convert all the linebreak characters (##) to newline characters (\n) and split into pages
-		concatFileStr = concatFileStr.replaceAll("##", "\\\n");
-
-		book.pages.addAll(BookUtilities.stringWithPageBreaksToPages(concatFileStr, ">>>>"));
+		//Split into pages, reusing the pages from last time if this is the same file being reloaded
+		if (this.lastLoadedGHBText == null || !filePath.equals(this.lastLoadedBook) || this.lastLoadedGHBText.getMetrics() != metrics){
+			this.lastLoadedGHBText = new PaginatedText(GhbTokenizer.PAGE_BREAK, metrics);
+		}
+		this.lastLoadedGHBText.setText(ghb.getBody());
+		book.pages.addAll(this.lastLoadedGHBText.getPages());
 		book.bookInClipboard = true;
 		this.clipboard.clone(book);
 		this.lastLoadedBook = filePath;
@@ -344,41 +795,102 @@ public class FileHandler {
 	}
 	
 	
-	public boolean saveBookToGHBFile(String title, String author, List<String> pages, File savePath){
+	/**
+	 * Saves a book on a background thread, so big books don't freeze the game. Has to be called on the client thread.
+	 * The pages are copied first, so the book can carry on being edited straight away. The result is reported in
+	 * chat when the save is done, and the future completes with whether it worked.
+	 * If savePath ends in .gwb, the book's saved in the binary format (see GwbBook) instead of as GHB. If it ends in
+	 * .ghm, the pages go into the page store and only a manifest of them is saved (see PageStore).
+	 */
+	public CompletableFuture<Boolean> saveBookToGHBFile(String title, String author, List<String> pages, File savePath){
 		printer.gamePrint(Printer.GRAY + "Saving book to file...");
-		List<String> toWrite = new ArrayList<>();
-		toWrite.add("//Book saved in GHB format at " + this.getUTC());
-		if (!title.isEmpty()){toWrite.add("title:" + title);}
-		if (!author.isEmpty()){toWrite.add("author:" + author);}
-		toWrite.add("//=======================================");
-		for (int i=0; i<pages.size(); i++){
-			String pageAsString = pages.get(i);
-			//Strip the bizarre quote marks from the start and end of the string
-			while (pageAsString.startsWith("\"") && pageAsString.endsWith("\"")){
-				pageAsString = pageAsString.substring(1, pageAsString.length()-1);
+		List<String> pagesToSave = new ArrayList<>(pages);
+		String utc = this.getUTC();
+		FontMetrics metrics = GlyphWidthTable.get().snapshot();
+		LibraryIndex library = LibraryIndex.get(this.bookSavePath);
+		SearchIndex search = SearchIndex.get(this.bookSavePath);
+		PageStore store = this.getPageStore();
+		return CompletableFuture.supplyAsync(() -> {
+			boolean saved;
+			if (PageStore.isManifest(savePath)){
+				saved = saveBookToPageStore(store, title, author, normalizePages(pagesToSave), savePath);
+			}
+			else if (savePath.getName().endsWith(".gwb")){
+				saved = writeFileAtomically(savePath, out -> GwbBook.write(out, title, author, normalizePages(pagesToSave)));
+			}
+			else{
+				saved = writeFileAtomically(savePath, stream -> {
+					Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+					writeGHB(out, utc, title, author, pagesToSave, metrics);
+					out.flush();
+				});
+			}
+			if (saved){
+				printer.gamePrint(Printer.GREEN + "Book saved to: " + savePath);
+				// Has to be done on the client thread, so it can measure the font
+				Minecraft.getInstance().execute(() -> {
+					library.updateAsync(savePath);
+					search.updateAsync(savePath);
+				});
+				return true;
+			}
+			else{
+				printer.gamePrint(Printer.RED + "WRITING BOOK TO DISK FAILED!");
+				return false;
 			}
-			// Strip 
-			//convert all escaped newline characters to real newline characters
-			pageAsString = pageAsString.replaceAll("\\\\n", "\\\n");
+		}, SAVE_EXECUTOR);
+	}
+	
+	
+	private static boolean saveBookToPageStore(PageStore store, String title, String author, List<String> pages, File savePath){
+		try {
+			store.saveBook(savePath, title, author, pages);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			LOG.error("Couldn't save " + savePath + " to the page store", e);
+			return false;
+		}
+	}
+	
+	
+	private static String normalizePage(String pageAsString){
+		//Strip the bizarre quote marks from the start and end of the string
+		while (pageAsString.startsWith("\"") && pageAsString.endsWith("\"")){
+			pageAsString = pageAsString.substring(1, pageAsString.length()-1);
+		}
+		//convert all escaped newline characters to real newline characters
+		return pageAsString.replace("\\n", "\n");
+	}
+	
+	
+	private static List<String> normalizePages(List<String> pages){
+		List<String> out = new ArrayList<>(pages.size());
+		for (String page : pages){
+			out.add(normalizePage(page));
+		}
+		return out;
+	}
+	
+	
+	static void writeGHB(Writer out, String utc, String title, String author, List<String> pages, FontMetrics metrics) throws IOException {
+		out.write("//Book saved in GHB format at " + utc + "\n");
+		if (!title.isEmpty()){out.write("title:" + title + "\n");}
+		if (!author.isEmpty()){out.write("author:" + author + "\n");}
+		out.write("//=======================================\n");
+		for (int i=0; i<pages.size(); i++){
+			String pageAsString = normalizePage(pages.get(i));
 			//Split the string into 116 pixel maximum lines
-			List<String> currPage = BookUtilities.splitStringIntoLines(pageAsString);
+			List<String> currPage = BookUtilities.splitStringIntoLines(pageAsString, metrics);
 			// Replace newline characters with double hashes and add the double hashes to the end of each line
 			for (String line : currPage){
-				toWrite.add(line.replaceAll("\\n", "##") + "##");
+				out.write(line.replace("\n", "##"));
+				out.write("##\n");
 			}
 			//Add pagebreaks
 			if (i < pages.size()-1){
-				toWrite.add(">>>>");
+				out.write(">>>>\n");
 			}
 		}
-		if (writeFile(toWrite, savePath)){
-			printer.gamePrint(Printer.GREEN + "Book saved to: " + savePath);
-			return true;
-		}
-		else{
-			printer.gamePrint(Printer.RED + "WRITING BOOK TO DISK FAILED!");
-			return false;
-		}
 	}
 	
 	
@@ -387,10 +899,10 @@ public class FileHandler {
 	 * @param title Book title
 	 * @param author Book author
 	 * @param pages Page content
-	 * @return Success If the book saved successfully
+	 * @return Completes with whether the book saved successfully
 	 */
 	@Deprecated
-	public boolean saveBookToGHBFile(String title, String author, List<String> pages){
+	public CompletableFuture<Boolean> saveBookToGHBFile(String title, String author, List<String> pages){
 		String utcTime = getUTC();
 		title = title.trim().replaceAll(" ", ".").replaceAll("[^a-zA-Z0-9\\.]", "");
 		author = author.trim().replaceAll(" ", ".").replaceAll("[^a-zA-Z0-9\\.]", "");
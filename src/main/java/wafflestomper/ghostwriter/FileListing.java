@@ -0,0 +1,296 @@
+package wafflestomper.ghostwriter;
+
+import java.io.File;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * The contents of a directory, with the attributes of each entry as they were when it was listed.
+ *
+ * Directories can hold tens of thousands of files, so rather than an object per file this keeps parallel arrays of
+ * names, flags, sizes and modification times. A FileEntry is only made for a file when something asks for it (e.g.
+ * a row that's been scrolled into view).
+ */
+public class FileListing {
+	public static final FileListing EMPTY = new FileListing(null, new String[0], new byte[0], new long[0], new long[0]);
+	private static final byte EXISTS = 1;
+	private static final byte DIRECTORY = 2;
+	private static final byte FILE = 4;
+	/** Ignores case, and compares runs of digits by their value, so "Part 2" comes before "Part 10" */
+	public static final Comparator<String> NAME_ORDER = FileListing::compareNames;
+
+	private final File directory;
+	private final String[] names;
+	private final byte[] flags;
+	private final long[] sizes;
+	private final long[] lastModified;
+
+
+	private FileListing(File _directory, String[] _names, byte[] _flags, long[] _sizes, long[] _lastModified){
+		this.directory = _directory;
+		this.names = _names;
+		this.flags = _flags;
+		this.sizes = _sizes;
+		this.lastModified = _lastModified;
+	}
+
+
+	/**
+	 * Collects the entries of a directory, then sorts them into a listing
+	 */
+	public static class Builder {
+		private final File directory;
+		private String[] names = new String[64];
+		private byte[] flags = new byte[64];
+		private long[] sizes = new long[64];
+		private long[] lastModified = new long[64];
+		private int size = 0;
+
+
+		public Builder(File _directory){
+			this.directory = _directory;
+		}
+
+
+		/**
+		 * @param attributes The entry's attributes, or null if they couldn't be read (e.g. it's been deleted since
+		 *                   the directory was listed)
+		 */
+		public void add(String name, BasicFileAttributes attributes){
+			if (this.size == this.names.length){
+				int capacity = this.size * 2;
+				this.names = Arrays.copyOf(this.names, capacity);
+				this.flags = Arrays.copyOf(this.flags, capacity);
+				this.sizes = Arrays.copyOf(this.sizes, capacity);
+				this.lastModified = Arrays.copyOf(this.lastModified, capacity);
+			}
+			this.names[this.size] = name;
+			if (attributes != null){
+				this.flags[this.size] = (byte)(EXISTS | (attributes.isDirectory() ? DIRECTORY : 0) | (attributes.isRegularFile() ? FILE : 0));
+				this.sizes[this.size] = attributes.size();
+				this.lastModified[this.size] = attributes.lastModifiedTime().toMillis();
+			}
+			this.size++;
+		}
+
+
+		/**
+		 * Sorts the entries by name, with directories first
+		 */
+		public FileListing build(){
+			Integer[] order = new Integer[this.size];
+			for (int i=0; i<this.size; i++){
+				order[i] = i;
+			}
+			FileListing unsorted = new FileListing(this.directory, this.names, this.flags, this.sizes, this.lastModified);
+			Arrays.sort(order, (a, b) -> compare(unsorted, a, unsorted, b));
+			return unsorted.permute(order);
+		}
+
+
+		public int size(){
+			return this.size;
+		}
+	}
+
+
+	/**
+	 * Directories first, then by name
+	 */
+	private static int compare(FileListing a, int i, FileListing b, int j){
+		boolean aIsDirectory = a.isDirectory(i);
+		if (aIsDirectory != b.isDirectory(j)){
+			return aIsDirectory ? -1 : 1;
+		}
+		return NAME_ORDER.compare(a.names[i], b.names[j]);
+	}
+
+
+	private static int compareNames(String a, String b){
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()){
+			char ca = a.charAt(i);
+			char cb = b.charAt(j);
+			if (isDigit(ca) && isDigit(cb)){
+				// Leading zeros don't change the value, and then the longer number is the bigger one
+				while (i < a.length() - 1 && a.charAt(i) == '0' && isDigit(a.charAt(i+1))) i++;
+				while (j < b.length() - 1 && b.charAt(j) == '0' && isDigit(b.charAt(j+1))) j++;
+				int aEnd = i;
+				int bEnd = j;
+				while (aEnd < a.length() && isDigit(a.charAt(aEnd))) aEnd++;
+				while (bEnd < b.length() && isDigit(b.charAt(bEnd))) bEnd++;
+				if (aEnd - i != bEnd - j){
+					return (aEnd - i) - (bEnd - j);
+				}
+				for (; i<aEnd; i++, j++){
+					if (a.charAt(i) != b.charAt(j)){
+						return a.charAt(i) - b.charAt(j);
+					}
+				}
+				continue;
+			}
+			if (ca != cb){
+				// The same way String.CASE_INSENSITIVE_ORDER compares characters
+				ca = Character.toLowerCase(Character.toUpperCase(ca));
+				cb = Character.toLowerCase(Character.toUpperCase(cb));
+				if (ca != cb){
+					return ca - cb;
+				}
+			}
+			i++;
+			j++;
+		}
+		if (i < a.length() || j < b.length()){
+			return i < a.length() ? 1 : -1;
+		}
+		// Only differ by case or leading zeros, so fall back to something that never says two different names are equal
+		return a.compareTo(b);
+	}
+
+
+	private static boolean isDigit(char c){
+		return c >= '0' && c <= '9';
+	}
+
+
+	/**
+	 * Merges two listings of the same directory that are both in name order (i.e. made with Builder.build()), so a
+	 * big directory can be sorted a batch at a time as it's listed
+	 */
+	public static FileListing merge(FileListing a, FileListing b){
+		if (a.size() == 0){
+			return b;
+		}
+		if (b.size() == 0){
+			return a;
+		}
+		int size = a.size() + b.size();
+		String[] names = new String[size];
+		byte[] flags = new byte[size];
+		long[] sizes = new long[size];
+		long[] lastModified = new long[size];
+		int i = 0;
+		int j = 0;
+		for (int k=0; k<size; k++){
+			FileListing from;
+			int index;
+			if (j == b.size() || (i < a.size() && compare(a, i, b, j) <= 0)){
+				from = a;
+				index = i++;
+			}
+			else{
+				from = b;
+				index = j++;
+			}
+			names[k] = from.names[index];
+			flags[k] = from.flags[index];
+			sizes[k] = from.sizes[index];
+			lastModified[k] = from.lastModified[index];
+		}
+		return new FileListing(a.directory, names, flags, sizes, lastModified);
+	}
+
+
+	private FileListing permute(Integer[] order){
+		String[] newNames = new String[order.length];
+		byte[] newFlags = new byte[order.length];
+		long[] newSizes = new long[order.length];
+		long[] newLastModified = new long[order.length];
+		for (int i=0; i<order.length; i++){
+			newNames[i] = this.names[order[i]];
+			newFlags[i] = this.flags[order[i]];
+			newSizes[i] = this.sizes[order[i]];
+			newLastModified[i] = this.lastModified[order[i]];
+		}
+		return new FileListing(this.directory, newNames, newFlags, newSizes, newLastModified);
+	}
+
+
+	/**
+	 * Sorts a copy of the listing by a key that's worked out once for each entry's FileEntry, rather than every time
+	 * two entries are compared (e.g. something that has to be looked up). This isn't meant for sorting by name, which
+	 * listings already are.
+	 */
+	public <K> FileListing sorted(Function<FileEntry, K> keyOf, Comparator<? super K> comparator){
+		List<K> keys = new ArrayList<>(this.size());
+		Integer[] order = new Integer[this.size()];
+		for (int i=0; i<order.length; i++){
+			keys.add(keyOf.apply(this.getEntry(i)));
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> comparator.compare(keys.get(a), keys.get(b)));
+		return this.permute(order);
+	}
+
+
+	public int size(){
+		return this.names.length;
+	}
+
+
+	/**
+	 * @return The directory that was listed, or null for EMPTY
+	 */
+	public File getDirectory(){
+		return this.directory;
+	}
+
+
+	public String getName(int index){
+		return this.names[index];
+	}
+
+
+	public File getPath(int index){
+		return new File(this.directory, this.names[index]);
+	}
+
+
+	public boolean exists(int index){
+		return (this.flags[index] & EXISTS) != 0;
+	}
+
+
+	public boolean isDirectory(int index){
+		return (this.flags[index] & DIRECTORY) != 0;
+	}
+
+
+	public boolean isFile(int index){
+		return (this.flags[index] & FILE) != 0;
+	}
+
+
+	public long getSize(int index){
+		return this.sizes[index];
+	}
+
+
+	public long getLastModified(int index){
+		return this.lastModified[index];
+	}
+
+
+	public FileEntry getEntry(int index){
+		return new FileEntry(this.getPath(index), this.exists(index), this.isDirectory(index), this.isFile(index),
+				this.sizes[index], this.lastModified[index]);
+	}
+
+
+	/**
+	 * @return The index of the entry with this name, or -1 if there isn't one
+	 */
+	public int indexOf(String name){
+		for (int i=0; i<this.names.length; i++){
+			if (this.names[i].equals(name)){
+				return i;
+			}
+		}
+		return -1;
+	}
+}
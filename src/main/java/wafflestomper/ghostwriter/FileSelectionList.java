@@ -7,38 +7,241 @@ import net.minecraft.client.gui.widget.list.ExtendedList;
 import net.minecraft.util.Util;
 import net.minecraftforge.api.distmarker.Dist;
 import net.minecraftforge.api.distmarker.OnlyIn;
+import org.lwjgl.glfw.GLFW;
 
 import java.io.File;
+import java.util.AbstractList;
 import java.util.List;
 
 /**
  * Based loosely on ServerSelectionList in 1.14
  *
+ * Directories are listed virtually: the listing is kept as a FileListing, and there's only a small pool of
+ * PathItemEntry rows, which are bound to whichever files are on screen as they're drawn. The list's entries are the
+ * same few rows over and over (row i is rowPool[i % rowPool.size()]), which is fine as long as there are more of them
+ * than can be on screen at once, since no two visible rows ever share one. The selected file is kept separately, and
+ * has a row of its own that takes its place in the list, so it's the only row that's ever highlighted.
  */
 public class FileSelectionList extends ExtendedList<FileSelectionList.Entry> {
 
 	private final FileSelectionList.ParentDirEntry parentDir;
-	private final List<FileSelectionList.PathItemEntry> fileList = Lists.newArrayList();
+	private final List<FileSelectionList.PathItemEntry> rowPool = Lists.newArrayList();
+	/** Always bound to the selected file, and never one of the pooled rows */
+	private final FileSelectionList.PathItemEntry selectedRow;
 	private final GhostwriterFileBrowserScreen owner;
+	/** The directory that's being listed, or null if the list is showing something else (e.g. an archive's books) */
+	private FileListing listing;
+	/** The selected file while a directory's being listed, or null if there isn't one */
+	private FileEntry selectedFile;
+	/** Where the selected file is in the listing, or -1 if there isn't one */
+	private int selectedIndex = -1;
+	/** The file in the listing that was clicked last, and when. Kept here since rows are swapped as they're selected. */
+	private int lastClickIndex = -1;
+	private long lastClickTime;
 	
 	
 	public FileSelectionList(GhostwriterFileBrowserScreen ownerIn, Minecraft mcIn, int widthIn, int heightIn, int topIn, int bottomIn, int slotHeightIn) {
 		super(mcIn, widthIn, heightIn, topIn, bottomIn, slotHeightIn);
 		this.owner = ownerIn;
 		this.parentDir = new FileSelectionList.ParentDirEntry(this.owner);
+		this.selectedRow = new FileSelectionList.PathItemEntry(this.owner);
 	}
 	
 	
-	public void updateFileList(List<File> displayFiles) {
-		this.fileList.clear();
-		for (File f : displayFiles) {
-			this.fileList.add(new PathItemEntry(this.owner, f));
+	public void updateFileList(FileListing displayFiles) {
+		// Keep the same file selected when the list is refreshed
+		String selectedName = this.selectedFile == null ? null : this.selectedFile.getName();
+		this.listing = displayFiles;
+		this.selectedFile = null;
+		this.selectedIndex = -1;
+		this.lastClickIndex = -1;
+		int poolSize = this.height / this.itemHeight + 4;
+		while (this.rowPool.size() < poolSize) {
+			this.rowPool.add(new PathItemEntry(this.owner));
 		}
-		// This is required to have the slots render... I think?
+		for (PathItemEntry row : this.rowPool) {
+			row.unbind();
+		}
+		this.selectedRow.unbind();
+		// Only copies references to the pooled rows, so it's quick however many files there are
+		this.replaceEntries(new PooledRows(displayFiles.size() + 1));
+		int index = selectedName == null ? -1 : displayFiles.indexOf(selectedName);
+		this.setSelected(index >= 0 ? this.getRow(index + 1) : null);
+	}
+	
+	
+	/**
+	 * The pooled row that's used for a file in the listing, when it isn't the selected one
+	 */
+	private PathItemEntry getPooledRow(int index) {
+		return this.rowPool.get(index % this.rowPool.size());
+	}
+	
+	
+	/**
+	 * Binds a pooled row to a file in the listing, so it can be selected before it's been drawn
+	 */
+	private Entry getRow(int row) {
+		if (row == 0) {
+			return this.parentDir;
+		}
+		PathItemEntry entry = this.getPooledRow(row - 1);
+		entry.bind(row - 1);
+		return entry;
+	}
+	
+	
+	@Override
+	public void setSelected(Entry entry) {
+		if (this.listing != null) {
+			this.selectFile(entry instanceof PathItemEntry ? ((PathItemEntry)entry).index : -1);
+			if (entry instanceof PathItemEntry) {
+				entry = this.selectedRow;
+			}
+		}
+		super.setSelected(entry);
+	}
+	
+	
+	/**
+	 * Selects a file in the listing, and puts the selected row in its place in the list
+	 * @param index The file's index in the listing, or -1 to select none of them
+	 */
+	private void selectFile(int index) {
+		if (index == this.selectedIndex) {
+			return;
+		}
+		List<Entry> rows = this.getEventListeners();
+		if (this.selectedIndex >= 0) {
+			rows.set(this.selectedIndex + 1, this.getPooledRow(this.selectedIndex));
+		}
+		this.selectedIndex = index;
+		this.selectedFile = index >= 0 ? this.listing.getEntry(index) : null;
+		if (index >= 0) {
+			this.selectedRow.bind(index, this.selectedFile);
+			rows.set(index + 1, this.selectedRow);
+		}
+	}
+	
+	
+	/**
+	 * Records a click on a file in the listing
+	 * @return True if it's the second click on the same file within 250ms
+	 */
+	private boolean clickFile(int index) {
+		long now = Util.milliTime();
+		boolean doubleClick = index == this.lastClickIndex && now - this.lastClickTime < 250L;
+		this.lastClickIndex = index;
+		this.lastClickTime = doubleClick ? 0 : now; // Prevent triple-click
+		return doubleClick;
+	}
+	
+	
+	@Override
+	public void updateSize(int widthIn, int heightIn, int topIn, int bottomIn) {
+		super.updateSize(widthIn, heightIn, topIn, bottomIn);
+		if (this.listing != null && this.rowPool.size() < this.height / this.itemHeight + 4) {
+			// Taller than before, so more rows could be on screen than there are in the pool
+			this.updateFileList(this.listing);
+		}
+	}
+	
+	
+	/**
+	 * The arrow keys are handled here, since the default handling looks the selected entry up in the list, which
+	 * means going through every row
+	 */
+	@Override
+	public boolean keyPressed(int keyCode, int scanCode, int modifiers) {
+		if (this.listing != null && (keyCode == GLFW.GLFW_KEY_DOWN || keyCode == GLFW.GLFW_KEY_UP)) {
+			int row = this.selectedIndex >= 0 ? this.selectedIndex + 1 : (this.getSelected() == this.parentDir ? 0 : -1);
+			row += keyCode == GLFW.GLFW_KEY_DOWN ? 1 : -1;
+			row = Math.max(0, Math.min(this.listing.size(), row));
+			this.scrollToRow(row);
+			this.owner.setSelectedSlot(this.getRow(row));
+			return true;
+		}
+		return super.keyPressed(keyCode, scanCode, modifiers);
+	}
+	
+	
+	private void scrollToRow(int row) {
+		// Rows start 4 pixels below the top of the list
+		int top = row * this.itemHeight;
+		int bottom = top + this.itemHeight + 4;
+		int visible = this.y1 - this.y0;
+		if (top < this.getScrollAmount()) {
+			this.setScrollAmount(top);
+		}
+		else if (bottom > this.getScrollAmount() + visible) {
+			this.setScrollAmount(bottom - visible);
+		}
+	}
+	
+	
+	/**
+	 * The list's entries while a directory's being listed: the parent directory, then a pooled row for each file
+	 */
+	private class PooledRows extends AbstractList<Entry> {
+		private final int size;
+		
+		
+		private PooledRows(int sizeIn) {
+			this.size = sizeIn;
+		}
+		
+		
+		@Override
+		public Entry get(int index) {
+			return index == 0 ? FileSelectionList.this.parentDir : FileSelectionList.this.getPooledRow(index - 1);
+		}
+		
+		
+		@Override
+		public int size() {
+			return this.size;
+		}
+	}
+	
+	
+	/**
+	 * Lists the books in a Bookworm archive instead of the files in a directory
+	 */
+	public void updateBookList(List<BookwormIndex.Book> books) {
+		Entry selected = this.getSelected();
+		BookwormIndex.Book selectedBook = selected instanceof ArchiveBookEntry ? ((ArchiveBookEntry)selected).book : null;
+		this.listing = null;
+		this.selectedFile = null;
+		this.selectedIndex = -1;
 		this.clearEntries();
 		this.addEntry(this.parentDir);
-		for (PathItemEntry n : this.fileList) {
-			this.addEntry(n);
+		for (BookwormIndex.Book book : books) {
+			ArchiveBookEntry entry = new ArchiveBookEntry(this.owner, book);
+			this.addEntry(entry);
+			if (book == selectedBook) {
+				this.setSelected(entry);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Lists the pages that matched a search instead of the files in a directory
+	 */
+	public void updateSearchResults(List<SearchIndex.Hit> hits) {
+		Entry selected = this.getSelected();
+		SearchIndex.Hit selectedHit = selected instanceof SearchHitEntry ? ((SearchHitEntry)selected).hit : null;
+		this.listing = null;
+		this.selectedFile = null;
+		this.selectedIndex = -1;
+		this.clearEntries();
+		this.addEntry(this.parentDir);
+		for (SearchIndex.Hit hit : hits) {
+			SearchHitEntry entry = new SearchHitEntry(this.owner, hit);
+			this.addEntry(entry);
+			if (selectedHit != null && hit.file.equals(selectedHit.file) && hit.page == selectedHit.page) {
+				this.setSelected(entry);
+			}
 		}
 	}
 	
@@ -86,22 +289,60 @@ public class FileSelectionList extends ExtendedList<FileSelectionList.Entry> {
 	}
 
 	
+	/**
+	 * A row that shows whichever file in the listing it's been bound to. Rows are reused as the list's scrolled.
+	 */
 	@OnlyIn(Dist.CLIENT)
 	public class PathItemEntry extends FileSelectionList.Entry {
 		public File path;
-		protected long lastClickTime;
+		/** What the file looked like when the directory was listed, so nothing here has to go to the disk */
+		public FileEntry entry;
+		/** The file's index in the listing, or -1 if the row isn't bound to one */
+		private int index = -1;
 		protected final GhostwriterFileBrowserScreen owner;
 		protected final Minecraft mc;
 		private long hoverStart = System.currentTimeMillis();
+		private TextMeasure nameMeasure;
+		/** The book's details from the library index, looked up again whenever the index changes */
+		private LibraryIndex.Entry book;
+		private int libraryVersion = -1;
+		private TextMeasure bookMeasure;
+		private String bookInfo;
+		private int bookInfoWidth;
+		private int bookInfoSlotWidth;
 
-		public PathItemEntry(GhostwriterFileBrowserScreen ownerIn, File pathIn) {
-			this.path = pathIn;
+		public PathItemEntry(GhostwriterFileBrowserScreen ownerIn) {
 			this.owner = ownerIn;
 			this.mc = Minecraft.getInstance();
 		}
 		
+		private void bind(int indexIn) {
+			if (indexIn != this.index) {
+				this.bind(indexIn, FileSelectionList.this.listing.getEntry(indexIn));
+			}
+		}
+		
+		private void bind(int indexIn, FileEntry entryIn) {
+			if (indexIn == this.index) {
+				// Still showing the same file, since rows are unbound whenever the listing changes
+				return;
+			}
+			this.index = indexIn;
+			this.entry = entryIn;
+			this.path = this.entry.getPath();
+			this.hoverStart = System.currentTimeMillis();
+			this.nameMeasure = null;
+			this.book = null;
+			this.bookInfo = null;
+			this.libraryVersion = -1;
+		}
+		
+		private void unbind() {
+			this.index = -1;
+		}
+		
 		/**
-		 * @param p_render_1_ slot number?
+		 * @param p_render_1_ slot number
 		 * @param p_render_2_ some kind of y... maybe top?
 		 * @param slotX slotX?
 		 * @param slotWidth slotWidth?
@@ -112,29 +353,39 @@ public class FileSelectionList extends ExtendedList<FileSelectionList.Entry> {
 		@Override
 		public void render(MatrixStack matrixStack, int p_render_1_, int p_render_2_, int slotX, int slotWidth, int p_render_5_,
 				int mouseX, int mouseY, boolean mouseIsOver, float tickLengthMaybe) {
-
+			// Row 0 is the parent directory
+			this.bind(p_render_1_ - 1);
 			
 			int color = 0xFFFFFF;
-			if (!path.exists()) { // TODO: do we really need to do do this every render tick?
+			if (!this.entry.exists()) {
 				color = 0x333333;
-				this.owner.setDirectoryDirty();
 			}
-			else if (path.isFile()) {
+			else if (this.entry.isFile()) {
 				color = 0xFF0000;
 			}
-			else if (path.isDirectory()) {
+			else if (this.entry.isDirectory()) {
 				color = 0x00FF00;
 			}
 			
 			// Draw the trimmed filename in the slot
-			// TODO: I think func_238412_a_ is the new trimStringToWidth but I'm not sure
-			String s = this.mc.fontRenderer.func_238412_a_(this.path.getName(), slotWidth);
+			if (this.nameMeasure == null || this.nameMeasure.isStale()){
+				this.nameMeasure = new TextMeasure(this.entry.getName());
+			}
+			String info = this.getBookInfo(slotWidth);
+			int nameWidth = info == null ? slotWidth : slotWidth - this.bookInfoWidth - 6;
+			String s = this.nameMeasure.trimToWidth(nameWidth);
 			this.mc.fontRenderer.drawString(matrixStack, s,(float)(slotX ), (float)(p_render_2_ + 1), color);
+			if (info != null) {
+				this.mc.fontRenderer.drawString(matrixStack, info, (float)(slotX + slotWidth - this.bookInfoWidth), (float)(p_render_2_ + 1), 0xAAAAAA);
+			}
 			
 			// Set up the hover text if the mouse is hovering over this slot
 			if (mouseIsOver) {
 				if (System.currentTimeMillis()-this.hoverStart > 2000) {
-					String s2 = this.path.getName();
+					String s2 = this.entry.getName();
+					if (this.book != null) {
+						s2 += " (" + this.book.title + " by " + this.book.author + ", " + this.book.pageCount + " pages)";
+					}
 					this.owner.setHoveringText(s2);
 				}
 			}
@@ -144,16 +395,152 @@ public class FileSelectionList extends ExtendedList<FileSelectionList.Entry> {
 			
 		}
 		
+		/**
+		 * The title, author and page count to show on the right of the slot, using at most half of it
+		 * @return The text, or null if this isn't a book in the library index (yet)
+		 */
+		private String getBookInfo(int slotWidth) {
+			int version = this.owner.getLibraryVersion();
+			if (version != this.libraryVersion) {
+				this.libraryVersion = version;
+				LibraryIndex.Entry latest = this.owner.getLibraryEntry(this.entry);
+				if (latest != this.book) {
+					this.book = latest;
+					this.bookInfo = null;
+				}
+			}
+			if (this.book == null) {
+				return null;
+			}
+			if (this.bookInfo == null || this.bookInfoSlotWidth != slotWidth || this.bookMeasure.isStale()) {
+				// The page count is always shown, so it's the title and author that get cut short
+				String pages = ", " + this.book.pageCount + "p";
+				this.bookMeasure = new TextMeasure(this.book.title + " - " + this.book.author);
+				this.bookInfo = this.bookMeasure.truncate("...", slotWidth / 2 - this.mc.fontRenderer.getStringWidth(pages), false) + pages;
+				this.bookInfoWidth = this.mc.fontRenderer.getStringWidth(this.bookInfo);
+				this.bookInfoSlotWidth = slotWidth;
+			}
+			return this.bookInfo;
+		}
+		
+		public boolean mouseClicked(double p_mouseClicked_1_, double p_mouseClicked_3_, int p_mouseClicked_5_) {
+			 // Selecting a file swaps this row for the selected row, so the second click lands on a different row
+			 boolean doubleClick = FileSelectionList.this.clickFile(this.index);
+			 this.owner.setSelectedSlot(this);
+			 if (doubleClick) {
+				 this.owner.navigateInto(this.entry);
+				 return true;
+			 }
+			 return false;
+		}
+	}
+	
+	
+	/**
+	 * One book in a Bookworm archive
+	 */
+	@OnlyIn(Dist.CLIENT)
+	public class ArchiveBookEntry extends FileSelectionList.Entry {
+		public final BookwormIndex.Book book;
+		protected long lastClickTime;
+		protected final GhostwriterFileBrowserScreen owner;
+		protected final Minecraft mc;
+		private long hoverStart = System.currentTimeMillis();
+		private TextMeasure nameMeasure;
+		
+		public ArchiveBookEntry(GhostwriterFileBrowserScreen ownerIn, BookwormIndex.Book bookIn) {
+			this.book = bookIn;
+			this.owner = ownerIn;
+			this.mc = Minecraft.getInstance();
+		}
+		
+		private String getName() {
+			return this.book.title + " - " + this.book.author;
+		}
+		
+		@Override
+		public void render(MatrixStack matrixStack, int p_render_1_, int p_render_2_, int slotX, int slotWidth, int p_render_5_,
+				int mouseX, int mouseY, boolean mouseIsOver, float tickLengthMaybe) {
+			if (this.nameMeasure == null || this.nameMeasure.isStale()){
+				this.nameMeasure = new TextMeasure(this.getName());
+			}
+			String s = this.nameMeasure.trimToWidth(slotWidth);
+			this.mc.fontRenderer.drawString(matrixStack, s,(float)(slotX ), (float)(p_render_2_ + 1), 0xFFAA00);
+			
+			if (mouseIsOver) {
+				if (System.currentTimeMillis()-this.hoverStart > 2000) {
+					this.owner.setHoveringText("#" + this.book.id + ": " + this.getName());
+				}
+			}
+			else {
+				this.hoverStart = System.currentTimeMillis();
+			}
+		}
+		
 		public boolean mouseClicked(double p_mouseClicked_1_, double p_mouseClicked_3_, int p_mouseClicked_5_) {
 			 this.owner.setSelectedSlot(this);
 			 if (Util.milliTime() - this.lastClickTime < 250L) {
-				// Double click handling
+				// Double click loads the book
 				 this.lastClickTime = 0; // Prevent triple-click
-				 this.owner.navigateInto(path);
+				 this.owner.bookDoubleClicked();
 				 return true;
 			 }
+			 this.lastClickTime = Util.milliTime();
+			 return false;
+		}
+	}
+	
+	
+	/**
+	 * One page that matched a search
+	 */
+	@OnlyIn(Dist.CLIENT)
+	public class SearchHitEntry extends FileSelectionList.Entry {
+		public final SearchIndex.Hit hit;
+		protected long lastClickTime;
+		protected final GhostwriterFileBrowserScreen owner;
+		protected final Minecraft mc;
+		private long hoverStart = System.currentTimeMillis();
+		private TextMeasure nameMeasure;
+		private TextMeasure titleMeasure;
+		
+		public SearchHitEntry(GhostwriterFileBrowserScreen ownerIn, SearchIndex.Hit hitIn) {
+			this.hit = hitIn;
+			this.owner = ownerIn;
+			this.mc = Minecraft.getInstance();
+		}
+		
+		@Override
+		public void render(MatrixStack matrixStack, int p_render_1_, int p_render_2_, int slotX, int slotWidth, int p_render_5_,
+				int mouseX, int mouseY, boolean mouseIsOver, float tickLengthMaybe) {
+			if (this.nameMeasure == null || this.nameMeasure.isStale()){
+				this.nameMeasure = new TextMeasure(this.hit.file.getName() + " (page " + (this.hit.page + 1) + ")");
+				this.titleMeasure = new TextMeasure(this.hit.title);
+			}
+			String title = this.titleMeasure.truncate("...", slotWidth / 2, false);
+			int titleWidth = this.mc.fontRenderer.getStringWidth(title);
+			String s = this.nameMeasure.trimToWidth(slotWidth - titleWidth - 6);
+			this.mc.fontRenderer.drawString(matrixStack, s, (float)(slotX), (float)(p_render_2_ + 1), 0xFF0000);
+			this.mc.fontRenderer.drawString(matrixStack, title, (float)(slotX + slotWidth - titleWidth), (float)(p_render_2_ + 1), 0xAAAAAA);
 			
-			// TODO: Is this necessary now that double clicks no longer make sense for this screen?
+			if (mouseIsOver) {
+				if (System.currentTimeMillis()-this.hoverStart > 2000) {
+					this.owner.setHoveringText(this.hit.file.getAbsolutePath() + " (page " + (this.hit.page + 1) + ")");
+				}
+			}
+			else {
+				this.hoverStart = System.currentTimeMillis();
+			}
+		}
+		
+		public boolean mouseClicked(double p_mouseClicked_1_, double p_mouseClicked_3_, int p_mouseClicked_5_) {
+			 this.owner.setSelectedSlot(this);
+			 if (Util.milliTime() - this.lastClickTime < 250L) {
+				// Double click loads the book
+				 this.lastClickTime = 0; // Prevent triple-click
+				 this.owner.bookDoubleClicked();
+				 return true;
+			 }
 			 this.lastClickTime = Util.milliTime();
 			 return false;
 		}
@@ -0,0 +1,128 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Watches directories for changes on a background thread, so nothing has to poll the disk to notice them.
+ *
+ * The listener is called on the watcher's thread with the path of whatever changed (a file that was created,
+ * modified or deleted in one of the watched directories). If the OS drops events because too many happened at once,
+ * it's called with the directory itself instead. Whatever the listener does should be quick, and anything that
+ * touches the game has to be passed on to the client thread.
+ */
+public class FileWatcher implements Closeable {
+	private static final Logger LOG = LogManager.getLogger();
+
+	private final WatchService service;
+	private final Consumer<Path> listener;
+	/** Only used while synchronized on it, since events can arrive as soon as a directory is registered */
+	private final Map<WatchKey, Path> directories = new HashMap<>();
+
+
+	/**
+	 * @param name The name of the watcher's thread
+	 * @throws IOException If the file system can't be watched, in which case callers should fall back to refreshing
+	 *                     when asked to
+	 */
+	public FileWatcher(String name, Consumer<Path> _listener) throws IOException {
+		this.service = FileSystems.getDefault().newWatchService();
+		this.listener = _listener;
+		Thread thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+
+	/**
+	 * Starts watching a directory (but not its subdirectories)
+	 */
+	public void watch(Path directory) throws IOException {
+		synchronized (this.directories){
+			if (this.directories.containsValue(directory)){
+				return;
+			}
+			WatchKey key = directory.register(this.service, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			this.directories.put(key, directory);
+		}
+	}
+
+
+	/**
+	 * Stops watching everything, but leaves the watcher ready to watch something else
+	 */
+	public void unwatchAll(){
+		synchronized (this.directories){
+			for (WatchKey key : this.directories.keySet()){
+				key.cancel();
+			}
+			this.directories.clear();
+		}
+	}
+
+
+	@Override
+	public void close(){
+		try {
+			this.service.close();
+		} catch (IOException e) {
+			LOG.error("Couldn't close the file watcher", e);
+		}
+	}
+
+
+	private void run(){
+		while (true){
+			WatchKey key;
+			try {
+				key = this.service.take();
+			} catch (ClosedWatchServiceException | InterruptedException e) {
+				return;
+			}
+			Path directory;
+			synchronized (this.directories){
+				directory = this.directories.get(key);
+			}
+			if (directory != null){
+				for (WatchEvent<?> event : key.pollEvents()){
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+						this.notifyListener(directory);
+					}
+					else{
+						this.notifyListener(directory.resolve((Path)event.context()));
+					}
+				}
+			}
+			if (!key.reset()){
+				// The directory's gone (or we stopped watching it)
+				synchronized (this.directories){
+					this.directories.remove(key);
+				}
+			}
+		}
+	}
+
+
+	private void notifyListener(Path changed){
+		try {
+			this.listener.accept(changed);
+		} catch (RuntimeException e) {
+			// Don't let one bad event stop the watcher
+			LOG.error("Error handling a change to " + changed, e);
+		}
+	}
+}
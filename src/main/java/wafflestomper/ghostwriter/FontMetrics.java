@@ -0,0 +1,35 @@
+package wafflestomper.ghostwriter;
+
+/**
+ * Pixel widths of glyphs for the layout code in BookUtilities and Paginator, so they don't need to know
+ * where the widths come from.
+ *
+ * GlyphWidthTable.get() measures the live font and is only safe to use on the client thread. Anything that lays out
+ * text on another thread (background loading, benchmarks, etc.) should use a snapshot() of it taken on the client
+ * thread, or DefaultFontMetrics.INSTANCE if there's no game running at all.
+ */
+public interface FontMetrics {
+	
+	/**
+	 * Width in pixels of a single code point, including the extra pixel added by bold text
+	 */
+	int getWidth(int codePoint, boolean bold);
+	
+	
+	/**
+	 * Equivalent to FontRenderer.getStringWidth(), i.e. formatting codes are skipped and bold text
+	 * is measured as bold.
+	 */
+	default int getStringWidth(String str){
+		return new FormatRuns(str).getWidth(this);
+	}
+	
+	
+	/**
+	 * Returns metrics with the same widths as these ones that are safe to use from any thread.
+	 * Implementations that don't depend on the game are already safe, so by default this just returns itself.
+	 */
+	default FontMetrics snapshot(){
+		return this;
+	}
+}
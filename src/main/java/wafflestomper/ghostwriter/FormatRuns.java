@@ -0,0 +1,180 @@
+package wafflestomper.ghostwriter;
+
+import java.util.Arrays;
+
+/**
+ * The formatting codes in a string, parsed once so that layout code doesn't have to keep looking for section signs.
+ *
+ * The string is split into runs of visible text, each with the style that's in effect for all of it. Runs are
+ * stored in parallel arrays (start offset, end offset and style) rather than as objects, so even a whole book only
+ * costs a few bytes per formatting code. Anything between the end of one run and the start of the next is
+ * formatting codes, which have no width.
+ *
+ * Styles are packed into a short: the low bits hold the color, and there's one bit for each of the other formats.
+ * A section sign always takes the character after it as its code (even if that's a newline or another section sign),
+ * which is how sizeStringToWidth() has always treated them. A section sign at the very end of the string has no code,
+ * so it's just skipped.
+ */
+public class FormatRuns {
+	public static final short DEFAULT_STYLE = 0;
+
+	private static final int COLOR_MASK = 0x000f;
+	private static final int HAS_COLOR = 0x0010;
+	private static final int OBFUSCATED = 0x0020;
+	private static final int BOLD = 0x0040;
+	private static final int STRIKETHROUGH = 0x0080;
+	private static final int UNDERLINE = 0x0100;
+	private static final int ITALIC = 0x0200;
+	private static final String COLOR_CODES = "0123456789abcdef";
+	private static final String FORMAT_CODES = "klmno";
+
+	private final String text;
+	private int runCount = 0;
+	private int[] runStarts;
+	private int[] runEnds;
+	private short[] runStyles;
+
+
+	public FormatRuns(String _text){
+		this.text = _text;
+		// Most strings are one run, and there's one more for each group of formatting codes
+		this.runStarts = new int[4];
+		this.runEnds = new int[4];
+		this.runStyles = new short[4];
+
+		int len = _text.length();
+		int style = DEFAULT_STYLE;
+		int runStart = 0;
+		int i = 0;
+		while (i < len){
+			if (_text.charAt(i) != '\u00a7'){
+				i++;
+				continue;
+			}
+			this.addRun(runStart, i, style);
+			if (i < len-1){
+				style = applyCode(style, _text.charAt(i+1));
+			}
+			i += 2;
+			runStart = i;
+		}
+		this.addRun(runStart, len, style);
+	}
+
+
+	private void addRun(int start, int end, int style){
+		if (start >= end){
+			return;
+		}
+		if (this.runCount == this.runStarts.length){
+			int newSize = this.runCount * 2;
+			this.runStarts = Arrays.copyOf(this.runStarts, newSize);
+			this.runEnds = Arrays.copyOf(this.runEnds, newSize);
+			this.runStyles = Arrays.copyOf(this.runStyles, newSize);
+		}
+		this.runStarts[this.runCount] = start;
+		this.runEnds[this.runCount] = end;
+		this.runStyles[this.runCount] = (short)style;
+		this.runCount++;
+	}
+
+
+	private static int applyCode(int style, char code){
+		char lower = Character.toLowerCase(code);
+		int color = COLOR_CODES.indexOf(lower);
+		if (color >= 0){
+			// Colors clear any other formatting
+			return HAS_COLOR | color;
+		}
+		int format = FORMAT_CODES.indexOf(lower);
+		if (format >= 0){
+			return style | (OBFUSCATED << format);
+		}
+		if (lower == 'r'){
+			return DEFAULT_STYLE;
+		}
+		// Anything else isn't a formatting code, but it's still swallowed by the section sign
+		return style;
+	}
+
+
+	/**
+	 * Checks if a formatting code replaces the whole style, whatever it was before (i.e. it's a color or a reset)
+	 */
+	public static boolean isResetCode(char code){
+		char lower = Character.toLowerCase(code);
+		return lower == 'r' || COLOR_CODES.indexOf(lower) >= 0;
+	}
+
+
+	public static boolean isBold(short style){
+		return (style & BOLD) != 0;
+	}
+
+
+	public String getText(){
+		return this.text;
+	}
+
+
+	public int getRunCount(){
+		return this.runCount;
+	}
+
+
+	public int getRunStart(int run){
+		return this.runStarts[run];
+	}
+
+
+	public int getRunEnd(int run){
+		return this.runEnds[run];
+	}
+
+
+	public short getRunStyle(int run){
+		return this.runStyles[run];
+	}
+
+
+	/**
+	 * @return The index of the run that contains offset, or of the first run after it if it's in the middle of
+	 *         some formatting codes. This is getRunCount() if there's no visible text from offset onwards.
+	 */
+	public int findRun(int offset){
+		int low = 0;
+		int high = this.runCount;
+		while (low < high){
+			int mid = (low + high) >>> 1;
+			if (this.runEnds[mid] <= offset){
+				low = mid+1;
+			}
+			else{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+
+	/**
+	 * Equivalent to FontMetrics.getStringWidth() on the whole text
+	 */
+	public int getWidth(FontMetrics metrics){
+		int width = 0;
+		for (int run=0; run<this.runCount; run++){
+			boolean bold = isBold(this.runStyles[run]);
+			int end = this.runEnds[run];
+			for (int i=this.runStarts[run]; i<end; i++){
+				char c = this.text.charAt(i);
+				if (Character.isHighSurrogate(c) && i < end-1 && Character.isLowSurrogate(this.text.charAt(i+1))){
+					width += metrics.getWidth(Character.toCodePoint(c, this.text.charAt(++i)), bold);
+				}
+				else{
+					width += metrics.getWidth(c, bold);
+				}
+			}
+		}
+		return width;
+	}
+}
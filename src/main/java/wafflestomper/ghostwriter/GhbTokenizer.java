@@ -0,0 +1,251 @@
+package wafflestomper.ghostwriter;
+
+/**
+ * Single pass tokenizer for the GHB format (see the notes at the top of GhostwriterEditBookScreen).
+ * It handles single and multi-line comments, ## line breaks, >>>> page breaks and the title: and author: headers
+ * in one linear scan, so the cost only depends on the size of the file (not on how its comments are laid out).
+ *
+ * The body comes out with line breaks converted to \n, page breaks left as PAGE_BREAK, ordinary newlines removed,
+ * and any whitespace in front of a line or page break removed. It's ready for BookUtilities.stringWithPageBreaksToPages()
+ * or a Paginator.
+ *
+ * Comments are read the way they look, which isn't always what the old regular expressions did: text in front of the
+ * first block comment and a stray end of comment are kept, a header inside a block comment is ignored, and a block
+ * comment that ends right before a slash (e.g. right before another comment) really does end there. See
+ * GhbTokenizerTest for examples.
+ */
+public class GhbTokenizer {
+	public static final String PAGE_BREAK = ">>>>";
+	private static final String TITLE_KEY = "title:";
+	private static final String AUTHOR_KEY = "author:";
+
+	private final CharSequence source;
+	private int pos = 0;
+	private boolean inBlockComment = false;
+
+	private String title = "";
+	private String author = "";
+	private final TextFilter body;
+	private final String bodyText;
+
+
+	public GhbTokenizer(CharSequence _source){
+		this.source = _source;
+		this.body = new TextFilter(_source.length(), true);
+		this.tokenize();
+		this.bodyText = this.body.finish();
+	}
+
+
+	public String getTitle(){
+		return this.title;
+	}
+
+
+	public String getAuthor(){
+		return this.author;
+	}
+
+
+	public String getBody(){
+		return this.bodyText;
+	}
+
+
+	private void tokenize(){
+		int len = this.source.length();
+		boolean atLineStart = true;
+		while (this.pos < len){
+			if (atLineStart && !this.inBlockComment){
+				if (this.title.isEmpty() && this.startsWithIgnoreCase(TITLE_KEY)){
+					this.pos += TITLE_KEY.length();
+					this.title = this.readHeaderValue();
+					continue;
+				}
+				if (this.author.isEmpty() && this.startsWithIgnoreCase(AUTHOR_KEY)){
+					this.pos += AUTHOR_KEY.length();
+					this.author = this.readHeaderValue();
+					continue;
+				}
+			}
+			boolean wasInComment = this.inBlockComment;
+			char c = this.nextChar();
+			if (c != 0 && !(wasInComment && c == '\n')){
+				this.body.add(c);
+			}
+			atLineStart = c == '\n';
+		}
+	}
+
+
+	private boolean startsWithIgnoreCase(String key){
+		if (this.source.length() - this.pos < key.length()){
+			return false;
+		}
+		for (int i=0; i<key.length(); i++){
+			if (Character.toLowerCase(this.source.charAt(this.pos + i)) != key.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Reads the rest of a title: or author: line with any comments removed.
+	 * A multi-line comment that starts on the header line carries on into the following lines as usual.
+	 */
+	private String readHeaderValue(){
+		TextFilter value = new TextFilter(16, false);
+		int len = this.source.length();
+		while (this.pos < len){
+			char c = this.nextChar();
+			if (c == '\n'){
+				break;
+			}
+			if (c != 0){
+				value.add(c);
+			}
+		}
+		return value.finish().trim();
+	}
+
+
+	/**
+	 * Consumes the next character, skipping over comments.
+	 * @return The character, or 0 if the only thing consumed was (part of) a comment
+	 */
+	private char nextChar(){
+		int len = this.source.length();
+		char c = this.source.charAt(this.pos++);
+		char next = this.pos < len ? this.source.charAt(this.pos) : 0;
+		if (this.inBlockComment){
+			if (c == '*' && next == '/'){
+				this.pos++;
+				this.inBlockComment = false;
+			}
+			// Newlines inside comments still end the line (but they aren't part of the body)
+			return c == '\n' ? '\n' : 0;
+		}
+		if (c == '/' && next == '/'){
+			// Single line comments run up to (but not including) the end of the line
+			while (this.pos < len && this.source.charAt(this.pos) != '\n'){
+				this.pos++;
+			}
+			return 0;
+		}
+		if (c == '/' && next == '*'){
+			this.pos++;
+			this.inBlockComment = true;
+			return 0;
+		}
+		return c;
+	}
+
+
+	/**
+	 * Takes text with the comments already removed and applies the rest of the GHB rules to it as it arrives:
+	 * whitespace (including newlines) directly in front of ## or >>>> is removed, then the remaining newlines are
+	 * removed and (optionally) each ## is converted to \n.
+	 * The order matters here. For example, "# ##" ends up as "\n#" because the space goes before the hashes pair up.
+	 */
+	private static class TextFilter {
+		private static final String LINE_BREAK = "##";
+
+		private final StringBuilder out;
+		private final boolean convertLineBreaks;
+		// Whitespace that might turn out to be in front of a line or page break
+		private final StringBuilder whitespace = new StringBuilder();
+		// Characters after that whitespace that might turn out to be a line or page break
+		private final StringBuilder lookahead = new StringBuilder();
+		private boolean heldHash = false;
+
+
+		private TextFilter(int capacity, boolean _convertLineBreaks){
+			this.out = new StringBuilder(capacity);
+			this.convertLineBreaks = _convertLineBreaks;
+		}
+
+
+		private static boolean isWhitespace(char c){
+			return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+		}
+
+
+		private void add(char c){
+			if (this.whitespace.length() == 0){
+				if (isWhitespace(c)){
+					this.whitespace.append(c);
+				}
+				else{
+					this.emit(c);
+				}
+				return;
+			}
+			if (this.lookahead.length() == 0 && isWhitespace(c)){
+				this.whitespace.append(c);
+				return;
+			}
+			this.lookahead.append(c);
+			String next = this.lookahead.toString();
+			if (next.equals(LINE_BREAK) || next.equals(PAGE_BREAK)){
+				// Drop the whitespace and keep the break
+				this.whitespace.setLength(0);
+				this.lookahead.setLength(0);
+				this.emit(next);
+			}
+			else if (!LINE_BREAK.startsWith(next) && !PAGE_BREAK.startsWith(next)){
+				// It wasn't a break after all, so everything goes through as-is and the last character gets
+				// another look (it might be the start of more whitespace)
+				this.emit(this.whitespace);
+				this.whitespace.setLength(0);
+				this.lookahead.setLength(0);
+				this.emit(next.substring(0, next.length()-1));
+				this.add(c);
+			}
+		}
+
+
+		private void emit(CharSequence chars){
+			for (int i=0; i<chars.length(); i++){
+				this.emit(chars.charAt(i));
+			}
+		}
+
+
+		private void emit(char c){
+			if (c == '\r' || c == '\n'){
+				return;
+			}
+			if (!this.convertLineBreaks){
+				this.out.append(c);
+			}
+			else if (c == '#'){
+				if (this.heldHash){
+					this.out.append('\n');
+				}
+				this.heldHash = !this.heldHash;
+			}
+			else{
+				if (this.heldHash){
+					this.out.append('#');
+					this.heldHash = false;
+				}
+				this.out.append(c);
+			}
+		}
+
+
+		private String finish(){
+			this.emit(this.whitespace);
+			this.emit(this.lookahead);
+			this.whitespace.setLength(0);
+			this.lookahead.setLength(0);
+			if (this.heldHash){
+				this.out.append('#');
+				this.heldHash = false;
+			}
+			return this.out.toString();
+		}
+	}
+}
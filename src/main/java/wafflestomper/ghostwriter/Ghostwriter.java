@@ -8,6 +8,8 @@ import net.minecraft.client.gui.screen.Screen;
 import net.minecraft.item.ItemStack;
 import net.minecraft.item.WritableBookItem;
 import net.minecraft.item.WrittenBookItem;
+import net.minecraft.resources.IReloadableResourceManager;
+import net.minecraft.resources.IResourceManagerReloadListener;
 import net.minecraft.util.Hand;
 import net.minecraftforge.client.event.GuiOpenEvent;
 import net.minecraftforge.common.MinecraftForge;
@@ -40,9 +42,25 @@ public class Ghostwriter{
 	
 	private void setup(final FMLClientSetupEvent event){
 		LOG.info("Setting up...");
+		// Cached glyph widths are only valid for the fonts that were loaded when they were measured
+		if (this.mc.getResourceManager() instanceof IReloadableResourceManager){
+			((IReloadableResourceManager)this.mc.getResourceManager()).addReloadListener(
+					(IResourceManagerReloadListener)(resourceManager) -> GlyphWidthTable.invalidate());
+		}
 	}
 
 
+	/**
+	 * Measures a few more glyphs every tick, so the first snapshot of the glyph widths doesn't cause a hitch
+	 */
+	@SubscribeEvent
+	public void clientTick(TickEvent.ClientTickEvent event) {
+		if (event.phase == TickEvent.Phase.END) {
+			GlyphWidthTable.warmUp();
+		}
+	}
+	
+	
 	// TODO: Is this even right? We're closing the container I think?
 	// TODO: Add check for 'air' stack instead of book (I think there's a race condition where this might get called too early)
 	// TODO: Refactor this to remove the duplicated code with guiOpen() below
@@ -177,6 +177,7 @@ import net.minecraftforge.api.distmarker.OnlyIn;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 
@@ -201,10 +202,7 @@ public class GhostwriterEditBookScreen extends EditBookScreen {
 	
 	private Clipboard clipboard;
 	
-	private File autoReloadFile; // Auto Reload is active when this is not nullprivate Clipboard autoReloadBookClipboard;
-	private long autoReloadLastModified = 0;
-	private long autoReloadLastCheck = 0;
-	private Clipboard autoReloadClipboard;
+	private AutoReload autoReload; // Auto Reload is active when this is not null
 	
 	private static final Printer printer = new Printer();
 	private final FileHandler fileHandler;
@@ -310,21 +308,39 @@ public class GhostwriterEditBookScreen extends EditBookScreen {
 	
 	/*
 	 * Copies a book from the clipboard into the 'real' book
+	 * Only the pages that are actually different are replaced, so reloading a long book after a small edit is cheap
 	 */
 	public void clipboardToBook(Clipboard fromBook){
-		// Reset anything in the current book
-		this.bookPages.clear();
-		this.bookChanged(true);
-		
 		this.bookTitle = fromBook.title;
 		
-		this.bookPages.addAll(fromBook.pages);
-		this.bookIsModified = true;
+		List<String> newPages = fromBook.pages.isEmpty() ? Collections.singletonList("") : fromBook.pages;
+		boolean pageCountChanged = newPages.size() != this.bookPages.size();
+		boolean changed = pageCountChanged;
+		int sharedPages = Math.min(newPages.size(), this.bookPages.size());
+		for (int i=0; i<sharedPages; i++){
+			if (!newPages.get(i).equals(this.bookPages.get(i))){
+				this.bookPages.set(i, newPages.get(i));
+				changed = true;
+			}
+		}
+		// Remove excess pages from the end, or add new ones
+		for (int i=this.bookPages.size()-1; i>=sharedPages; i--){
+			this.bookPages.remove(i);
+		}
+		for (int i=sharedPages; i<newPages.size(); i++){
+			this.bookPages.add(newPages.get(i));
+		}
 		
-		if (this.bookPages.isEmpty()) {
-			this.bookPages.add("");
+		if (this.currPage >= this.bookPages.size()){
+			this.currPage = this.bookPages.size()-1;
+		}
+		this.bookIsModified = true;
+		if (changed){
+			this.bookChanged(pageCountChanged);
+		}
+		else{
+			this.updateButtons();
 		}
-		this.updateButtons();
 	}
 	
 	
@@ -590,6 +606,9 @@ public class GhostwriterEditBookScreen extends EditBookScreen {
 		this.buttonDone.y = 145;
 		this.buttonCancel.y = 145;
 		
+		if (this.autoReload != null) {
+			this.autoReload.start();
+		}
 		this.updateButtons();
 	}
 	
@@ -601,26 +620,19 @@ public class GhostwriterEditBookScreen extends EditBookScreen {
 	
 	@Override
 	public void tick() {
-		// Handle autoreload
-		if (this.autoReloadFile != null && System.currentTimeMillis()-this.autoReloadLastCheck > 1000) {
-			if (this.autoReloadFile.exists()) {
-				if (this.autoReloadFile.lastModified() != this.autoReloadLastModified) {
-					FileHandler f = new FileHandler(this.autoReloadClipboard);
-					if (f.loadBook(this.autoReloadFile)) {
-						this.clipboardToBook(this.autoReloadClipboard);
-						printer.gamePrint(Printer.AQUA + "Automatically loaded new book version");
-						this.autoReloadLastModified = this.autoReloadFile.lastModified();
-					}
-					else {
-						printer.gamePrint(Printer.RED + "Book failed to automatically reload!");
-						this.disableAutoReload();
-					}
-					this.autoReloadLastCheck = System.currentTimeMillis();
+		// Handle autoreload. The file is watched and loaded in the background, so this only has to pick up the result.
+		if (this.autoReload != null) {
+			this.autoReload.setMetrics(GlyphWidthTable.get().snapshot());
+			AutoReload.Update update = this.autoReload.poll();
+			if (update != null) {
+				if (update.book != null) {
+					this.clipboardToBook(update.book);
+					printer.gamePrint(Printer.AQUA + "Automatically loaded new book version");
+				}
+				else {
+					printer.gamePrint(Printer.RED + update.error);
+					this.disableAutoReload();
 				}
-			}
-			else {
-				printer.gamePrint(Printer.RED + "Source file disappeared!");
-				this.disableAutoReload();
 			}
 		}
 		
@@ -675,7 +687,7 @@ public class GhostwriterEditBookScreen extends EditBookScreen {
 			this.buttonPasteMultiplePages.setMessage(new StringTextComponent("Paste Multiple"));
 		}
 		
-		this.buttonDisableAutoReload.visible = this.autoReloadFile != null;
+		this.buttonDisableAutoReload.visible = this.autoReload != null;
 	}
 	
 	
@@ -689,18 +701,37 @@ public class GhostwriterEditBookScreen extends EditBookScreen {
 	}
 	
 	
+	/**
+	 * The file starts being watched when this screen is shown again (see init())
+	 */
 	public void enableAutoReload(File path, Clipboard initalBookState) {
-		this.autoReloadClipboard = initalBookState;
-		this.autoReloadFile = path;
-		this.autoReloadLastModified = path.lastModified();
-		this.autoReloadLastCheck = System.currentTimeMillis();
+		if (this.autoReload != null) {
+			this.autoReload.stop();
+		}
+		this.autoReload = new AutoReload(path, initalBookState);
 		this.updateButtons();
 	}
 	
 	
 	public void disableAutoReload() {
-		this.autoReloadFile = null;
+		if (this.autoReload != null) {
+			this.autoReload.stop();
+		}
+		this.autoReload = null;
 		printer.gamePrint(Printer.AQUA + "Autoreload disabled");
 		this.updateButtons();
 	}
+	
+	
+	/**
+	 * Stops watching the AutoReload file while another screen is open (e.g. the file browser, or the game itself once
+	 * the book is closed). Changes made in the meantime are picked up when init() starts it again.
+	 */
+	@Override
+	public void removed() {
+		if (this.autoReload != null) {
+			this.autoReload.stop();
+		}
+		super.removed();
+	}
 }
@@ -11,24 +11,65 @@ import net.minecraft.nbt.CompoundNBT;
 import net.minecraft.util.Hand;
 import net.minecraft.util.text.ITextComponent;
 import net.minecraft.util.text.StringTextComponent;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.glfw.GLFW;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GhostwriterFileBrowserScreen extends Screen{
 	
 	private FileSelectionList fileSelectionList;
 	private TextFieldWidget filenameField;
+	private TextFieldWidget searchField;
 	private boolean directoryDirty = false;
 	private File cachedPath;
+	/** Lists the current directory in the background, and the version of its listing that's being shown */
+	private DirectoryLister directoryLister;
+	private int listedVersion = -1;
 	private File selectedFile = null;
+	/** The Bookworm archive whose books are being listed instead of the current directory, if there is one */
+	private File openArchive = null;
+	private List<BookwormIndex.Book> archiveBooks;
+	private BookwormIndex.Book selectedBook = null;
+	/** The book that's being loaded in the background, if there is one */
+	private CompletableFuture<Clipboard> pendingLoad = null;
+	/** Watches the current directory so the list can be refreshed when it changes, instead of checking every frame */
+	private FileWatcher directoryWatcher;
+	private boolean watcherFailed = false;
+	private final AtomicBoolean directoryChanged = new AtomicBoolean(false);
+	/** Titles, authors and page counts of the books in SavedBooks, so they can be shown without loading them */
+	private final LibraryIndex library;
+	/** Kept between screens, like the current path */
+	private static SortOrder sortOrder = SortOrder.NAME;
+	/** The library version the list was last sorted with, so it can be sorted again when the index catches up */
+	private int sortedLibraryVersion = -1;
+	/**
+	 * When the list was last sorted. The library version goes up with every book that's indexed, so while the indexer's
+	 * working through the library, the list is only sorted again every so often.
+	 */
+	private long sortedTime = 0;
+	private static final long RESORT_INTERVAL_MS = 1000;
+	private final SearchIndex searchIndex;
+	/** The pages that matched the search box, which are listed instead of the current directory. Null if it's empty. */
+	private List<SearchIndex.Hit> searchHits = null;
+	/** The index version the search was last run against, so it can be run again as more books are indexed */
+	private int searchedVersion = -1;
+	private static final int MAX_SEARCH_HITS = 200;
 	
 	private final Screen PARENT_GUI; // TODO: genericize somehow?
 	private final Clipboard TEMP_CLIPBOARD = new Clipboard();
 	private static final Printer PRINTER = new Printer();
+	private static final Logger LOG = LogManager.getLogger();
 	
 	private final FileHandler FILE_HANDLER;
 	private String displayPath = "";
+	private TextMeasure displayPathMeasure;
 	
 	private static final int BORDER_HEIGHT = 2;
 	private static final int BUTTON_WIDTH = 60;
@@ -38,12 +79,35 @@ public class GhostwriterFileBrowserScreen extends Screen{
 	private Button btnAutoReload;
 	private Button btnLoad;
 	private Button btnSave;
+	private Button btnSort;
 	
 	private boolean initialized = false;
 	private boolean enableLoading = false;
 	private String hoveringText;
 	
 	
+	/**
+	 * The orders the files in a directory can be listed in. Directories are always listed first, by name.
+	 */
+	private enum SortOrder {
+		NAME("Name"),
+		TITLE("Title"),
+		AUTHOR("Author"),
+		PAGES("Pages"),
+		MODIFIED("Modified");
+		
+		private final String label;
+		
+		SortOrder(String _label) {
+			this.label = _label;
+		}
+		
+		private SortOrder next() {
+			return values()[(this.ordinal() + 1) % values().length];
+		}
+	}
+	
+	
 
 	public GhostwriterFileBrowserScreen(Screen _parentGui){
 		super(new StringTextComponent("Title I think?")); // TODO
@@ -53,6 +117,13 @@ public class GhostwriterFileBrowserScreen extends Screen{
 			Ghostwriter.currentPath = this.FILE_HANDLER.getSavePath();
 		}
 		this.FILE_HANDLER.currentPath = Ghostwriter.currentPath;
+		// Only books that have changed since the index was last updated get loaded, and that happens in the background
+		this.library = LibraryIndex.get(this.FILE_HANDLER.getSavePath());
+		this.library.refreshAsync();
+		this.searchIndex = SearchIndex.get(this.FILE_HANDLER.getSavePath());
+		this.searchIndex.refreshAsync();
+		// Lets go of the pages of any books in the page store that have been deleted since last time
+		this.FILE_HANDLER.getPageStore().collectGarbageAsync(this.FILE_HANDLER.getSavePath());
 		if (_parentGui instanceof GhostwriterEditBookScreen) {
 			this.enableLoading = true;
 		}
@@ -151,6 +222,10 @@ public class GhostwriterFileBrowserScreen extends Screen{
 			fauthor = fauthor.trim().replaceAll(" ", ".").replaceAll("[^a-zA-Z0-9\\.]", "");
 			String defaultFilename = ftitle + "_" + fauthor + "_" + this.FILE_HANDLER.getUTC() + ".ghb";
 			this.filenameField.setText(defaultFilename);
+			
+			this.searchField = new TextFieldWidget(this.minecraft.fontRenderer, 5, 5, 120, BUTTON_HEIGHT, new StringTextComponent("search"));
+			this.searchField.setMaxStringLength(100);
+			this.searchField.setResponder(this::search);
 			this.initialized = true;
 		}
 		
@@ -172,6 +247,10 @@ public class GhostwriterFileBrowserScreen extends Screen{
 		this.addButton(new Button(cancelX, mainButtonsY, BUTTON_WIDTH, BUTTON_HEIGHT,
 				new StringTextComponent("Cancel"), (pressedButton) -> goBackToParentGui()));
 		
+		this.btnSort = this.addButton(new Button(this.width - 5 - 80, 5, 80, BUTTON_HEIGHT,
+				new StringTextComponent(""), (pressedButton) -> this.sortClicked()));
+		this.btnSort.setMessage(new StringTextComponent("Sort: " + sortOrder.label));
+		
 		//Add buttons for each non-empty drive letter
 		int rootNum = 100;
 		List<File> roots = this.FILE_HANDLER.getValidRoots();
@@ -200,6 +279,19 @@ public class GhostwriterFileBrowserScreen extends Screen{
 	
 	
 	public void navigateUp() {
+		if (this.searchHits != null) {
+			// Back out of the search results into the directory
+			this.searchField.setText("");
+			return;
+		}
+		if (this.openArchive != null) {
+			// Back out of the archive into the directory it's in
+			this.openArchive = null;
+			this.archiveBooks = null;
+			this.directoryDirty = true;
+			this.populateFileList();
+			return;
+		}
 		this.FILE_HANDLER.navigateUp();
 		this.directoryDirty = true;
 		this.displayPath = this.FILE_HANDLER.currentPath.getAbsolutePath();
@@ -212,17 +304,36 @@ public class GhostwriterFileBrowserScreen extends Screen{
 		return !fn.equals("");
 	}
 	
+	/**
+	 * The path is drawn every frame, so its widths are only measured again when it changes
+	 */
+	private TextMeasure getDisplayPathMeasure(){
+		if (this.displayPathMeasure == null || this.displayPathMeasure.isStale() || !this.displayPathMeasure.getText().equals(this.displayPath)){
+			this.displayPathMeasure = new TextMeasure(this.displayPath);
+		}
+		return this.displayPathMeasure;
+	}
+	
+	
 	// TODO: Check that this still works
 	@Override
 	public void render(MatrixStack matrixStack, int mouseX, int mouseY, float partialTicks)  {
-		this.displayPath = this.FILE_HANDLER.currentPath.getAbsolutePath();
+		this.displayPath = (this.openArchive != null ? this.openArchive : this.FILE_HANDLER.currentPath).getAbsolutePath();
 		this.btnSave.active = this.isFilenameValid();
 		this.hoveringText = null;
 		this.fileSelectionList.render(matrixStack, mouseX, mouseY, partialTicks);
 		super.render(matrixStack, mouseX, mouseY, partialTicks);
 		if (this.minecraft == null) return;
-		this.drawCenteredString(matrixStack, this.minecraft.fontRenderer, BookUtilities.truncateStringPixels(this.displayPath,"...", 200, true), this.width / 2, 20, 0xDDDDDD);
+		this.drawCenteredString(matrixStack, this.minecraft.fontRenderer, this.getDisplayPathMeasure().truncate("...", 200, true), this.width / 2, 20, 0xDDDDDD);
+		if (this.searchHits == null && this.openArchive == null && this.directoryLister != null && !this.directoryLister.isDone()) {
+			this.drawCenteredString(matrixStack, this.minecraft.fontRenderer, "Listing... (" + this.directoryLister.getListing().size() + " so far)",
+					this.width / 2, this.height - 58, 0xAAAAAA);
+		}
 		this.filenameField.render(matrixStack, mouseX, mouseY, partialTicks);
+		this.searchField.render(matrixStack, mouseX, mouseY, partialTicks);
+		if (this.searchField.getText().isEmpty() && !this.searchField.isFocused()) {
+			this.drawString(matrixStack, this.minecraft.fontRenderer, "Search books...", 9, 11, 0x808080);
+		}
 		
 		// Draw tooltip if the path is hovered
 		if (mouseX >= this.width/2-100 && mouseX <= this.width/2+100 && mouseY >= 20 && mouseY <= 27) {
@@ -238,31 +349,118 @@ public class GhostwriterFileBrowserScreen extends Screen{
 		this.fileSelectionList.setSelected(entry);
 		if (this.enableLoading && entry instanceof FileSelectionList.PathItemEntry) {
 			FileSelectionList.PathItemEntry p = (FileSelectionList.PathItemEntry)entry;
-			if (p.path == this.selectedFile) {
+			if (p.path.equals(this.selectedFile)) {
 				return;
 			}
-			else if (p.path.isFile()) {
-				this.FILE_HANDLER.loadBook(p.path);
-				this.selectedFile = p.path;
-				this.filenameField.setText(p.path.getName());
-				this.updateButtons();
+			else if (p.entry.isFile()) {
+				this.selectFile(p.path);
 				return;
 			}
 		}
+		if (this.enableLoading && entry instanceof FileSelectionList.SearchHitEntry) {
+			File path = ((FileSelectionList.SearchHitEntry)entry).hit.file;
+			if (!path.equals(this.selectedFile)) {
+				this.selectFile(path);
+			}
+			return;
+		}
+		if (this.enableLoading && entry instanceof FileSelectionList.ArchiveBookEntry) {
+			FileSelectionList.ArchiveBookEntry b = (FileSelectionList.ArchiveBookEntry)entry;
+			if (b.book == this.selectedBook) {
+				return;
+			}
+			this.cancelPendingLoad();
+			this.TEMP_CLIPBOARD.clearBook();
+			this.selectedFile = this.openArchive;
+			this.selectedBook = b.book;
+			this.startLoading(this.openArchive, this.FILE_HANDLER.loadBookwormBookAsync(this.openArchive, b.book));
+			this.updateButtons();
+			return;
+		}
+		this.cancelPendingLoad();
 		this.TEMP_CLIPBOARD.clearBook();
 		this.selectedFile = null;
+		this.selectedBook = null;
 		this.updateButtons();
 	}
 	
 	
+	/**
+	 * Starts loading a file so it's ready to go when Load is clicked
+	 */
+	private void selectFile(File path) {
+		this.cancelPendingLoad();
+		this.TEMP_CLIPBOARD.clearBook();
+		this.selectedFile = path;
+		this.selectedBook = null;
+		this.filenameField.setText(path.getName());
+		this.startLoading(path, this.FILE_HANDLER.loadBookAsync(path));
+		this.updateButtons();
+	}
+	
+	
+	/**
+	 * Loads the book in the background. The result comes back on the client thread, and it's thrown away if a
+	 * different file has been selected since.
+	 */
+	private void startLoading(File path, CompletableFuture<Clipboard> load) {
+		this.pendingLoad = load;
+		assert this.minecraft != null;
+		load.whenCompleteAsync((book, error) -> {
+			if (load != this.pendingLoad) {
+				// Stale, or it was cancelled
+				return;
+			}
+			this.pendingLoad = null;
+			if (error != null) {
+				PRINTER.gamePrint(Printer.RED + "Error loading book! " + path.getAbsolutePath());
+				error.printStackTrace();
+			}
+			else {
+				this.TEMP_CLIPBOARD.clone(book);
+				this.FILE_HANDLER.lastLoadedBook = path;
+			}
+			this.updateButtons();
+		}, this.minecraft);
+	}
+	
+	
+	private void cancelPendingLoad() {
+		if (this.pendingLoad != null) {
+			this.pendingLoad.cancel(false);
+			this.pendingLoad = null;
+		}
+	}
+	
+	
 	@Override
 	public void tick(){
 		this.filenameField.tick();
+		this.searchField.tick();
 		this.btnSave.active = this.isFilenameValid();
 		if (this.FILE_HANDLER.currentPath != this.cachedPath) {
 			this.directoryDirty = true; // This probably isn't necessary - it forces a refresh
 			this.populateFileList();
 		}
+		else if (this.directoryChanged.getAndSet(false)) {
+			this.directoryDirty = true;
+			this.populateFileList();
+		}
+		else if (this.searchHits == null && this.openArchive == null && this.directoryLister != null
+				&& this.directoryLister.getVersion() != this.listedVersion) {
+			// More of the directory's been listed
+			this.populateFileList();
+		}
+		else if (this.searchHits != null && this.searchIndex.getVersion() != this.searchedVersion) {
+			// More books have been indexed since the search was run
+			this.search(this.searchField.getText());
+		}
+		else if (this.openArchive == null && sortOrder != SortOrder.NAME && sortOrder != SortOrder.MODIFIED
+				&& this.library.getVersion() != this.sortedLibraryVersion
+				&& System.currentTimeMillis() - this.sortedTime >= RESORT_INTERVAL_MS) {
+			// More books have been indexed, so they can go in the right place now
+			this.populateFileList();
+		}
 		super.tick();
 	}
 	
@@ -275,13 +473,156 @@ public class GhostwriterFileBrowserScreen extends Screen{
 	
 	
 	private void populateFileList(){
-		this.fileSelectionList.updateFileList(this.FILE_HANDLER.listFiles(this.FILE_HANDLER.currentPath, this.directoryDirty));
+		if (this.FILE_HANDLER.currentPath != this.cachedPath) {
+			this.watchDirectory(this.FILE_HANDLER.currentPath);
+			// Leaving the directory closes the archive too
+			this.openArchive = null;
+			this.archiveBooks = null;
+		}
+		if (this.searchHits != null) {
+			this.fileSelectionList.updateSearchResults(this.searchHits);
+		}
+		else if (this.openArchive != null) {
+			this.fileSelectionList.updateBookList(this.archiveBooks);
+		}
+		else {
+			this.directoryLister = this.FILE_HANDLER.listFiles(this.FILE_HANDLER.currentPath, this.directoryDirty);
+			this.listedVersion = this.directoryLister.getVersion();
+			FileListing files = this.directoryLister.getListing();
+			if (sortOrder != SortOrder.NAME) {
+				// The lister keeps its listing, so sort a copy
+				this.sortedLibraryVersion = this.library.getVersion();
+				this.sortedTime = System.currentTimeMillis();
+				files = files.sorted(SortKey::new, this.getComparator());
+			}
+			this.fileSelectionList.updateFileList(files);
+		}
 		this.directoryDirty = false;
 		this.cachedPath = this.FILE_HANDLER.currentPath;
 	}
 	
 	
+	/**
+	 * What a file's sorted by. The book's looked up in the library index once per sort, rather than every time it's
+	 * compared.
+	 */
+	private final class SortKey {
+		private final FileEntry file;
+		private final LibraryIndex.Entry book;
+		
+		private SortKey(FileEntry _file) {
+			this.file = _file;
+			this.book = sortOrder == SortOrder.MODIFIED ? null : GhostwriterFileBrowserScreen.this.getLibraryEntry(_file);
+		}
+	}
+	
+	
+	/**
+	 * Directories stay first in name order. Files that haven't been indexed (or aren't books) go after the ones that
+	 * have, in the order listFiles() returned them.
+	 */
+	private Comparator<SortKey> getComparator() {
+		Comparator<SortKey> directoriesFirst = Comparator.comparing(k -> !k.file.isDirectory());
+		if (sortOrder == SortOrder.MODIFIED) {
+			return directoriesFirst.thenComparing((a, b) -> a.file.isDirectory() ? 0 : Long.compare(b.file.getLastModified(), a.file.getLastModified()));
+		}
+		Comparator<LibraryIndex.Entry> byBook;
+		switch (sortOrder) {
+			case TITLE:
+				byBook = Comparator.comparing(b -> b.title, String.CASE_INSENSITIVE_ORDER);
+				break;
+			case AUTHOR:
+				byBook = Comparator.comparing(b -> b.author, String.CASE_INSENSITIVE_ORDER);
+				break;
+			default:
+				byBook = Comparator.comparingInt(b -> b.pageCount);
+				break;
+		}
+		return directoriesFirst.thenComparing(k -> k.book, Comparator.nullsLast(byBook));
+	}
+	
+	
+	/**
+	 * Called whenever the text in the search box changes
+	 */
+	private void search(String query) {
+		if (query.trim().isEmpty()) {
+			this.searchHits = null;
+		}
+		else {
+			this.searchedVersion = this.searchIndex.getVersion();
+			this.searchHits = this.searchIndex.search(query, MAX_SEARCH_HITS);
+		}
+		this.populateFileList();
+	}
+	
+	
+	private void sortClicked() {
+		sortOrder = sortOrder.next();
+		this.btnSort.setMessage(new StringTextComponent("Sort: " + sortOrder.label));
+		this.populateFileList();
+	}
+	
+	
+	/**
+	 * @return The file's title, author and page count from the library index, or null if it isn't an indexed book
+	 *         (or it's changed since it was indexed)
+	 */
+	public LibraryIndex.Entry getLibraryEntry(FileEntry entry) {
+		if (!entry.isFile()) {
+			return null;
+		}
+		LibraryIndex.Entry book = this.library.lookup(entry);
+		return book != null && book.isBook() ? book : null;
+	}
+	
+	
+	public int getLibraryVersion() {
+		return this.library.getVersion();
+	}
+	
+	
+	/**
+	 * Stops watching the last directory and starts watching this one. If it can't be watched, the list is only
+	 * refreshed when the directory is opened again or F5 is pressed.
+	 */
+	private void watchDirectory(File path) {
+		if (this.directoryWatcher == null && !this.watcherFailed) {
+			try {
+				this.directoryWatcher = new FileWatcher("Ghostwriter directory watcher", changed -> this.directoryChanged.set(true));
+			} catch (IOException e) {
+				LOG.error("Couldn't start watching for file changes", e);
+				this.watcherFailed = true;
+			}
+		}
+		if (this.directoryWatcher == null) {
+			return;
+		}
+		this.directoryWatcher.unwatchAll();
+		this.directoryChanged.set(false);
+		try {
+			this.directoryWatcher.watch(path.toPath());
+		} catch (IOException | RuntimeException e) {
+			LOG.warn("Couldn't watch " + path.getAbsolutePath() + " for changes", e);
+		}
+	}
+	
+	
+	@Override
+	public void removed() {
+		this.FILE_HANDLER.cancelListing();
+		if (this.directoryWatcher != null) {
+			this.directoryWatcher.close();
+			this.directoryWatcher = null;
+		}
+		// The screen can be shown again (e.g. after the overwrite confirmation), so make sure the watcher's restarted
+		this.cachedPath = null;
+		super.removed();
+	}
+	
+	
 	private void goBackToParentGui(){
+		this.cancelPendingLoad();
 		Ghostwriter.currentPath = this.FILE_HANDLER.currentPath;
 		assert this.minecraft != null;
 		this.minecraft.displayGuiScreen(this.PARENT_GUI);
@@ -291,8 +632,11 @@ public class GhostwriterFileBrowserScreen extends Screen{
 	
 	public void updateButtons() {
 		if (this.enableLoading) {
-			this.btnLoad.active = this.TEMP_CLIPBOARD.bookInClipboard;
-			this.btnAutoReload.active = this.TEMP_CLIPBOARD.bookInClipboard;
+			boolean loading = this.pendingLoad != null;
+			this.btnLoad.active = !loading && this.TEMP_CLIPBOARD.bookInClipboard;
+			// Reloading would load the whole archive rather than just this book
+			this.btnAutoReload.active = !loading && this.TEMP_CLIPBOARD.bookInClipboard && this.selectedBook == null;
+			this.btnLoad.setMessage(new StringTextComponent(loading ? "Loading..." : "Load"));
 		}
 		else {
 			this.btnAutoReload.active = false;
@@ -312,6 +656,15 @@ public class GhostwriterFileBrowserScreen extends Screen{
 		}
 		// TODO: Escape should kick back to the parent GUI
 		// TODO: Add ctrl+s to save, maybe ctrl+d to load?
+		if (p_keyPressed_1_ == GLFW.GLFW_KEY_F5) {
+			this.directoryDirty = true;
+			this.populateFileList();
+			return true;
+		}
+		if (this.searchField.isFocused()) {
+			return this.searchField.keyPressed(p_keyPressed_1_, p_keyPressed_2_, p_keyPressed_3_);
+		}
+		this.cancelPendingLoad();
 		this.TEMP_CLIPBOARD.clearBook();
 		this.updateButtons();
 		return this.filenameField.keyPressed(p_keyPressed_1_, p_keyPressed_2_, p_keyPressed_3_);
@@ -326,6 +679,9 @@ public class GhostwriterFileBrowserScreen extends Screen{
 		if (super.charTyped(p_charTyped_1_, p_charTyped_2_)) {
 			return true;
 		} 
+		else if (this.searchField.isFocused()) {
+			return this.searchField.charTyped(p_charTyped_1_, p_charTyped_2_);
+		}
 		else {
 			return this.filenameField.charTyped(p_charTyped_1_, p_charTyped_2_);
 		} 	
@@ -363,23 +719,54 @@ public class GhostwriterFileBrowserScreen extends Screen{
 	@Override
 	public boolean mouseClicked(double mouseX, double mouseY, int mouseButton){
 		this.filenameField.mouseClicked(mouseX, mouseY, mouseButton);
+		this.searchField.mouseClicked(mouseX, mouseY, mouseButton);
 		return super.mouseClicked(mouseX, mouseY, mouseButton);
 	}
 
 
-	public void navigateInto(File path) {
-		if (path.isFile()) {
+	public void navigateInto(FileEntry entry) {
+		if (entry.isFile()) {
+			if (entry.getName().endsWith(".txt")) {
+				// Selecting the file will have indexed it if it's a Bookworm archive
+				BookwormIndex index = BookwormIndex.loadSaved(entry.getPath());
+				if (index != null && index.getBooks().size() > 1) {
+					this.openArchive(entry.getPath(), index);
+					return;
+				}
+			}
 			if (this.TEMP_CLIPBOARD.bookInClipboard) {
 				// Handles double-click
 				this.loadClicked(false);
 			}
 		}
 		else {
-			this.FILE_HANDLER.currentPath = path;
+			this.FILE_HANDLER.currentPath = entry.getPath();
 		}
 	}	
 	
 	
+	/**
+	 * Lists the books in a Bookworm archive so they can be loaded one at a time
+	 */
+	private void openArchive(File archive, BookwormIndex index) {
+		this.cancelPendingLoad();
+		this.TEMP_CLIPBOARD.clearBook();
+		this.openArchive = archive;
+		this.archiveBooks = index.getBooks();
+		this.selectedFile = null;
+		this.selectedBook = null;
+		this.populateFileList();
+		this.updateButtons();
+	}
+	
+	
+	public void bookDoubleClicked() {
+		if (this.TEMP_CLIPBOARD.bookInClipboard) {
+			this.loadClicked(false);
+		}
+	}
+	
+	
 	public void setHoveringText(String text) {
 		this.hoveringText = text;
 	}
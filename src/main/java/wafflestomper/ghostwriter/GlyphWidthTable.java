@@ -0,0 +1,187 @@
+package wafflestomper.ghostwriter;
+
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.gui.FontRenderer;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches the pixel width of every glyph we've measured so the layout code in BookUtilities doesn't have to
+ * build a String and walk the FontRenderer pipeline for every single character.
+ * Widths for the Basic Multilingual Plane live in flat byte arrays indexed by code point (filled lazily),
+ * anything above that goes into a small map.
+ * There's one table for the regular font and one for the forced Unicode font, and both are thrown away
+ * whenever resources are reloaded (see Ghostwriter.setup()).
+ * This talks to the FontRenderer, so it's only safe to use on the client thread. See snapshot() for everywhere else.
+ * warmUp() is called every client tick to measure the rest of the BMP a bit at a time, so taking the first snapshot
+ * doesn't have to measure it all in one go.
+ */
+public class GlyphWidthTable implements FontMetrics {
+	private static final Minecraft mc = Minecraft.getInstance();
+	private static final int BMP_SIZE = 0x10000;
+	/** Marks a slot in the BMP tables that hasn't been measured yet */
+	private static final byte UNKNOWN = -1;
+	/** How many code points warmUp() goes through each tick */
+	private static final int WARM_UP_CODE_POINTS = 1024;
+
+	private static GlyphWidthTable defaultFontTable;
+	private static GlyphWidthTable unicodeFontTable;
+
+	private final FontRenderer font;
+	private final byte[] normalWidths = new byte[BMP_SIZE];
+	private final byte[] boldWidths = new byte[BMP_SIZE];
+	private final Map<Integer, Integer> supplementaryNormalWidths = new HashMap<>();
+	private final Map<Integer, Integer> supplementaryBoldWidths = new HashMap<>();
+	private FontMetrics snapshot;
+	/** Every assigned BMP code point below this has been measured */
+	private int measuredUpTo = 0;
+
+
+	private GlyphWidthTable(FontRenderer _font){
+		this.font = _font;
+		Arrays.fill(this.normalWidths, UNKNOWN);
+		Arrays.fill(this.boldWidths, UNKNOWN);
+	}
+
+
+	/**
+	 * Returns the table for the font that's currently active, building a new one if the font renderer or
+	 * the Unicode font setting has changed since we last looked.
+	 */
+	public static GlyphWidthTable get(){
+		boolean unicode = mc.gameSettings != null && mc.gameSettings.forceUnicodeFont;
+		GlyphWidthTable table = unicode ? unicodeFontTable : defaultFontTable;
+		if (table == null || table.font != mc.fontRenderer){
+			table = new GlyphWidthTable(mc.fontRenderer);
+			if (unicode){
+				unicodeFontTable = table;
+			}
+			else{
+				defaultFontTable = table;
+			}
+		}
+		return table;
+	}
+
+
+	/**
+	 * Drops all cached widths. Called when the resource packs (and therefore the fonts) are reloaded.
+	 */
+	public static void invalidate(){
+		defaultFontTable = null;
+		unicodeFontTable = null;
+	}
+
+
+	/**
+	 * Measures the next few BMP code points in the current font's table, if it hasn't all been measured yet. Called
+	 * on the client thread every tick.
+	 */
+	public static void warmUp(){
+		if (mc.fontRenderer == null){
+			return;
+		}
+		GlyphWidthTable table = get();
+		table.measureUpTo(table.measuredUpTo + WARM_UP_CODE_POINTS);
+	}
+	
+	
+	private void measureUpTo(int end){
+		end = Math.min(end, BMP_SIZE);
+		for (; this.measuredUpTo<end; this.measuredUpTo++){
+			int codePoint = this.measuredUpTo;
+			if (Character.isDefined(codePoint) && !Character.isSurrogate((char)codePoint)){
+				this.getWidth(codePoint, false);
+				this.getWidth(codePoint, true);
+			}
+		}
+	}
+
+
+	@Override
+	public int getWidth(int codePoint, boolean bold){
+		if (codePoint < BMP_SIZE){
+			byte[] widths = bold ? this.boldWidths : this.normalWidths;
+			int w = widths[codePoint];
+			if (w == UNKNOWN){
+				w = this.measure(codePoint, bold);
+				// Anything that doesn't fit in a byte is measured every time rather than cached incorrectly
+				if (w < Byte.MAX_VALUE){
+					widths[codePoint] = (byte)w;
+				}
+			}
+			return w;
+		}
+		Map<Integer, Integer> widths = bold ? this.supplementaryBoldWidths : this.supplementaryNormalWidths;
+		Integer w = widths.get(codePoint);
+		if (w == null){
+			w = this.measure(codePoint, bold);
+			widths.put(codePoint, w);
+		}
+		return w;
+	}
+
+
+	private int measure(int codePoint, boolean bold){
+		String glyph = new String(Character.toChars(codePoint));
+		if (bold){
+			// The font renderer ignores the formatting code itself when measuring
+			return this.font.getStringWidth("\u00a7l" + glyph);
+		}
+		return this.font.getStringWidth(glyph);
+	}
+
+
+	/**
+	 * Returns a copy of this table that can be used from any thread. This has to be called on the client thread,
+	 * since it measures every assigned BMP code point that warmUp() hasn't got to yet. Usually that's nothing, unless
+	 * a snapshot's needed within a few seconds of the fonts being loaded. It only happens once per table (i.e. once
+	 * per resource reload), after which the same snapshot is handed out.
+	 * Anything outside the BMP that hasn't been measured by then falls back to DefaultFontMetrics.
+	 */
+	@Override
+	public FontMetrics snapshot(){
+		if (this.snapshot == null){
+			this.measureUpTo(BMP_SIZE);
+			this.snapshot = new Snapshot(this);
+		}
+		return this.snapshot;
+	}
+	
+	
+	/**
+	 * Immutable copy of a GlyphWidthTable
+	 */
+	private static class Snapshot implements FontMetrics {
+		private final byte[] normalWidths;
+		private final byte[] boldWidths;
+		private final Map<Integer, Integer> supplementaryNormalWidths;
+		private final Map<Integer, Integer> supplementaryBoldWidths;
+		
+		
+		private Snapshot(GlyphWidthTable table){
+			this.normalWidths = table.normalWidths.clone();
+			this.boldWidths = table.boldWidths.clone();
+			this.supplementaryNormalWidths = new HashMap<>(table.supplementaryNormalWidths);
+			this.supplementaryBoldWidths = new HashMap<>(table.supplementaryBoldWidths);
+		}
+		
+		
+		@Override
+		public int getWidth(int codePoint, boolean bold){
+			Integer w = null;
+			if (codePoint < BMP_SIZE){
+				byte b = (bold ? this.boldWidths : this.normalWidths)[codePoint];
+				if (b != UNKNOWN){
+					w = (int)b;
+				}
+			}
+			else{
+				w = (bold ? this.supplementaryBoldWidths : this.supplementaryNormalWidths).get(codePoint);
+			}
+			return w != null ? w : DefaultFontMetrics.INSTANCE.getWidth(codePoint, bold);
+		}
+	}
+}
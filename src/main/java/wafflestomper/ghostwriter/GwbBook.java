@@ -0,0 +1,269 @@
+package wafflestomper.ghostwriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A book in Ghostwriter's binary format (.gwb), which stores the pages exactly as they are in the game. Loading one
+ * doesn't need any of the text processing or pagination that a .ghb file does.
+ *
+ * Layout (big endian, strings in DataOutput's modified UTF-8):
+ * <pre>
+ * int    magic ("GWB1")
+ * short  version
+ * short  flags (unused, 0)
+ * UTF    title
+ * UTF    author
+ * int    page count (n)
+ * int[n+1] page offsets, relative to the end of this table
+ * pages, each one:
+ *   byte  encoding (ENCODING_UTF8 or ENCODING_DEFLATE)
+ *   int   stored length
+ *   int   uncompressed length (deflated pages only)
+ *   bytes the UTF-8 text of the page, deflated if the encoding says so
+ * </pre>
+ *
+ * The header is read straight away, but pages are only decoded when they're asked for, so e.g. the title can be
+ * read from a big book without touching its pages. The file itself is read into memory in one go and closed, rather
+ * than memory mapped, since a mapping would stop the file being replaced or deleted on Windows until it was garbage
+ * collected.
+ */
+public class GwbBook {
+	private static final int MAGIC = 0x47574231; // GWB1
+	private static final short VERSION = 1;
+	static final byte ENCODING_UTF8 = 0;
+	static final byte ENCODING_DEFLATE = 1;
+	/** Pages are only stored deflated if it saves at least this fraction of their size */
+	private static final double MIN_DEFLATE_SAVING = 0.25;
+
+	private final ByteBuffer data;
+	private final String title;
+	private final String author;
+	private final int pageCount;
+	/** Where the offset table starts */
+	private final int offsetTable;
+	/** Where the pages start, which the offsets are relative to */
+	private final int pageData;
+	private final String[] pages;
+
+
+	private GwbBook(ByteBuffer _data) throws IOException {
+		this.data = _data;
+		try {
+			if (_data.getInt() != MAGIC){
+				throw new IOException("Not a GWB file");
+			}
+			short version = _data.getShort();
+			if (version != VERSION){
+				throw new IOException("Unsupported GWB version " + version);
+			}
+			_data.getShort(); // Flags
+			this.title = readUTF(_data);
+			this.author = readUTF(_data);
+			this.pageCount = _data.getInt();
+			this.offsetTable = _data.position();
+			if (this.pageCount < 0 || (long)this.offsetTable + (this.pageCount+1) * 4L > _data.limit()){
+				throw new IOException("GWB page table is corrupt");
+			}
+			this.pageData = this.offsetTable + (this.pageCount+1) * 4;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException("GWB file is truncated");
+		}
+		this.pages = new String[this.pageCount];
+	}
+
+
+	/**
+	 * Reads the header of a .gwb file
+	 * @throws java.io.FileNotFoundException If the file doesn't exist or can't be opened
+	 * @throws IOException If it can't be read or isn't a valid GWB file
+	 */
+	public static GwbBook open(File path) throws IOException {
+		try (FileInputStream in = new FileInputStream(path); FileChannel channel = in.getChannel()){
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE){
+				throw new IOException("GWB file is too big");
+			}
+			ByteBuffer buf = ByteBuffer.allocate((int)size);
+			while (buf.hasRemaining()){
+				if (channel.read(buf) < 0){
+					throw new IOException("GWB file is truncated");
+				}
+			}
+			buf.flip();
+			return new GwbBook(buf);
+		}
+	}
+
+
+	public String getTitle(){
+		return this.title;
+	}
+
+
+	public String getAuthor(){
+		return this.author;
+	}
+
+
+	public int getPageCount(){
+		return this.pageCount;
+	}
+
+
+	/**
+	 * Decodes a page, or returns it from the cache if it's already been decoded
+	 * @throws IOException If the page is corrupt
+	 */
+	public String getPage(int page) throws IOException {
+		if (this.pages[page] == null){
+			this.pages[page] = this.decodePage(page);
+		}
+		return this.pages[page];
+	}
+
+
+	private String decodePage(int page) throws IOException {
+		try {
+			int start = this.pageData + this.data.getInt(this.offsetTable + page*4);
+			int end = this.pageData + this.data.getInt(this.offsetTable + (page+1)*4);
+			if (start < this.pageData || end < start || end > this.data.limit()){
+				throw new IOException("GWB page " + page + " is out of bounds");
+			}
+			ByteBuffer buf = this.data.duplicate();
+			buf.limit(end).position(start);
+			byte encoding = buf.get();
+			int length = buf.getInt();
+			if (encoding == ENCODING_UTF8){
+				if (length != buf.remaining()){
+					throw new IOException("GWB page " + page + " has the wrong length");
+				}
+				return StandardCharsets.UTF_8.decode(buf).toString();
+			}
+			else if (encoding == ENCODING_DEFLATE){
+				int rawLength = buf.getInt();
+				if (length != buf.remaining() || rawLength < 0){
+					throw new IOException("GWB page " + page + " has the wrong length");
+				}
+				byte[] compressed = new byte[length];
+				buf.get(compressed);
+				byte[] raw = new byte[rawLength];
+				Inflater inflater = new Inflater();
+				try {
+					inflater.setInput(compressed);
+					if (inflater.inflate(raw) != rawLength || !inflater.finished()){
+						throw new IOException("GWB page " + page + " didn't inflate to the right length");
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("GWB page " + page + " is corrupt", e);
+				} finally {
+					inflater.end();
+				}
+				return new String(raw, StandardCharsets.UTF_8);
+			}
+			throw new IOException("GWB page " + page + " has unknown encoding " + encoding);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("GWB page " + page + " is truncated", e);
+		}
+	}
+
+
+	/**
+	 * Reads a string written by DataOutput.writeUTF()
+	 */
+	private static String readUTF(ByteBuffer buf) throws IOException {
+		int length = buf.getShort(buf.position()) & 0xFFFF;
+		// Including the length, which is what readUTF() expects
+		byte[] bytes = new byte[length + 2];
+		buf.get(bytes);
+		return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+	}
+
+
+	/**
+	 * Writes a book in GWB format. Each page is deflated if that makes it a good deal smaller.
+	 */
+	public static void write(OutputStream stream, String title, String author, List<String> pages) throws IOException {
+		byte[][] encoded = new byte[pages.size()][];
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			for (int i=0; i<pages.size(); i++){
+				encoded[i] = encodePage(pages.get(i), deflater);
+			}
+		} finally {
+			deflater.end();
+		}
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeShort(VERSION);
+		out.writeShort(0);
+		out.writeUTF(title);
+		out.writeUTF(author);
+		out.writeInt(pages.size());
+		int offset = 0;
+		for (byte[] page : encoded){
+			out.writeInt(offset);
+			offset += page.length;
+		}
+		out.writeInt(offset);
+		for (byte[] page : encoded){
+			out.write(page);
+		}
+		out.flush();
+	}
+
+
+	private static byte[] encodePage(String page, Deflater deflater) throws IOException {
+		byte[] raw = page.getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length + 9);
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] compressed = deflate(raw, deflater);
+		if (compressed != null && compressed.length <= raw.length * (1 - MIN_DEFLATE_SAVING)){
+			out.writeByte(ENCODING_DEFLATE);
+			out.writeInt(compressed.length);
+			out.writeInt(raw.length);
+			out.write(compressed);
+		}
+		else{
+			out.writeByte(ENCODING_UTF8);
+			out.writeInt(raw.length);
+			out.write(raw);
+		}
+		return bytes.toByteArray();
+	}
+
+
+	/**
+	 * @return The deflated bytes, or null if they'd be bigger than the original
+	 */
+	private static byte[] deflate(byte[] raw, Deflater deflater){
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		byte[] buf = new byte[raw.length];
+		int length = 0;
+		while (!deflater.finished()){
+			if (length == buf.length){
+				return null;
+			}
+			length += deflater.deflate(buf, length, buf.length - length);
+		}
+		byte[] out = new byte[length];
+		System.arraycopy(buf, 0, out, 0, length);
+		return out;
+	}
+}
@@ -0,0 +1,257 @@
+package wafflestomper.ghostwriter;
+
+/**
+ * Fast path for BookUtilities.deJSONify(). Nearly every page is either a plain JSON string or a simple
+ * {"text":"..."} component (possibly with a flat "extra" array and some formatting), so those are decoded here
+ * directly instead of building a Gson tree and a text component for every page.
+ *
+ * The output has to match ITextComponent.Serializer + getString() exactly, so anything this doesn't fully understand
+ * (translations, click/hover events, numbers, unusual escapes, malformed JSON, etc.) is handed back to the caller
+ * to go through Gson as before. Formatting fields are checked but otherwise ignored, since getString() doesn't
+ * include formatting either.
+ */
+class JsonPageDecoder {
+	private final String json;
+	private int pos = 0;
+
+
+	private JsonPageDecoder(String _json){
+		this.json = _json;
+	}
+
+
+	/**
+	 * @return The decoded text, the input itself if it can't possibly be JSON (which is what deJSONify() returns when
+	 *         parsing fails), or null if it needs to go through Gson
+	 */
+	static String decode(String json){
+		JsonPageDecoder decoder = new JsonPageDecoder(json);
+		decoder.skipWhitespace();
+		if (decoder.pos >= json.length()){
+			// Gson reads an empty document as null, so deJSONify() returns the input
+			return json;
+		}
+		char c = json.charAt(decoder.pos);
+		if (c != '"' && c != '{' && c != '[' && c != '-' && (c < '0' || c > '9') && "tTfFnN".indexOf(c) < 0){
+			// Gson would fail on the first character (e.g. an old-style page that's just plain text)
+			return json;
+		}
+		StringBuilder out = new StringBuilder(json.length());
+		// Anything after the first value is ignored, the same as Gson
+		return decoder.readComponent(out) ? out.toString() : null;
+	}
+
+
+	private void skipWhitespace(){
+		while (this.pos < this.json.length()){
+			char c = this.json.charAt(this.pos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r'){
+				return;
+			}
+			this.pos++;
+		}
+	}
+
+
+	private boolean next(char expected){
+		this.skipWhitespace();
+		if (this.pos < this.json.length() && this.json.charAt(this.pos) == expected){
+			this.pos++;
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * Reads a text component (a string or an object) and appends its getString() to out
+	 * @return False if it needs to go through Gson instead
+	 */
+	private boolean readComponent(StringBuilder out){
+		this.skipWhitespace();
+		if (this.pos >= this.json.length()){
+			return false;
+		}
+		char c = this.json.charAt(this.pos);
+		if (c == '"'){
+			return this.readString(out);
+		}
+		if (c == '{'){
+			this.pos++;
+			return this.readComponentObject(out);
+		}
+		return false;
+	}
+
+
+	private boolean readComponentObject(StringBuilder out){
+		String text = null;
+		String extra = null;
+		if (this.next('}')){
+			return false;
+		}
+		do {
+			this.skipWhitespace();
+			StringBuilder key = new StringBuilder();
+			if (this.pos >= this.json.length() || this.json.charAt(this.pos) != '"' || !this.readString(key) || !this.next(':')){
+				return false;
+			}
+			this.skipWhitespace();
+			// Duplicate keys are allowed, and the last one wins
+			switch (key.toString()){
+				case "text":
+					StringBuilder textValue = new StringBuilder();
+					if (!this.peek('"') || !this.readString(textValue)){
+						return false;
+					}
+					text = textValue.toString();
+					break;
+				case "extra":
+					StringBuilder extraValue = new StringBuilder();
+					if (!this.readExtra(extraValue)){
+						return false;
+					}
+					extra = extraValue.toString();
+					break;
+				case "bold":
+				case "italic":
+				case "underlined":
+				case "strikethrough":
+				case "obfuscated":
+					if (!this.skipLiteral("true") && !this.skipLiteral("false") && !(this.peek('"') && this.readString(new StringBuilder()))){
+						return false;
+					}
+					break;
+				case "color":
+				case "insertion":
+					if (!this.peek('"') || !this.readString(new StringBuilder())){
+						return false;
+					}
+					break;
+				default:
+					return false;
+			}
+		} while (this.next(','));
+		if (!this.next('}') || text == null){
+			// Components without any text (translations etc.) need Gson
+			return false;
+		}
+		out.append(text);
+		if (extra != null){
+			out.append(extra);
+		}
+		return true;
+	}
+
+
+	private boolean readExtra(StringBuilder out){
+		if (!this.next('[')){
+			return false;
+		}
+		if (this.next(']')){
+			// Gson rejects empty arrays of components
+			return false;
+		}
+		do {
+			if (!this.readComponent(out)){
+				return false;
+			}
+		} while (this.next(','));
+		return this.next(']');
+	}
+
+
+	private boolean peek(char c){
+		return this.pos < this.json.length() && this.json.charAt(this.pos) == c;
+	}
+
+
+	private boolean skipLiteral(String literal){
+		if (!this.json.startsWith(literal, this.pos)){
+			return false;
+		}
+		int end = this.pos + literal.length();
+		// Gson would read something like "trueish" as an (invalid) unquoted string
+		if (end < this.json.length() && "/\\;#={}[]:, \t\f\r\n".indexOf(this.json.charAt(end)) < 0){
+			return false;
+		}
+		this.pos = end;
+		return true;
+	}
+
+
+	/**
+	 * Reads a quoted string starting at pos and appends its contents to out
+	 */
+	private boolean readString(StringBuilder out){
+		int len = this.json.length();
+		this.pos++;
+		while (this.pos < len){
+			char c = this.json.charAt(this.pos++);
+			if (c == '"'){
+				return true;
+			}
+			if (c != '\\'){
+				out.append(c);
+				continue;
+			}
+			if (this.pos >= len){
+				return false;
+			}
+			char escaped = this.json.charAt(this.pos++);
+			switch (escaped){
+				case '"':
+				case '\\':
+				case '/':
+				case '\'':
+				case '\n':
+					out.append(escaped);
+					break;
+				case 'b':
+					out.append('\b');
+					break;
+				case 'f':
+					out.append('\f');
+					break;
+				case 'n':
+					out.append('\n');
+					break;
+				case 'r':
+					out.append('\r');
+					break;
+				case 't':
+					out.append('\t');
+					break;
+				case 'u':
+					if (this.pos + 4 > len){
+						return false;
+					}
+					int value = 0;
+					for (int i=0; i<4; i++){
+						char h = this.json.charAt(this.pos++);
+						int digit;
+						// Not Character.digit(), which also accepts non-ASCII digits
+						if (h >= '0' && h <= '9'){
+							digit = h - '0';
+						}
+						else if (h >= 'a' && h <= 'f'){
+							digit = h - 'a' + 10;
+						}
+						else if (h >= 'A' && h <= 'F'){
+							digit = h - 'A' + 10;
+						}
+						else{
+							return false;
+						}
+						value = (value << 4) | digit;
+					}
+					out.append((char)value);
+					break;
+				default:
+					return false;
+			}
+		}
+		// Unterminated string
+		return false;
+	}
+}
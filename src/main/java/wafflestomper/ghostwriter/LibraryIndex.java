@@ -0,0 +1,329 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The title, author, page count and content hash of every book in the SavedBooks folder (and its subfolders), so the
+ * file browser can show and sort by them without loading any books.
+ *
+ * The index is saved in the Ghostwriter folder. When it's refreshed, only books whose size or modification time
+ * have changed since they were indexed are loaded again, so after the first time it's just a walk over the folder.
+ * All of the updating happens on a background thread. Lookups are safe from any thread and never touch the disk.
+ */
+public class LibraryIndex {
+	private static final Logger LOG = LogManager.getLogger();
+	private static final int MAGIC = 0x47574c49; // GWLI
+	private static final int VERSION = 1;
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter library indexer");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+	private static LibraryIndex instance;
+
+	private final File root;
+	private final String rootPrefix;
+	private final File indexFile;
+	/** Keyed by path relative to the root, with / as the separator */
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	/** Goes up every time the index changes, so the browser knows when to sort again */
+	private final AtomicInteger version = new AtomicInteger();
+	/** Only used on the indexer thread */
+	private boolean loaded = false;
+
+
+	/**
+	 * What we know about one book
+	 */
+	public static class Entry {
+		public final String path;
+		public final long size;
+		public final long lastModified;
+		public final String title;
+		public final String author;
+		/** -1 if the file couldn't be loaded as a book */
+		public final int pageCount;
+		public final ContentHash hash;
+
+
+		private Entry(String _path, long _size, long _lastModified, String _title, String _author, int _pageCount, ContentHash _hash){
+			this.path = _path;
+			this.size = _size;
+			this.lastModified = _lastModified;
+			this.title = _title;
+			this.author = _author;
+			this.pageCount = _pageCount;
+			this.hash = _hash;
+		}
+
+
+		public boolean isBook(){
+			return this.pageCount >= 0;
+		}
+	}
+
+
+	private LibraryIndex(File _root, File _indexFile){
+		this.root = _root.getAbsoluteFile();
+		this.rootPrefix = this.root.getPath() + File.separator;
+		this.indexFile = _indexFile;
+	}
+
+
+	/**
+	 * The index for a library folder. The index file is kept in the folder above it (i.e. the Ghostwriter folder).
+	 */
+	public static synchronized LibraryIndex get(File root){
+		if (instance == null || !instance.root.equals(root.getAbsoluteFile())){
+			instance = new LibraryIndex(root, new File(root.getAbsoluteFile().getParentFile(), "library.index"));
+		}
+		return instance;
+	}
+
+
+	/**
+	 * Checks if a file is one that can be indexed (a book in one of Ghostwriter's own formats)
+	 */
+	public static boolean isIndexable(String name){
+		return name.endsWith(".ghb") || name.endsWith(".gwb") || name.endsWith(".ghm");
+	}
+
+
+	public int getVersion(){
+		return this.version.get();
+	}
+
+
+	/**
+	 * @return True if this file is somewhere in the library folder
+	 */
+	public boolean contains(File file){
+		return file.getAbsolutePath().startsWith(this.rootPrefix);
+	}
+
+
+	private String getKey(File file){
+		String path = file.getAbsolutePath();
+		if (!path.startsWith(this.rootPrefix)){
+			return null;
+		}
+		return path.substring(this.rootPrefix.length()).replace(File.separatorChar, '/');
+	}
+
+
+	/**
+	 * @return What's known about the file, or null if it hasn't been indexed yet or it's changed since it was
+	 */
+	public Entry lookup(FileEntry file){
+		String key = this.getKey(file.getPath());
+		if (key == null){
+			return null;
+		}
+		Entry entry = this.entries.get(key);
+		if (entry == null || entry.size != file.getSize() || entry.lastModified != file.getLastModified()){
+			return null;
+		}
+		return entry;
+	}
+
+
+	/**
+	 * Brings the index up to date in the background. Has to be called on the client thread.
+	 */
+	public void refreshAsync(){
+		FontMetrics metrics = GlyphWidthTable.get().snapshot();
+		EXECUTOR.execute(() -> {
+			try {
+				this.refresh(metrics);
+			} catch (RuntimeException e) {
+				LOG.error("Error updating the library index", e);
+			}
+		});
+	}
+
+
+	/**
+	 * Updates one book in the background (e.g. after it's been saved). Has to be called on the client thread.
+	 */
+	public void updateAsync(File file){
+		if (!this.contains(file) || !isIndexable(file.getName())){
+			return;
+		}
+		FontMetrics metrics = GlyphWidthTable.get().snapshot();
+		EXECUTOR.execute(() -> {
+			try {
+				this.load();
+				BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				if (this.update(file, attributes, metrics)){
+					this.save();
+				}
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Error updating the library index for " + file, e);
+			}
+		});
+	}
+
+
+	private void refresh(FontMetrics metrics){
+		this.load();
+		if (!this.root.isDirectory()){
+			return;
+		}
+		Set<String> found = new HashSet<>();
+		boolean[] changed = {false};
+		try {
+			Files.walkFileTree(this.root.toPath(), new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes){
+					File file = path.toFile();
+					if (attributes.isRegularFile() && isIndexable(file.getName())){
+						found.add(LibraryIndex.this.getKey(file));
+						if (LibraryIndex.this.update(file, attributes, metrics)){
+							changed[0] = true;
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e){
+					// e.g. no permission, which shouldn't stop the rest being indexed
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.error("Couldn't scan the library folder", e);
+			return;
+		}
+		if (this.entries.keySet().retainAll(found)){
+			changed[0] = true;
+			this.version.incrementAndGet();
+		}
+		if (changed[0]){
+			this.save();
+		}
+	}
+
+
+	/**
+	 * Loads the book again if it's changed since it was last indexed
+	 * @return True if the index changed
+	 */
+	private boolean update(File file, BasicFileAttributes attributes, FontMetrics metrics){
+		String key = this.getKey(file);
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+		Entry old = this.entries.get(key);
+		if (old != null && old.size == size && old.lastModified == modified){
+			return false;
+		}
+		ContentHash hash;
+		try {
+			hash = ContentHash.of(file);
+		} catch (IOException e) {
+			LOG.warn("Couldn't read " + file, e);
+			return false;
+		}
+		Entry entry;
+		if (old != null && hash.equals(old.hash)){
+			// Touched but not changed, so there's no need to load it again
+			entry = new Entry(key, size, modified, old.title, old.author, old.pageCount, hash);
+		}
+		else{
+			Clipboard book = new Clipboard();
+			boolean isBook = FileHandler.quiet(book, this.root.getParentFile()).loadBookUncached(file, metrics);
+			entry = new Entry(key, size, modified, book.title, book.author, isBook ? book.pages.size() : -1, hash);
+		}
+		this.entries.put(key, entry);
+		this.version.incrementAndGet();
+		return true;
+	}
+
+
+	private void load(){
+		if (this.loaded){
+			return;
+		}
+		this.loaded = true;
+		if (!this.indexFile.isFile()){
+			return;
+		}
+		Map<String, Entry> read = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)))){
+			if (in.readInt() != MAGIC || in.readInt() != VERSION){
+				return;
+			}
+			int count = in.readInt();
+			for (int i=0; i<count; i++){
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				String title = in.readUTF();
+				String author = in.readUTF();
+				int pageCount = in.readInt();
+				byte[] hash = new byte[in.readUnsignedByte()];
+				in.readFully(hash);
+				read.put(path, new Entry(path, size, modified, title, author, pageCount, ContentHash.fromBytes(hash)));
+			}
+		} catch (EOFException e) {
+			LOG.warn("Library index is truncated, so it'll be rebuilt");
+			return;
+		} catch (IOException e) {
+			LOG.warn("Couldn't read the library index, so it'll be rebuilt", e);
+			return;
+		}
+		this.entries.putAll(read);
+		this.version.incrementAndGet();
+	}
+
+
+	private void save(){
+		boolean saved = FileHandler.writeFileAtomically(this.indexFile, stream -> {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			// Take a copy, since the count has to match what's written
+			Entry[] toWrite = this.entries.values().toArray(new Entry[0]);
+			out.writeInt(toWrite.length);
+			for (Entry entry : toWrite){
+				out.writeUTF(entry.path);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeUTF(entry.title);
+				out.writeUTF(entry.author);
+				out.writeInt(entry.pageCount);
+				byte[] hash = entry.hash.getBytes();
+				out.writeByte(hash.length);
+				out.write(hash);
+			}
+			out.flush();
+		});
+		if (!saved){
+			LOG.warn("Couldn't save the library index");
+		}
+	}
+}
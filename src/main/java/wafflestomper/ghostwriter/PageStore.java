@@ -0,0 +1,689 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Stores each distinct page once, no matter how many books it's in. A book saved as a manifest (.ghm) only holds
+ * its title, author and the hashes of its pages, so saving the same book again or putting the same signature page in
+ * every book costs a few bytes a page.
+ *
+ * The pages live in one append-only pack file in the PageStore folder (one file per page would waste most of a disk
+ * block each). Every manifest the store knows about is listed in a registry along with its page hashes, and each
+ * page's reference count is worked out from that. Pages whose count drops to zero are left in the pack until enough
+ * of it is unused, then the pack is rewritten without them. Manifests that are deleted or changed outside the game
+ * are picked up by collectGarbage(), which checks every registered manifest. It also registers every manifest it
+ * finds in the library first, so one that's been moved or renamed keeps its pages.
+ *
+ * Everything that touches the pack or the registry is synchronized, so saves, loads and garbage collection can
+ * happen on different threads.
+ *
+ * Manifest layout (big endian, strings in DataOutput's modified UTF-8):
+ * <pre>
+ * int    magic ("GHM1")
+ * short  version
+ * short  flags (unused, 0)
+ * UTF    title
+ * UTF    author
+ * int    page count
+ * byte[32] SHA-256 of the UTF-8 text of each page
+ * </pre>
+ */
+public class PageStore {
+	private static final Logger LOG = LogManager.getLogger();
+	private static final int MANIFEST_MAGIC = 0x47484d31; // GHM1
+	private static final short MANIFEST_VERSION = 1;
+	private static final int REGISTRY_MAGIC = 0x47575053; // GWPS
+	private static final int REGISTRY_VERSION = 1;
+	private static final int HASH_LENGTH = 32;
+	/** Each page in the pack is its hash, then its length, then its text */
+	private static final int RECORD_HEADER = HASH_LENGTH + 4;
+	/** The pack's only rewritten once there's at least this much unused, and it's at least this fraction of it */
+	private static final long MIN_DEAD_BYTES = 256 * 1024;
+	private static final double MIN_DEAD_FRACTION = 0.5;
+	private static final int MAX_PAGES = 1000000;
+	/** Registered in place of a registry that couldn't be read, to keep every page that was already in the pack */
+	private static final String PINNED = "";
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter page store");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+	private static PageStore instance;
+
+	private final File dir;
+	private final File packFile;
+	private final File registryFile;
+	private boolean opened = false;
+	/** Where each page's text is in the pack */
+	private final Map<ContentHash, Location> locations = new HashMap<>();
+	/** How many times each page is used, across every registered manifest. Unused pages aren't in here. */
+	private final Map<ContentHash, Integer> refCounts = new HashMap<>();
+	/** Keyed by absolute path */
+	private final Map<String, Registration> manifests = new HashMap<>();
+	private long packLength = 0;
+	/** How much of the pack is pages that nothing uses any more */
+	private long deadBytes = 0;
+
+
+	/**
+	 * A book as it's saved in a manifest
+	 */
+	public static class Manifest {
+		public final String title;
+		public final String author;
+		public final List<ContentHash> pages;
+
+
+		private Manifest(String _title, String _author, List<ContentHash> _pages){
+			this.title = _title;
+			this.author = _author;
+			this.pages = Collections.unmodifiableList(_pages);
+		}
+	}
+
+
+	private static class Location {
+		private final long offset;
+		private final int length;
+
+
+		private Location(long _offset, int _length){
+			this.offset = _offset;
+			this.length = _length;
+		}
+	}
+
+
+	/**
+	 * A manifest the store knows about, and what it looked like when it was last read
+	 */
+	private static class Registration {
+		/** -1 if the manifest hasn't been written yet, so it gets read again the next time it's checked */
+		private final long size;
+		private final long lastModified;
+		private final List<ContentHash> pages;
+
+
+		private Registration(long _size, long _lastModified, List<ContentHash> _pages){
+			this.size = _size;
+			this.lastModified = _lastModified;
+			this.pages = _pages;
+		}
+	}
+
+
+	private PageStore(File _dir){
+		this.dir = _dir.getAbsoluteFile();
+		this.packFile = new File(this.dir, "pages.pack");
+		this.registryFile = new File(this.dir, "manifests.index");
+	}
+
+
+	public static synchronized PageStore get(File dir){
+		if (instance == null || !instance.dir.equals(dir.getAbsoluteFile())){
+			instance = new PageStore(dir);
+		}
+		return instance;
+	}
+
+
+	public static boolean isManifest(File file){
+		return file.getName().endsWith(".ghm");
+	}
+
+
+	/**
+	 * @throws java.io.FileNotFoundException If the file doesn't exist or can't be opened
+	 * @throws IOException If it can't be read or isn't a valid manifest
+	 */
+	public static Manifest readManifest(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+			if (in.readInt() != MANIFEST_MAGIC){
+				throw new IOException("Not a GHM file");
+			}
+			short version = in.readShort();
+			if (version != MANIFEST_VERSION){
+				throw new IOException("Unsupported GHM version " + version);
+			}
+			in.readShort(); // Flags
+			String title = in.readUTF();
+			String author = in.readUTF();
+			int count = in.readInt();
+			if (count < 0 || count > MAX_PAGES){
+				throw new IOException("GHM page count is corrupt");
+			}
+			List<ContentHash> pages = new ArrayList<>(count);
+			for (int i=0; i<count; i++){
+				pages.add(readHash(in));
+			}
+			return new Manifest(title, author, pages);
+		} catch (EOFException e) {
+			throw new IOException("GHM file is truncated");
+		}
+	}
+
+
+	private static void writeManifest(OutputStream stream, String title, String author, List<ContentHash> pages) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MANIFEST_MAGIC);
+		out.writeShort(MANIFEST_VERSION);
+		out.writeShort(0);
+		out.writeUTF(title);
+		out.writeUTF(author);
+		out.writeInt(pages.size());
+		for (ContentHash page : pages){
+			out.write(page.getBytes());
+		}
+		out.flush();
+	}
+
+
+	private static ContentHash readHash(DataInputStream in) throws IOException {
+		byte[] hash = new byte[HASH_LENGTH];
+		in.readFully(hash);
+		return ContentHash.fromBytes(hash);
+	}
+
+
+	/**
+	 * Saves a book as a manifest, adding any pages the store doesn't already have.
+	 * The pages go into the pack, and the manifest is registered with the pages of both its old and new versions,
+	 * before the new manifest is written. So a crash part way through can leave unused pages behind, but never a
+	 * manifest (old or new) whose pages could be collected. The old version's pages are only let go once the new
+	 * manifest's in place.
+	 * @throws IOException If anything couldn't be written, in which case the old manifest (if any) and its
+	 *                     registration are left alone
+	 */
+	public synchronized void saveBook(File manifestFile, String title, String author, List<String> pages) throws IOException {
+		this.open();
+		String key = manifestFile.getAbsolutePath();
+		List<ContentHash> hashes = this.addPages(pages);
+		Registration old = this.manifests.get(key);
+		List<ContentHash> both = new ArrayList<>(hashes);
+		if (old != null){
+			both.addAll(old.pages);
+		}
+		// The size of -1 means it's read again the next time garbage is collected if the game stops before the end
+		this.setRegistration(key, new Registration(-1, -1, both));
+		boolean written = false;
+		try {
+			if (!this.saveRegistry()){
+				throw new IOException("Couldn't save the page store registry");
+			}
+			if (!FileHandler.writeFileAtomically(manifestFile, out -> writeManifest(out, title, author, hashes))){
+				throw new IOException("Couldn't write " + manifestFile);
+			}
+			written = true;
+		} finally {
+			if (!written){
+				this.setRegistration(key, old);
+				this.saveRegistry();
+			}
+		}
+		this.setRegistration(key, new Registration(manifestFile.length(), manifestFile.lastModified(), hashes));
+		this.compactIfNeeded();
+	}
+
+
+	/**
+	 * Reads the text of a book's pages
+	 * @throws IOException If any of them are missing or corrupt
+	 */
+	public synchronized List<String> readPages(List<ContentHash> pages) throws IOException {
+		this.open();
+		List<String> out = new ArrayList<>(pages.size());
+		if (pages.isEmpty()){
+			return out;
+		}
+		try (RandomAccessFile pack = new RandomAccessFile(this.packFile, "r")){
+			for (ContentHash page : pages){
+				Location location = this.locations.get(page);
+				if (location == null){
+					throw new IOException("Page " + page + " is missing from the page store");
+				}
+				byte[] bytes = new byte[location.length];
+				pack.seek(location.offset + RECORD_HEADER);
+				pack.readFully(bytes);
+				if (!ContentHash.of(bytes).equals(page)){
+					throw new IOException("Page " + page + " is corrupt");
+				}
+				out.add(new String(bytes, StandardCharsets.UTF_8));
+			}
+		}
+		return out;
+	}
+
+
+	/**
+	 * Makes sure a manifest that's been loaded is registered, so its pages are kept (e.g. if it was copied in from
+	 * somewhere else along with the page store)
+	 */
+	public synchronized void register(File manifestFile, Manifest manifest){
+		try {
+			this.open();
+		} catch (IOException e) {
+			LOG.error("Couldn't open the page store", e);
+			return;
+		}
+		String key = manifestFile.getAbsolutePath();
+		Registration old = this.manifests.get(key);
+		Registration current = new Registration(manifestFile.length(), manifestFile.lastModified(), manifest.pages);
+		if (old != null && old.pages.equals(manifest.pages)){
+			this.manifests.put(key, current);
+			return;
+		}
+		this.setRegistration(key, current);
+		this.saveRegistry();
+	}
+
+
+	/**
+	 * Checks every registered manifest in the background, and lets go of the pages of any that have been deleted or
+	 * changed outside the game
+	 * @param library The folder books are saved in. Any manifests in it (or its subfolders) are registered first, so
+	 *                manifests that have been moved or renamed outside the game keep their pages.
+	 */
+	public void collectGarbageAsync(File library){
+		EXECUTOR.execute(() -> {
+			try {
+				this.collectGarbage(library);
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Error collecting unused pages", e);
+			}
+		});
+	}
+
+
+	synchronized void collectGarbage(File library) throws IOException {
+		this.open();
+		// Registering whatever's in the library before anything's let go means a moved manifest's pages are never
+		// unreferenced, even for a moment
+		boolean changed = this.registerLibrary(library);
+		for (String key : new ArrayList<>(this.manifests.keySet())){
+			if (key.equals(PINNED)){
+				continue;
+			}
+			Registration registration = this.manifests.get(key);
+			File file = new File(key);
+			if (!file.isFile()){
+				this.setRegistration(key, null);
+				changed = true;
+				continue;
+			}
+			if (file.length() == registration.size && file.lastModified() == registration.lastModified){
+				continue;
+			}
+			Registration current;
+			try {
+				current = new Registration(file.length(), file.lastModified(), readManifest(file).pages);
+			} catch (IOException e) {
+				// It's been overwritten with something that isn't a manifest
+				current = null;
+			}
+			this.setRegistration(key, current);
+			changed = true;
+		}
+		if (changed){
+			this.saveRegistry();
+		}
+		this.compactIfNeeded();
+	}
+
+
+	/**
+	 * Registers every manifest in the library that isn't registered at its current path, or has changed since it was
+	 * @return True if any registrations changed
+	 */
+	private boolean registerLibrary(File library){
+		if (!library.isDirectory()){
+			return false;
+		}
+		boolean[] changed = {false};
+		try {
+			Files.walkFileTree(library.toPath(), new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes){
+					File file = path.toFile().getAbsoluteFile();
+					if (!attributes.isRegularFile() || !isManifest(file)){
+						return FileVisitResult.CONTINUE;
+					}
+					String key = file.getPath();
+					long size = attributes.size();
+					long modified = attributes.lastModifiedTime().toMillis();
+					Registration registration = PageStore.this.manifests.get(key);
+					if (registration != null && registration.size == size && registration.lastModified == modified){
+						return FileVisitResult.CONTINUE;
+					}
+					try {
+						PageStore.this.setRegistration(key, new Registration(size, modified, readManifest(file).pages));
+						changed[0] = true;
+					} catch (IOException e) {
+						// Not a manifest (or not readable right now), so it's left to the check below
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e){
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.warn("Couldn't scan " + library + " for manifests", e);
+		}
+		return changed[0];
+	}
+
+
+	/**
+	 * Replaces a manifest's registration, updating the reference counts of the pages in the old and new versions
+	 * @param registration The new registration, or null to forget about the manifest
+	 */
+	private void setRegistration(String key, Registration registration){
+		Registration old = registration == null ? this.manifests.remove(key) : this.manifests.put(key, registration);
+		if (registration != null){
+			for (ContentHash page : registration.pages){
+				this.addReference(page);
+			}
+		}
+		if (old != null){
+			for (ContentHash page : old.pages){
+				this.removeReference(page);
+			}
+		}
+	}
+
+
+	private void addReference(ContentHash page){
+		Integer count = this.refCounts.get(page);
+		if (count == null){
+			Location location = this.locations.get(page);
+			if (location != null){
+				this.deadBytes -= RECORD_HEADER + location.length;
+			}
+			count = 0;
+		}
+		this.refCounts.put(page, count + 1);
+	}
+
+
+	private void removeReference(ContentHash page){
+		Integer count = this.refCounts.get(page);
+		if (count == null){
+			return;
+		}
+		if (count > 1){
+			this.refCounts.put(page, count - 1);
+			return;
+		}
+		this.refCounts.remove(page);
+		Location location = this.locations.get(page);
+		if (location != null){
+			this.deadBytes += RECORD_HEADER + location.length;
+		}
+	}
+
+
+	/**
+	 * Appends any pages that aren't already in the pack
+	 * @return The hash of each page
+	 */
+	private List<ContentHash> addPages(List<String> pages) throws IOException {
+		List<ContentHash> hashes = new ArrayList<>(pages.size());
+		Map<ContentHash, Location> added = new HashMap<>();
+		long offset = this.packLength;
+		try (FileOutputStream file = new FileOutputStream(this.packFile, true)){
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+			for (String page : pages){
+				byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+				ContentHash hash = ContentHash.of(bytes);
+				hashes.add(hash);
+				if (this.locations.containsKey(hash) || added.containsKey(hash)){
+					continue;
+				}
+				out.write(hash.getBytes());
+				out.writeInt(bytes.length);
+				out.write(bytes);
+				added.put(hash, new Location(offset, bytes.length));
+				offset += RECORD_HEADER + bytes.length;
+			}
+			out.flush();
+			if (!added.isEmpty()){
+				file.getChannel().force(true);
+			}
+		} catch (IOException e) {
+			// Don't leave half a page on the end
+			try (RandomAccessFile pack = new RandomAccessFile(this.packFile, "rw")){
+				pack.setLength(this.packLength);
+			} catch (IOException e2) {
+				LOG.warn("Couldn't truncate the page pack", e2);
+			}
+			throw e;
+		}
+		for (Map.Entry<ContentHash, Location> page : added.entrySet()){
+			this.locations.put(page.getKey(), page.getValue());
+			// Not referenced until the manifest's registered
+			this.deadBytes += RECORD_HEADER + page.getValue().length;
+		}
+		this.packLength = offset;
+		return hashes;
+	}
+
+
+	/**
+	 * Rewrites the pack without the pages nothing uses, once enough of it is unused to be worth it
+	 */
+	private void compactIfNeeded() throws IOException {
+		if (this.deadBytes < MIN_DEAD_BYTES || this.deadBytes < this.packLength * MIN_DEAD_FRACTION){
+			return;
+		}
+		List<Map.Entry<ContentHash, Location>> live = new ArrayList<>();
+		for (Map.Entry<ContentHash, Location> page : this.locations.entrySet()){
+			if (this.refCounts.containsKey(page.getKey())){
+				live.add(page);
+			}
+		}
+		// Copy in pack order, so the old pack is read from start to end
+		live.sort(Comparator.comparingLong(page -> page.getValue().offset));
+		Map<ContentHash, Location> moved = new HashMap<>();
+		long[] newLength = {0};
+		boolean written = FileHandler.writeFileAtomically(this.packFile, stream -> {
+			// Closed before the new pack's moved into place, which Windows needs
+			try (RandomAccessFile oldPack = new RandomAccessFile(this.packFile, "r")){
+				DataOutputStream out = new DataOutputStream(stream);
+				byte[] buf = new byte[4096];
+				for (Map.Entry<ContentHash, Location> page : live){
+					int length = RECORD_HEADER + page.getValue().length;
+					if (buf.length < length){
+						buf = new byte[length];
+					}
+					oldPack.seek(page.getValue().offset);
+					oldPack.readFully(buf, 0, length);
+					out.write(buf, 0, length);
+					moved.put(page.getKey(), new Location(newLength[0], page.getValue().length));
+					newLength[0] += length;
+				}
+				out.flush();
+			}
+		});
+		if (!written){
+			LOG.warn("Couldn't compact the page pack");
+			return;
+		}
+		LOG.info("Compacted the page pack from " + this.packLength + " to " + newLength[0] + " bytes");
+		this.locations.clear();
+		this.locations.putAll(moved);
+		this.packLength = newLength[0];
+		this.deadBytes = 0;
+	}
+
+
+	/**
+	 * Reads the pack's table of contents and the registry the first time the store is used
+	 */
+	private void open() throws IOException {
+		if (this.opened){
+			return;
+		}
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()){
+			throw new IOException("Couldn't create " + this.dir);
+		}
+		this.scanPack();
+		this.loadRegistry();
+		for (Registration registration : this.manifests.values()){
+			for (ContentHash page : registration.pages){
+				this.refCounts.merge(page, 1, Integer::sum);
+			}
+		}
+		this.deadBytes = 0;
+		for (Map.Entry<ContentHash, Location> page : this.locations.entrySet()){
+			if (!this.refCounts.containsKey(page.getKey())){
+				this.deadBytes += RECORD_HEADER + page.getValue().length;
+			}
+		}
+		this.opened = true;
+	}
+
+
+	/**
+	 * Finds where each page is in the pack. A page that was only partly written (e.g. the game crashed while saving)
+	 * is cut off the end, which is found by checking each page against its hash.
+	 */
+	private void scanPack() throws IOException {
+		if (!this.packFile.isFile()){
+			return;
+		}
+		long length = this.packFile.length();
+		long offset = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.packFile), 64 * 1024))){
+			while (offset + RECORD_HEADER <= length){
+				ContentHash hash = readHash(in);
+				int pageLength = in.readInt();
+				if (pageLength < 0 || offset + RECORD_HEADER + pageLength > length){
+					break;
+				}
+				byte[] page = new byte[pageLength];
+				in.readFully(page);
+				if (!ContentHash.of(page).equals(hash)){
+					// Whatever was being written when the game stopped
+					break;
+				}
+				if (this.locations.containsKey(hash)){
+					// Added again after a crash, so this copy's never used
+					this.deadBytes += RECORD_HEADER + pageLength;
+				}
+				else{
+					this.locations.put(hash, new Location(offset, pageLength));
+				}
+				offset += RECORD_HEADER + pageLength;
+			}
+		}
+		if (offset != length){
+			LOG.warn("Page pack has " + (length - offset) + " bytes of a partly written page on the end, which will be removed");
+			try (RandomAccessFile pack = new RandomAccessFile(this.packFile, "rw")){
+				pack.setLength(offset);
+			}
+		}
+		this.packLength = offset;
+	}
+
+
+	private void loadRegistry(){
+		if (!this.registryFile.isFile()){
+			if (!this.locations.isEmpty()){
+				this.pinAllPages();
+			}
+			return;
+		}
+		Map<String, Registration> read = new HashMap<>();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.registryFile), 64 * 1024))){
+			if (in.readInt() != REGISTRY_MAGIC || in.readInt() != REGISTRY_VERSION){
+				throw new IOException("Page store registry is from a different version");
+			}
+			int count = in.readInt();
+			for (int i=0; i<count; i++){
+				String path = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				int pageCount = in.readInt();
+				if (pageCount < 0 || pageCount > MAX_PAGES){
+					throw new IOException("Page store registry is corrupt");
+				}
+				List<ContentHash> pages = new ArrayList<>(pageCount);
+				for (int j=0; j<pageCount; j++){
+					pages.add(readHash(in));
+				}
+				read.put(path, new Registration(size, modified, pages));
+			}
+		} catch (IOException e) {
+			LOG.error("Couldn't read the page store registry", e);
+			this.pinAllPages();
+			return;
+		}
+		this.manifests.putAll(read);
+	}
+
+
+	/**
+	 * Without the registry every page looks unused, so rather than risk losing any, every page that's already in the
+	 * pack is kept for good. Only pages added from now on can be collected.
+	 */
+	private void pinAllPages(){
+		LOG.warn("Page store registry is missing, so the pages that are already stored will never be collected");
+		this.manifests.put(PINNED, new Registration(0, 0, new ArrayList<>(this.locations.keySet())));
+	}
+
+
+	private boolean saveRegistry(){
+		boolean saved = FileHandler.writeFileAtomically(this.registryFile, stream -> {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeInt(REGISTRY_MAGIC);
+			out.writeInt(REGISTRY_VERSION);
+			out.writeInt(this.manifests.size());
+			for (Map.Entry<String, Registration> manifest : this.manifests.entrySet()){
+				Registration registration = manifest.getValue();
+				out.writeUTF(manifest.getKey());
+				out.writeLong(registration.size);
+				out.writeLong(registration.lastModified);
+				out.writeInt(registration.pages.size());
+				for (ContentHash page : registration.pages){
+					out.write(page.getBytes());
+				}
+			}
+			out.flush();
+		});
+		if (!saved){
+			LOG.warn("Couldn't save the page store registry");
+		}
+		return saved;
+	}
+}
@@ -0,0 +1,230 @@
+package wafflestomper.ghostwriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A block of text and the pages it's laid out on, which can be updated without paginating the whole thing again.
+ *
+ * Every page remembers where it starts in the text (if it's somewhere pagination can be restarted from, see
+ * Paginator.getLastPageStart()). When the text changes, pages are only recalculated from a little before the first
+ * change, and as soon as a recalculated page starts at the same place in the unchanged tail of the text as an old
+ * page did, the rest of the old pages are reused as-is. So editing a page near the end of a long book only costs a
+ * few pages of layout.
+ *
+ * The results are exactly the same as BookUtilities.stringToPages() (if there's no page break string) or
+ * BookUtilities.stringWithPageBreaksToPages() (if there is).
+ */
+public class PaginatedText {
+	private final String pageBreak;
+	private final FontMetrics metrics;
+
+	/** The text, with line endings normalized to \n */
+	private String text = "";
+	private final List<String> pages = new ArrayList<>();
+	/** Where each page starts in text, or -1 if pagination can't be restarted there */
+	private final List<Integer> pageStarts = new ArrayList<>();
+
+
+	/**
+	 * @param _pageBreak String that forces a new page, or null if the text has no page breaks
+	 */
+	public PaginatedText(String _pageBreak, FontMetrics _metrics){
+		this.pageBreak = (_pageBreak == null || _pageBreak.isEmpty()) ? null : _pageBreak;
+		this.metrics = _metrics;
+	}
+
+
+	public List<String> getPages(){
+		return Collections.unmodifiableList(this.pages);
+	}
+
+
+	public String getText(){
+		return this.text;
+	}
+
+
+	public FontMetrics getMetrics(){
+		return this.metrics;
+	}
+
+
+	/**
+	 * Replaces the text and updates the pages to match it
+	 * @return The index of the first page that changed (which is the number of pages if none did)
+	 */
+	public int setText(String newText){
+		newText = newText.replace("\r\n", "\n").replace('\r', '\n');
+		String oldText = this.text;
+		if (newText.equals(oldText)){
+			return this.pages.size();
+		}
+		if (this.pages.isEmpty()){
+			this.layOutEverything(newText);
+			return 0;
+		}
+
+		// Work out which part of the text actually changed
+		int maxCommon = Math.min(oldText.length(), newText.length());
+		int prefix = 0;
+		while (prefix < maxCommon && oldText.charAt(prefix) == newText.charAt(prefix)){
+			prefix++;
+		}
+		int suffix = 0;
+		while (suffix < maxCommon - prefix
+				&& oldText.charAt(oldText.length()-1-suffix) == newText.charAt(newText.length()-1-suffix)){
+			suffix++;
+		}
+		int changeEnd = newText.length() - suffix;
+		int shift = newText.length() - oldText.length();
+
+		// Pick a page to restart from. Where a page starts depends on a little of the text after that point (the
+		// rest of the line that didn't fit, or a partial page break), so we go back one more restart point than we
+		// strictly need to, which keeps us well clear of the change.
+		int lookahead = this.pageBreak == null ? 1 : this.pageBreak.length();
+		int restartPage = 0;
+		int restartFrom = 0;
+		int previousRestartPage = -1;
+		for (int i=0; i<this.pages.size(); i++){
+			int start = this.pageStarts.get(i);
+			if (start < 0){
+				continue;
+			}
+			if (start + lookahead > prefix){
+				break;
+			}
+			if (previousRestartPage >= 0){
+				restartPage = previousRestartPage;
+				restartFrom = this.pageStarts.get(previousRestartPage);
+			}
+			previousRestartPage = i;
+		}
+
+		List<String> newPages = new ArrayList<>(this.pages.subList(0, restartPage));
+		List<Integer> newStarts = new ArrayList<>(this.pageStarts.subList(0, restartPage));
+		StringReader reader = new StringReader(newText);
+		try {
+			reader.skip(restartFrom);
+		}
+		catch (IOException e){
+			// StringReader never actually throws this
+			throw new IllegalStateException(e);
+		}
+		Paginator paginator = new Paginator(reader, this.pageBreak, this.metrics);
+		int oldPage = restartPage;
+		while (paginator.hasNext()){
+			String page = paginator.next();
+			int start = paginator.getLastPageStart();
+			if (start >= 0){
+				start += restartFrom;
+				// Once we're into the unchanged tail of the text, see if an old page started here too
+				if (start >= changeEnd){
+					int oldStart = start - shift;
+					while (oldPage < this.pages.size() && (this.pageStarts.get(oldPage) < 0 || this.pageStarts.get(oldPage) < oldStart)){
+						oldPage++;
+					}
+					if (oldPage < this.pages.size() && this.pageStarts.get(oldPage) == oldStart){
+						// Everything from here on will come out exactly the same as before
+						for (int i=oldPage; i<this.pages.size(); i++){
+							int oldPageStart = this.pageStarts.get(i);
+							newPages.add(this.pages.get(i));
+							newStarts.add(oldPageStart < 0 ? -1 : oldPageStart + shift);
+						}
+						break;
+					}
+				}
+			}
+			newPages.add(page);
+			newStarts.add(start);
+		}
+
+		int firstChanged = restartPage;
+		while (firstChanged < newPages.size() && firstChanged < this.pages.size()
+				&& newPages.get(firstChanged).equals(this.pages.get(firstChanged))){
+			firstChanged++;
+		}
+		this.text = newText;
+		this.pages.clear();
+		this.pages.addAll(newPages);
+		this.pageStarts.clear();
+		this.pageStarts.addAll(newStarts);
+		return firstChanged;
+	}
+
+
+	/**
+	 * Paginates all of the text. This is used the first time, when there aren't any old pages to reuse.
+	 * Like BookUtilities.chunksToPages(), chunks between page breaks are paginated in parallel if there's enough text.
+	 */
+	private void layOutEverything(String newText){
+		List<Integer> chunkStarts = new ArrayList<>();
+		List<String> chunks = new ArrayList<>();
+		if (this.pageBreak == null){
+			chunkStarts.add(0);
+			chunks.add(newText);
+		}
+		else{
+			int chunkStart = 0;
+			while (chunkStart <= newText.length()){
+				int chunkEnd = newText.indexOf(this.pageBreak, chunkStart);
+				if (chunkEnd < 0){
+					chunkEnd = newText.length();
+				}
+				chunkStarts.add(chunkStart);
+				chunks.add(newText.substring(chunkStart, chunkEnd));
+				chunkStart = chunkEnd + this.pageBreak.length();
+			}
+		}
+		FontMetrics chunkMetrics = newText.length() < BookUtilities.PARALLEL_THRESHOLD ? this.metrics : this.metrics.snapshot();
+		IntStream indices = IntStream.range(0, chunks.size());
+		if (chunks.size() > 1 && newText.length() >= BookUtilities.PARALLEL_THRESHOLD){
+			indices = indices.parallel();
+		}
+		List<PaginatedText> chunkLayouts = indices.mapToObj(i -> {
+					PaginatedText chunk = new PaginatedText(null, chunkMetrics);
+					chunk.layOutChunk(chunks.get(i), chunkStarts.get(i), this.pageBreak != null);
+					return chunk;
+				})
+				.collect(Collectors.toList());
+
+		this.text = newText;
+		this.pages.clear();
+		this.pageStarts.clear();
+		for (PaginatedText chunk : chunkLayouts){
+			this.pages.addAll(chunk.pages);
+			this.pageStarts.addAll(chunk.pageStarts);
+		}
+	}
+
+
+	/**
+	 * Fills pages and pageStarts from a single chunk of text that starts at offset in the full text
+	 */
+	private void layOutChunk(String chunk, int offset, boolean dropBlankPages){
+		Paginator paginator = new Paginator(new StringReader(chunk), null, this.metrics);
+		while (paginator.hasNext()){
+			String page = paginator.next();
+			if (dropBlankPages && Paginator.isBlankPage(page)){
+				continue;
+			}
+			int start = paginator.getLastPageStart();
+			this.pages.add(page);
+			this.pageStarts.add(start < 0 ? -1 : start + offset);
+		}
+	}
+
+
+	/**
+	 * Replaces the text between start (inclusive) and end (exclusive) and updates the pages to match
+	 * @return The index of the first page that changed (which is the number of pages if none did)
+	 */
+	public int replaceText(int start, int end, String replacement){
+		return this.setText(this.text.substring(0, start) + replacement + this.text.substring(end));
+	}
+}
@@ -0,0 +1,357 @@
+package wafflestomper.ghostwriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Turns a stream of text into book pages without ever holding more than a page or so of it in memory.
+ * Pages are produced lazily, so callers can stop reading as soon as they have as many as they need.
+ *
+ * The rules are the same as BookUtilities.stringToPages(): text is wrapped to BOOK_TEXT_WIDTH, and a new page is
+ * started after 13 lines or 256 characters (whichever comes first). If a page break string is given, it also
+ * starts a new page wherever that appears, and pages that are left with nothing printable on them are dropped,
+ * which matches BookUtilities.stringWithPageBreaksToPages().
+ * Line endings are normalized, so \r\n and lone \r characters are treated the same as \n.
+ *
+ * Reading from the source can fail part way through, in which case hasNext() and next() throw an
+ * UncheckedIOException wrapping the original IOException.
+ *
+ * Each page also remembers where it started in the (line ending normalized) source, if it starts somewhere that
+ * pagination could be restarted from and give the same results (see getLastPageStart()). PaginatedText uses this
+ * to reflow only part of a book.
+ */
+public class Paginator implements Iterator<String> {
+	public static final int MAX_LINES_PER_PAGE = 13;
+	public static final int MAX_CHARS_PER_PAGE = 256;
+
+	private final Reader source;
+	private final FontMetrics metrics;
+	private final char[] readBuffer = new char[8192];
+	private boolean sourceFinished = false;
+	private boolean lastCharWasCR = false;
+	/** Offset in the normalized source of the next character to be read */
+	private int position = 0;
+
+	// Page break detection (a small KMP matcher, so we only ever hold back a partial marker)
+	private final String pageBreak;
+	private final int[] pageBreakFallback;
+	private int pageBreakMatched = 0;
+
+	/** Text that hasn't been wrapped yet. This always starts at the beginning of a line. */
+	private final StringBuilder pendingLine = new StringBuilder();
+	/** Wrapped text (including SPLIT_CHARs) for the page that's currently being built */
+	private final StringBuilder currentPage = new StringBuilder();
+	private int currentPageLines = 0;
+	private int currentPageChars = 0;
+	/** Offset in the source of the first character of currentPage */
+	private int currentPageSourceStart = 0;
+	/** True if pagination could be restarted at currentPageSourceStart */
+	private boolean currentPageIsRestartPoint = true;
+
+	private final ArrayDeque<String> finishedPages = new ArrayDeque<>();
+	private final ArrayDeque<Integer> finishedPageStarts = new ArrayDeque<>();
+	private int lastPageStart = -1;
+
+
+	/**
+	 * @param _source Text to paginate. It will be read to the end, but it won't be closed.
+	 * @param _pageBreak String that forces a new page (this will be removed during conversion), or null if the
+	 *                   text has no page breaks
+	 */
+	public Paginator(Reader _source, String _pageBreak){
+		this(_source, _pageBreak, GlyphWidthTable.get());
+	}
+
+
+	/**
+	 * @param _metrics Glyph widths used for wrapping. Use a snapshot if the pages will be read off the client thread.
+	 */
+	public Paginator(Reader _source, String _pageBreak, FontMetrics _metrics){
+		this.source = _source;
+		this.metrics = _metrics;
+		this.pageBreak = (_pageBreak == null || _pageBreak.isEmpty()) ? null : _pageBreak;
+		this.pageBreakFallback = this.pageBreak == null ? null : buildFallbackTable(this.pageBreak);
+	}
+
+
+	@Override
+	public boolean hasNext(){
+		while (this.finishedPages.isEmpty() && !this.sourceFinished){
+			this.readMore();
+		}
+		return !this.finishedPages.isEmpty();
+	}
+
+
+	@Override
+	public String next(){
+		if (!this.hasNext()){
+			throw new NoSuchElementException();
+		}
+		this.lastPageStart = this.finishedPageStarts.poll();
+		return this.finishedPages.poll();
+	}
+
+
+	/**
+	 * Where the page most recently returned by next() started, as an offset into the source (counting \r\n as a
+	 * single character). Paginating the source from that offset onwards gives exactly the same pages from that one on.
+	 * @return The offset, or -1 if the page didn't start at a point where pagination can be restarted (e.g. because
+	 *         it starts part way through a line that was carried over from the previous page)
+	 */
+	public int getLastPageStart(){
+		return this.lastPageStart;
+	}
+
+
+	/**
+	 * Checks if a page has nothing on it but whitespace and formatting codes
+	 */
+	public static boolean isBlankPage(String page){
+		int len = page.length();
+		for (int i=0; i<len; i++){
+			char c = page.charAt(i);
+			if (c == ' ' || c == '\n' || c == '\r' || c == '\t'){
+				continue;
+			}
+			if (c == '\u00a7' && i < len-1 && !isLineTerminator(page.charAt(i+1))){
+				i++;
+				continue;
+			}
+			return false;
+		}
+		return true;
+	}
+
+
+	private static boolean isLineTerminator(char c){
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+
+
+	private static int[] buildFallbackTable(String pattern){
+		int[] fallback = new int[pattern.length()];
+		int k = 0;
+		for (int i=1; i<pattern.length(); i++){
+			while (k > 0 && pattern.charAt(i) != pattern.charAt(k)){
+				k = fallback[k-1];
+			}
+			if (pattern.charAt(i) == pattern.charAt(k)){
+				k++;
+			}
+			fallback[i] = k;
+		}
+		return fallback;
+	}
+
+
+	private void readMore(){
+		int count;
+		try {
+			count = this.source.read(this.readBuffer);
+		}
+		catch (IOException e){
+			throw new UncheckedIOException(e);
+		}
+		if (count < 0){
+			// Whatever was being held back as a possible page break turned out to just be text
+			if (this.pageBreakMatched > 0){
+				this.pendingLine.append(this.pageBreak, 0, this.pageBreakMatched);
+				this.pageBreakMatched = 0;
+			}
+			this.finishChunk(this.position);
+			this.sourceFinished = true;
+			return;
+		}
+		for (int i=0; i<count; i++){
+			char c = this.readBuffer[i];
+			if (c == '\r'){
+				c = '\n';
+				this.lastCharWasCR = true;
+			}
+			else if (c == '\n' && this.lastCharWasCR){
+				this.lastCharWasCR = false;
+				continue;
+			}
+			else{
+				this.lastCharWasCR = false;
+			}
+
+			if (this.pageBreak == null){
+				this.pendingLine.append(c);
+			}
+			else{
+				this.addWithPageBreakCheck(c);
+			}
+			this.position++;
+		}
+		this.wrapPendingLine(false);
+	}
+
+
+	private void addWithPageBreakCheck(char c){
+		int heldBefore = this.pageBreakMatched;
+		int matched = heldBefore;
+		while (matched > 0 && this.pageBreak.charAt(matched) != c){
+			matched = this.pageBreakFallback[matched-1];
+		}
+		if (this.pageBreak.charAt(matched) == c){
+			matched++;
+		}
+		// The held back characters are always the start of the page break string, so anything that's no
+		// longer part of a possible match can be copied straight out of it
+		int released = heldBefore + 1 - matched;
+		if (released > 0){
+			if (released > heldBefore){
+				this.pendingLine.append(this.pageBreak, 0, heldBefore).append(c);
+			}
+			else{
+				this.pendingLine.append(this.pageBreak, 0, released);
+			}
+		}
+		if (matched == this.pageBreak.length()){
+			this.pageBreakMatched = 0;
+			// The next chunk starts just after the end of the page break
+			this.finishChunk(this.position + 1);
+		}
+		else{
+			this.pageBreakMatched = matched;
+		}
+	}
+
+
+	/**
+	 * Wraps as much of pendingLine as can be wrapped without seeing any more text.
+	 * @param endOfChunk True if no more text is coming for this chunk, so the remainder should be wrapped too
+	 */
+	private void wrapPendingLine(boolean endOfChunk){
+		int len = this.pendingLine.length();
+		// Don't measure half of a surrogate pair - the other half might be in the next read
+		if (!endOfChunk && len > 0 && Character.isHighSurrogate(this.pendingLine.charAt(len-1))){
+			len--;
+		}
+		String text = this.pendingLine.substring(0, len);
+		int lineStart = 0;
+		for (int lineEnd : BookUtilities.findLineBreaks(text, BookUtilities.BOOK_TEXT_WIDTH, this.metrics)){
+			this.addWrappedLine(text, lineStart, lineEnd);
+			this.addWrappedChar(BookUtilities.SPLIT_CHAR);
+			lineStart = lineEnd;
+		}
+		if (endOfChunk){
+			this.addWrappedLine(text, lineStart, len);
+			this.pendingLine.setLength(0);
+		}
+		else{
+			// The last line might still get longer
+			this.pendingLine.delete(0, lineStart);
+		}
+	}
+
+
+	private void addWrappedLine(String text, int start, int end){
+		for (int i=start; i<end; i++){
+			this.addWrappedChar(text.charAt(i));
+		}
+	}
+
+
+	private void addWrappedChar(char c){
+		this.currentPage.append(c);
+		if (c == BookUtilities.SPLIT_CHAR){
+			this.currentPageLines++;
+		}
+		else{
+			this.currentPageChars++;
+		}
+
+		if (this.currentPageLines == MAX_LINES_PER_PAGE){
+			//we can throw away this line break
+			this.finishPage(this.currentPage.length()-1);
+			// The next page starts at the beginning of a line
+			this.startPage(true);
+		}
+		else if (this.currentPageChars == MAX_CHARS_PER_PAGE){
+			//go back and find the last instance of a space or newline
+			int breakPos = this.currentPage.length()-1;
+			while (breakPos >= 0){
+				char b = this.currentPage.charAt(breakPos);
+				if (b == '\n' || b == ' ' || b == BookUtilities.SPLIT_CHAR){
+					break;
+				}
+				breakPos--;
+			}
+			if (breakPos < 0){
+				// No sensible place to break, so just cut it here
+				this.finishPage(this.currentPage.length());
+				this.startPage(false);
+				return;
+			}
+			String carriedOver = this.currentPage.substring(breakPos+1);
+			boolean brokeAtLineEnd = this.currentPage.charAt(breakPos) == BookUtilities.SPLIT_CHAR;
+			this.finishPage(breakPos);
+			// The carried over text is the last thing on this page, so the next page starts that far back.
+			// Only a line break leaves it starting at the beginning of a line.
+			this.startPage(brokeAtLineEnd);
+			this.currentPageSourceStart -= carriedOver.length();
+			for (int i=0; i<carriedOver.length(); i++){
+				this.addWrappedChar(carriedOver.charAt(i));
+			}
+		}
+	}
+
+
+	/**
+	 * Adds everything in currentPage before pageEnd as a finished page, then starts a new one.
+	 * The character at pageEnd (if any) is the line break or space that the page was broken on, which is dropped.
+	 */
+	private void finishPage(int pageEnd){
+		StringBuilder page = new StringBuilder(pageEnd);
+		for (int i=0; i<pageEnd; i++){
+			char c = this.currentPage.charAt(i);
+			if (c != BookUtilities.SPLIT_CHAR){
+				page.append(c);
+			}
+		}
+		this.addPage(page.toString());
+	}
+
+
+	/**
+	 * Clears currentPage for a new page that starts immediately after everything on the old one
+	 */
+	private void startPage(boolean isRestartPoint){
+		this.currentPageSourceStart += this.currentPageChars;
+		this.currentPageIsRestartPoint = isRestartPoint;
+		this.currentPage.setLength(0);
+		this.currentPageLines = 0;
+		this.currentPageChars = 0;
+	}
+
+
+	private void addPage(String page){
+		if (this.pageBreak != null && isBlankPage(page)){
+			return;
+		}
+		this.finishedPages.add(page);
+		this.finishedPageStarts.add(this.currentPageIsRestartPoint ? this.currentPageSourceStart : -1);
+	}
+
+
+	/**
+	 * Called at a page break or at the end of the text
+	 * @param nextChunkStart Offset in the source where the text after the page break starts
+	 */
+	private void finishChunk(int nextChunkStart){
+		this.wrapPendingLine(true);
+		//add the last little bit of the text as a page
+		if (this.currentPage.length() > 1){
+			this.finishPage(this.currentPage.length());
+		}
+		this.startPage(true);
+		this.currentPageSourceStart = nextChunkStart;
+	}
+}
@@ -19,10 +19,35 @@ public class Printer{
 	public static final TextFormatting AQUA = TextFormatting.AQUA;
 	public static final TextFormatting RED = TextFormatting.RED;
 	
+	/**
+	 * Only logs what would have been printed in chat (at debug level), for background work the user didn't ask for
+	 * directly, like indexing the library
+	 */
+	public static final Printer LOG_ONLY = new Printer(false);
+	
+	private final boolean toChat;
+	
 	public Printer(){
+		this(true);
+	}
+	
+	private Printer(boolean _toChat){
+		this.toChat = _toChat;
 	}
 	
+	/**
+	 * This can be called from any thread. Messages from other threads (e.g. background loading) are passed on to the
+	 * client thread to be printed.
+	 */
 	public void gamePrint(String inStr){
+		if (!this.toChat){
+			LOG.debug(inStr);
+			return;
+		}
+		if (!MC.isOnExecutionThread()){
+			MC.execute(() -> this.gamePrint(inStr));
+			return;
+		}
 		MC.ingameGUI.getChatGUI().printChatMessage(new StringTextComponent(inStr));
 	}
 	
@@ -0,0 +1,780 @@
+package wafflestomper.ghostwriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * A full-text index of the books in the SavedBooks folder (and its subfolders), so they can be searched without
+ * loading any of them.
+ *
+ * Page text has its formatting codes stripped and is split into lowercase words. Each word maps to a posting list of
+ * the pages it's on, stored as varints: for each book, the gap from the previous book's ID and the number of pages,
+ * then for each page the gap from the previous page and how many times the word appears on it.
+ *
+ * Books are only ever appended, so a book that changes is given a new ID and its old one is marked as deleted.
+ * Deleted books are skipped when searching, and the lists are rewritten without them once there are enough of them
+ * to be worth it. Everything is built and saved on a background thread. Searches can be run from any thread.
+ */
+public class SearchIndex {
+	private static final Logger LOG = LogManager.getLogger();
+	private static final int MAGIC = 0x47575349; // GWSI
+	private static final int VERSION = 1;
+	/** Longer words are cut down to this, so one long run of letters can't bloat the index */
+	private static final int MAX_TERM_LENGTH = 32;
+	/** The index is only saved once it's stopped changing for this long, so a refresh doesn't save after every book */
+	private static final long SAVE_DELAY_MILLIS = 2000;
+	private static final int PAGE_TERMS_CACHE_SIZE = 1024;
+	private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Ghostwriter search indexer");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	});
+	private static SearchIndex instance;
+
+	private final File root;
+	private final String rootPrefix;
+	private final File indexFile;
+	/** Searches take the read lock. The indexer thread takes the write lock while it changes anything. */
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	/** Indexed by book ID. Deleted books are null. */
+	private final List<Book> books = new ArrayList<>();
+	/** Keyed by path relative to the root, with / as the separator */
+	private final Map<String, Book> booksByPath = new HashMap<>();
+	/** Sorted, so a word that's still being typed can be matched as a prefix */
+	private final TreeMap<String, PostingList> terms = new TreeMap<>();
+	private int deletedBooks = 0;
+	private int livePages = 0;
+	/** Goes up every time the index changes, so the browser knows when to search again */
+	private final AtomicInteger version = new AtomicInteger();
+	/** Only used on the indexer thread */
+	private boolean loaded = false;
+	private ScheduledFuture<?> pendingSave;
+	/** The words on recently indexed pages from the page store, keyed by page hash. Only used on the indexer thread. */
+	private final Map<ContentHash, Map<String, Integer>> pageTerms = new LinkedHashMap<ContentHash, Map<String, Integer>>(256, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ContentHash, Map<String, Integer>> eldest){
+			return this.size() > PAGE_TERMS_CACHE_SIZE;
+		}
+	};
+
+
+	private static class Book {
+		private final int id;
+		private final String path;
+		private final long size;
+		private final long lastModified;
+		private final String title;
+		private final int pageCount;
+
+
+		private Book(int _id, String _path, long _size, long _lastModified, String _title, int _pageCount){
+			this.id = _id;
+			this.path = _path;
+			this.size = _size;
+			this.lastModified = _lastModified;
+			this.title = _title;
+			this.pageCount = _pageCount;
+		}
+	}
+
+
+	/**
+	 * A page that matched a search
+	 */
+	public static class Hit {
+		public final File file;
+		public final String title;
+		/** Counting from 0 */
+		public final int page;
+		public final double score;
+
+
+		private Hit(File _file, String _title, int _page, double _score){
+			this.file = _file;
+			this.title = _title;
+			this.page = _page;
+			this.score = _score;
+		}
+	}
+
+
+	/**
+	 * The pages one word is on, in book ID order
+	 */
+	private static class PostingList {
+		private byte[] data;
+		private int length = 0;
+		private int lastBook = 0;
+		/** How many pages the word is on, including ones in deleted books */
+		private int pageCount = 0;
+
+
+		private PostingList(int capacity){
+			this.data = new byte[Math.max(capacity, 8)];
+		}
+
+
+		private void writeVarInt(int value){
+			if (this.length + 5 > this.data.length){
+				this.data = Arrays.copyOf(this.data, Math.max(this.data.length * 2, this.length + 5));
+			}
+			while ((value & ~0x7F) != 0){
+				this.data[this.length++] = (byte)((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.data[this.length++] = (byte)value;
+		}
+
+
+		/**
+		 * Adds the pages of a book, which has to have a higher ID than any book already in the list
+		 * @param pages Page numbers and counts, one after the other, in page order
+		 */
+		private void add(int book, int[] pages, int pageValues){
+			this.writeVarInt(book - this.lastBook);
+			this.writeVarInt(pageValues / 2);
+			int lastPage = 0;
+			for (int i=0; i<pageValues; i+=2){
+				this.writeVarInt(pages[i] - lastPage);
+				this.writeVarInt(pages[i+1]);
+				lastPage = pages[i];
+			}
+			this.lastBook = book;
+			this.pageCount += pageValues / 2;
+		}
+
+
+		private Reader reader(){
+			return new Reader(this);
+		}
+	}
+
+
+	/**
+	 * Walks through a posting list a page at a time
+	 */
+	private static class Reader {
+		private final byte[] data;
+		private final int length;
+		private int position = 0;
+		private int book = 0;
+		private int pagesLeftInBook = 0;
+		private int page;
+		private int count;
+
+
+		private Reader(PostingList list){
+			this.data = list.data;
+			this.length = list.length;
+		}
+
+
+		private int readVarInt(){
+			int value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = this.data[this.position++];
+				value |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			return value;
+		}
+
+
+		/**
+		 * @return False at the end of the list
+		 */
+		private boolean next(){
+			if (this.pagesLeftInBook == 0){
+				if (this.position >= this.length){
+					return false;
+				}
+				this.book += this.readVarInt();
+				this.pagesLeftInBook = this.readVarInt();
+				this.page = 0;
+			}
+			this.page += this.readVarInt();
+			this.count = this.readVarInt();
+			this.pagesLeftInBook--;
+			return true;
+		}
+	}
+
+
+	private SearchIndex(File _root, File _indexFile){
+		this.root = _root.getAbsoluteFile();
+		this.rootPrefix = this.root.getPath() + File.separator;
+		this.indexFile = _indexFile;
+	}
+
+
+	/**
+	 * The index for a library folder. The index file is kept in the folder above it (i.e. the Ghostwriter folder).
+	 */
+	public static synchronized SearchIndex get(File root){
+		if (instance == null || !instance.root.equals(root.getAbsoluteFile())){
+			instance = new SearchIndex(root, new File(root.getAbsoluteFile().getParentFile(), "search.index"));
+		}
+		return instance;
+	}
+
+
+	/**
+	 * Checks if a file is one that gets searched. Bookworm archives are only searched as far as their first book.
+	 */
+	public static boolean isSearchable(File file){
+		String name = file.getName();
+		return LibraryIndex.isIndexable(name) || (name.endsWith(".txt") && !BookwormIndex.isIndexFile(file));
+	}
+
+
+	public int getVersion(){
+		return this.version.get();
+	}
+
+
+	private String getKey(File file){
+		String path = file.getAbsolutePath();
+		if (!path.startsWith(this.rootPrefix)){
+			return null;
+		}
+		return path.substring(this.rootPrefix.length()).replace(File.separatorChar, '/');
+	}
+
+
+	/**
+	 * Splits text into the words that are indexed: runs of letters and digits, in lowercase, with formatting codes
+	 * taken out first so e.g. a bold word is found the same as a plain one.
+	 */
+	static void tokenize(String text, Consumer<String> out){
+		StringBuilder term = new StringBuilder();
+		for (int i=0; i<text.length(); i++){
+			char c = text.charAt(i);
+			if (c == '\u00a7'){
+				// A formatting code doesn't split a word, e.g. "he§lllo" is still "hello"
+				i++;
+				continue;
+			}
+			int codePoint = text.codePointAt(i);
+			if (Character.isLetterOrDigit(codePoint)){
+				if (term.length() < MAX_TERM_LENGTH){
+					term.appendCodePoint(codePoint);
+				}
+				i += Character.charCount(codePoint) - 1;
+			}
+			else if (term.length() > 0){
+				out.accept(term.toString().toLowerCase(Locale.ROOT));
+				term.setLength(0);
+			}
+		}
+		if (term.length() > 0){
+			out.accept(term.toString().toLowerCase(Locale.ROOT));
+		}
+	}
+
+
+	/**
+	 * Finds the pages that have every word in the query on them. The last word also matches any word it's the start
+	 * of, so results can be shown while it's being typed. Pages are ranked by how often each word appears on them,
+	 * with rarer words counting for more.
+	 * @return Up to maxHits pages, best first
+	 */
+	public List<Hit> search(String query, int maxHits){
+		List<String> words = new ArrayList<>();
+		tokenize(query, words::add);
+		if (words.isEmpty()){
+			return Collections.emptyList();
+		}
+		boolean lastIsPrefix = !query.isEmpty() && Character.isLetterOrDigit(query.codePointBefore(query.length()));
+		this.lock.readLock().lock();
+		try {
+			List<List<PostingList>> lists = new ArrayList<>();
+			for (int i=0; i<words.size(); i++){
+				String word = words.get(i);
+				List<PostingList> matches = new ArrayList<>();
+				if (i == words.size()-1 && lastIsPrefix){
+					matches.addAll(this.terms.subMap(word, word + Character.MAX_VALUE).values());
+				}
+				else if (this.terms.containsKey(word)){
+					matches.add(this.terms.get(word));
+				}
+				if (matches.isEmpty()){
+					return Collections.emptyList();
+				}
+				lists.add(matches);
+			}
+			// Start with the rarest word, so there are as few pages as possible to carry through the rest
+			lists.sort((a, b) -> Integer.compare(countPages(a), countPages(b)));
+			Map<Long, Double> scores = null;
+			for (List<PostingList> matches : lists){
+				// Pages that are in most books don't tell us much, so they're given less weight
+				double weight = Math.log(1 + (double)this.livePages / countPages(matches));
+				Map<Long, Double> next = new HashMap<>();
+				for (PostingList list : matches){
+					Reader reader = list.reader();
+					while (reader.next()){
+						if (this.books.get(reader.book) == null){
+							continue;
+						}
+						long key = ((long)reader.book << 32) | reader.page;
+						if (scores != null && !scores.containsKey(key)){
+							continue;
+						}
+						next.merge(key, weight * (1 + Math.log(reader.count)), Double::sum);
+					}
+				}
+				if (scores != null){
+					for (Map.Entry<Long, Double> entry : next.entrySet()){
+						entry.setValue(entry.getValue() + scores.get(entry.getKey()));
+					}
+				}
+				scores = next;
+				if (scores.isEmpty()){
+					return Collections.emptyList();
+				}
+			}
+			List<Map.Entry<Long, Double>> ranked = new ArrayList<>(scores.entrySet());
+			ranked.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+			List<Hit> hits = new ArrayList<>(Math.min(ranked.size(), maxHits));
+			for (Map.Entry<Long, Double> entry : ranked.subList(0, Math.min(ranked.size(), maxHits))){
+				Book book = this.books.get((int)(entry.getKey() >>> 32));
+				File file = new File(this.root, book.path.replace('/', File.separatorChar));
+				hits.add(new Hit(file, book.title, (int)(long)entry.getKey(), entry.getValue()));
+			}
+			return hits;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+
+	private static int countPages(List<PostingList> lists){
+		int pages = 0;
+		for (PostingList list : lists){
+			pages += list.pageCount;
+		}
+		return pages;
+	}
+
+
+	/**
+	 * Brings the index up to date in the background. Has to be called on the client thread.
+	 */
+	public void refreshAsync(){
+		FontMetrics metrics = GlyphWidthTable.get().snapshot();
+		EXECUTOR.execute(() -> {
+			try {
+				this.refresh(metrics);
+			} catch (RuntimeException e) {
+				LOG.error("Error updating the search index", e);
+			}
+		});
+	}
+
+
+	/**
+	 * Indexes one book again in the background (e.g. after it's been saved). Has to be called on the client thread.
+	 */
+	public void updateAsync(File file){
+		if (this.getKey(file) == null || !isSearchable(file)){
+			return;
+		}
+		FontMetrics metrics = GlyphWidthTable.get().snapshot();
+		EXECUTOR.execute(() -> {
+			try {
+				this.load();
+				BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				if (this.update(file, attributes, metrics)){
+					this.scheduleSave();
+				}
+			} catch (IOException | RuntimeException e) {
+				LOG.error("Error updating the search index for " + file, e);
+			}
+		});
+	}
+
+
+	private void refresh(FontMetrics metrics){
+		this.load();
+		if (!this.root.isDirectory()){
+			return;
+		}
+		Set<String> found = new HashSet<>();
+		boolean[] changed = {false};
+		try {
+			Files.walkFileTree(this.root.toPath(), new SimpleFileVisitor<Path>(){
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attributes){
+					File file = path.toFile();
+					if (attributes.isRegularFile() && isSearchable(file)){
+						found.add(SearchIndex.this.getKey(file));
+						if (SearchIndex.this.update(file, attributes, metrics)){
+							changed[0] = true;
+						}
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e){
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			LOG.error("Couldn't scan the library folder", e);
+			return;
+		}
+		List<String> removed = new ArrayList<>(this.booksByPath.keySet());
+		removed.removeAll(found);
+		if (!removed.isEmpty()){
+			this.lock.writeLock().lock();
+			try {
+				for (String path : removed){
+					this.delete(this.booksByPath.remove(path));
+				}
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+			changed[0] = true;
+			this.version.incrementAndGet();
+		}
+		if (changed[0]){
+			this.compactIfNeeded();
+			this.scheduleSave();
+		}
+	}
+
+
+	/**
+	 * Indexes the book again if it's changed since it was last indexed. Only called on the indexer thread.
+	 * @return True if the index changed
+	 */
+	private boolean update(File file, BasicFileAttributes attributes, FontMetrics metrics){
+		String key = this.getKey(file);
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+		Book old = this.booksByPath.get(key);
+		if (old != null && old.size == size && old.lastModified == modified){
+			return false;
+		}
+		Clipboard loaded = new Clipboard();
+		FileHandler fileHandler = FileHandler.quiet(loaded, this.root.getParentFile());
+		String title = "";
+		List<Map<String, Integer>> pages = new ArrayList<>();
+		if (PageStore.isManifest(file)){
+			try {
+				PageStore.Manifest manifest = PageStore.readManifest(file);
+				pages = this.countTerms(manifest, fileHandler.getPageStore());
+				title = manifest.title;
+			} catch (IOException e) {
+				LOG.warn("Couldn't read " + file, e);
+			}
+		}
+		else if (fileHandler.loadBookUncached(file, metrics)){
+			for (String page : loaded.pages){
+				pages.add(countTerms(page));
+			}
+			title = loaded.title;
+		}
+
+		// Work out the postings before taking the lock, so searches aren't held up by it
+		Map<String, int[]> postings = new HashMap<>();
+		Map<String, Integer> postingLengths = new HashMap<>();
+		for (int page=0; page<pages.size(); page++){
+			for (Map.Entry<String, Integer> count : pages.get(page).entrySet()){
+				int length = postingLengths.getOrDefault(count.getKey(), 0);
+				int[] values = postings.get(count.getKey());
+				if (values == null || values.length < length + 2){
+					values = values == null ? new int[8] : Arrays.copyOf(values, values.length * 2);
+					postings.put(count.getKey(), values);
+				}
+				values[length] = page;
+				values[length+1] = count.getValue();
+				postingLengths.put(count.getKey(), length + 2);
+			}
+		}
+
+		this.lock.writeLock().lock();
+		try {
+			this.delete(old);
+			Book book = new Book(this.books.size(), key, size, modified, title, pages.size());
+			this.books.add(book);
+			this.booksByPath.put(key, book);
+			this.livePages += book.pageCount;
+			for (Map.Entry<String, int[]> posting : postings.entrySet()){
+				int length = postingLengths.get(posting.getKey());
+				this.terms.computeIfAbsent(posting.getKey(), term -> new PostingList(length * 2)).add(book.id, posting.getValue(), length);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		this.version.incrementAndGet();
+		return true;
+	}
+
+
+	private static Map<String, Integer> countTerms(String page){
+		Map<String, Integer> counts = new HashMap<>();
+		tokenize(page, term -> counts.merge(term, 1, Integer::sum));
+		return counts;
+	}
+
+
+	/**
+	 * Counts the words on each page of a book in the page store. Pages that have been seen recently (e.g. a signature
+	 * page that's in every book) aren't read or split up again.
+	 */
+	private List<Map<String, Integer>> countTerms(PageStore.Manifest manifest, PageStore store) throws IOException {
+		Set<ContentHash> missingPages = new LinkedHashSet<>();
+		for (ContentHash page : manifest.pages){
+			if (!this.pageTerms.containsKey(page)){
+				missingPages.add(page);
+			}
+		}
+		List<ContentHash> missing = new ArrayList<>(missingPages);
+		Map<ContentHash, Map<String, Integer>> counted = new HashMap<>();
+		List<String> text = store.readPages(missing);
+		for (int i=0; i<missing.size(); i++){
+			counted.put(missing.get(i), countTerms(text.get(i)));
+		}
+		List<Map<String, Integer>> out = new ArrayList<>(manifest.pages.size());
+		for (ContentHash page : manifest.pages){
+			Map<String, Integer> counts = counted.get(page);
+			if (counts == null){
+				counts = this.pageTerms.get(page);
+			}
+			out.add(counts);
+		}
+		this.pageTerms.putAll(counted);
+		return out;
+	}
+
+
+	/**
+	 * Marks a book as deleted. Has to be called with the write lock held.
+	 */
+	private void delete(Book book){
+		if (book == null){
+			return;
+		}
+		this.books.set(book.id, null);
+		this.deletedBooks++;
+		this.livePages -= book.pageCount;
+	}
+
+
+	/**
+	 * Rewrites the posting lists without the deleted books once they're a quarter or more of all the books
+	 */
+	private void compactIfNeeded(){
+		if (this.deletedBooks == 0 || this.deletedBooks * 4 < this.books.size()){
+			return;
+		}
+		this.lock.writeLock().lock();
+		try {
+			int[] newIds = new int[this.books.size()];
+			List<Book> live = new ArrayList<>(this.books.size() - this.deletedBooks);
+			for (Book book : this.books){
+				if (book != null){
+					newIds[book.id] = live.size();
+					live.add(new Book(live.size(), book.path, book.size, book.lastModified, book.title, book.pageCount));
+				}
+			}
+			int[] pages = new int[64];
+			for (Iterator<Map.Entry<String, PostingList>> it = this.terms.entrySet().iterator(); it.hasNext(); ){
+				Map.Entry<String, PostingList> term = it.next();
+				PostingList compacted = new PostingList(term.getValue().length);
+				Reader reader = term.getValue().reader();
+				int currentBook = -1;
+				int length = 0;
+				while (reader.next()){
+					if (reader.book != currentBook){
+						if (length > 0){
+							compacted.add(newIds[currentBook], pages, length);
+						}
+						currentBook = reader.book;
+						length = 0;
+					}
+					if (this.books.get(currentBook) == null){
+						continue;
+					}
+					if (length + 2 > pages.length){
+						pages = Arrays.copyOf(pages, pages.length * 2);
+					}
+					pages[length] = reader.page;
+					pages[length+1] = reader.count;
+					length += 2;
+				}
+				if (length > 0){
+					compacted.add(newIds[currentBook], pages, length);
+				}
+				if (compacted.length == 0){
+					it.remove();
+				}
+				else{
+					term.setValue(compacted);
+				}
+			}
+			this.books.clear();
+			this.books.addAll(live);
+			this.booksByPath.clear();
+			for (Book book : live){
+				this.booksByPath.put(book.path, book);
+			}
+			this.deletedBooks = 0;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+
+	private void scheduleSave(){
+		if (this.pendingSave != null){
+			this.pendingSave.cancel(false);
+		}
+		this.pendingSave = EXECUTOR.schedule(() -> {
+			try {
+				this.compactIfNeeded();
+				this.save();
+			} catch (RuntimeException e) {
+				LOG.error("Error saving the search index", e);
+			}
+		}, SAVE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+
+	private void load(){
+		if (this.loaded){
+			return;
+		}
+		this.loaded = true;
+		if (!this.indexFile.isFile()){
+			return;
+		}
+		List<Book> readBooks = new ArrayList<>();
+		TreeMap<String, PostingList> readTerms = new TreeMap<>();
+		int deleted = 0;
+		int pages = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile), 64 * 1024))){
+			if (in.readInt() != MAGIC || in.readInt() != VERSION){
+				return;
+			}
+			int bookCount = in.readInt();
+			for (int i=0; i<bookCount; i++){
+				if (!in.readBoolean()){
+					readBooks.add(null);
+					deleted++;
+					continue;
+				}
+				Book book = new Book(i, in.readUTF(), in.readLong(), in.readLong(), in.readUTF(), in.readInt());
+				readBooks.add(book);
+				pages += book.pageCount;
+			}
+			int termCount = in.readInt();
+			for (int i=0; i<termCount; i++){
+				String term = in.readUTF();
+				PostingList list = new PostingList(0);
+				list.lastBook = in.readInt();
+				list.pageCount = in.readInt();
+				list.length = in.readInt();
+				list.data = new byte[list.length];
+				in.readFully(list.data);
+				readTerms.put(term, list);
+			}
+		} catch (EOFException e) {
+			LOG.warn("Search index is truncated, so it'll be rebuilt");
+			return;
+		} catch (IOException e) {
+			LOG.warn("Couldn't read the search index, so it'll be rebuilt", e);
+			return;
+		}
+		this.lock.writeLock().lock();
+		try {
+			this.books.addAll(readBooks);
+			for (Book book : readBooks){
+				if (book != null){
+					this.booksByPath.put(book.path, book);
+				}
+			}
+			this.terms.putAll(readTerms);
+			this.deletedBooks = deleted;
+			this.livePages = pages;
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+		this.version.incrementAndGet();
+	}
+
+
+	/**
+	 * Only called on the indexer thread, which is the only one that changes the index, so it doesn't need the lock
+	 */
+	private void save(){
+		boolean saved = FileHandler.writeFileAtomically(this.indexFile, stream -> {
+			DataOutputStream out = new DataOutputStream(stream);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.books.size());
+			for (Book book : this.books){
+				out.writeBoolean(book != null);
+				if (book != null){
+					out.writeUTF(book.path);
+					out.writeLong(book.size);
+					out.writeLong(book.lastModified);
+					out.writeUTF(book.title);
+					out.writeInt(book.pageCount);
+				}
+			}
+			out.writeInt(this.terms.size());
+			for (Map.Entry<String, PostingList> term : this.terms.entrySet()){
+				PostingList list = term.getValue();
+				out.writeUTF(term.getKey());
+				out.writeInt(list.lastBook);
+				out.writeInt(list.pageCount);
+				out.writeInt(list.length);
+				out.write(list.data, 0, list.length);
+			}
+			out.flush();
+		});
+		if (!saved){
+			LOG.warn("Couldn't save the search index");
+		}
+	}
+}
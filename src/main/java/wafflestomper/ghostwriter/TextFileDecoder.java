@@ -0,0 +1,208 @@
+package wafflestomper.ghostwriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The raw bytes of a text file, read from disk exactly once so they can be decoded as many times as it takes to
+ * find the right encoding (e.g. trying UTF-8 and then falling back to ISO-8859-15) without going back to the disk.
+ *
+ * Files are read into a buffer that's reused by the next read() on the same thread, so an instance should only be
+ * used until then. Big files get a buffer of their own, which isn't kept once they're done with, so a thread that
+ * once read a big file doesn't hold on to that much memory for good. Nothing's memory mapped, since a mapping would
+ * stop the file being replaced or deleted on Windows until it was garbage collected.
+ * A byte order mark at the start of the file is skipped, and if it's a UTF-16 one, that's the encoding that's used.
+ */
+public class TextFileDecoder {
+	/** The biggest read buffer that's kept for the next read() */
+	private static final int MAX_REUSED_BUFFER = 256 * 1024;
+	public static final Charset FALLBACK_CHARSET = Charset.forName("ISO-8859-15");
+
+	private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+	/** The whole file, including any byte order mark */
+	private final ByteBuffer contents;
+	/** The contents of the file after any byte order mark */
+	private final ByteBuffer bytes;
+	private final Charset bomCharset;
+
+
+	private TextFileDecoder(ByteBuffer _bytes){
+		this.contents = _bytes.duplicate();
+		Charset charset = null;
+		if (startsWith(_bytes, 0xEF, 0xBB, 0xBF)){
+			charset = StandardCharsets.UTF_8;
+			_bytes.position(_bytes.position() + 3);
+		}
+		else if (startsWith(_bytes, 0xFE, 0xFF)){
+			charset = StandardCharsets.UTF_16BE;
+			_bytes.position(_bytes.position() + 2);
+		}
+		else if (startsWith(_bytes, 0xFF, 0xFE)){
+			charset = StandardCharsets.UTF_16LE;
+			_bytes.position(_bytes.position() + 2);
+		}
+		this.bytes = _bytes;
+		this.bomCharset = charset;
+	}
+
+
+	private static boolean startsWith(ByteBuffer buf, int... mark){
+		if (buf.remaining() < mark.length){
+			return false;
+		}
+		for (int i=0; i<mark.length; i++){
+			if ((buf.get(buf.position() + i) & 0xFF) != mark[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * @throws java.io.FileNotFoundException If the file doesn't exist or can't be opened
+	 */
+	public static TextFileDecoder read(File path) throws IOException {
+		return read(path, true);
+	}
+
+
+	/**
+	 * Like read(), but the file gets a buffer of its own, so the instance stays valid however many other files are
+	 * read on the same thread after it
+	 * @throws java.io.FileNotFoundException If the file doesn't exist or can't be opened
+	 */
+	public static TextFileDecoder readUnshared(File path) throws IOException {
+		return read(path, false);
+	}
+
+
+	private static TextFileDecoder read(File path, boolean shared) throws IOException {
+		try (FileInputStream in = new FileInputStream(path); FileChannel channel = in.getChannel()){
+			long size = channel.size();
+			if (size >= Integer.MAX_VALUE){
+				throw new IOException("File is too big");
+			}
+			ByteBuffer buf = shared ? readBuffer.get() : null;
+			// One byte more than we need, so we can tell if the file has grown since we checked its size
+			if (buf == null || buf.capacity() <= size){
+				buf = ByteBuffer.allocate((int)size + 1);
+				if (shared && buf.capacity() <= MAX_REUSED_BUFFER){
+					readBuffer.set(buf);
+				}
+			}
+			buf.clear();
+			while (channel.read(buf) >= 0){
+				if (!buf.hasRemaining()){
+					// It's grown, so start again with a bigger buffer
+					return read(path, shared);
+				}
+			}
+			buf.flip();
+			return new TextFileDecoder(buf);
+		}
+	}
+
+
+	public boolean isEmpty(){
+		return !this.contents.hasRemaining();
+	}
+
+
+	/**
+	 * Hashes the whole file, the same as ContentHash.of(File) would, without reading it again
+	 */
+	public ContentHash hash(){
+		return ContentHash.of(this.contents.duplicate());
+	}
+
+
+	/**
+	 * The encoding given by the file's byte order mark, or null if it doesn't have one
+	 */
+	public Charset getBomCharset(){
+		return this.bomCharset;
+	}
+
+
+	/**
+	 * The encoding that should be used for this file if it was expected to be in defaultCharset
+	 */
+	public Charset getCharset(Charset defaultCharset){
+		return this.bomCharset != null ? this.bomCharset : defaultCharset;
+	}
+
+
+	private static CharsetDecoder newDecoder(Charset charset){
+		CharsetDecoder decoder = charset.newDecoder();
+		decoder.onMalformedInput(CodingErrorAction.REPORT);
+		decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+		return decoder;
+	}
+
+
+	/**
+	 * Decodes the whole file in one go
+	 * @throws CharacterCodingException If the file contains anything that isn't valid in the encoding
+	 */
+	public String decode(Charset charset) throws CharacterCodingException {
+		return newDecoder(charset).decode(this.bytes.duplicate()).toString();
+	}
+
+
+	/**
+	 * Decodes the file a bit at a time as it's read. The reader throws a CharacterCodingException if the file
+	 * contains anything that isn't valid in the encoding. It doesn't need to be closed.
+	 */
+	public Reader openReader(Charset charset){
+		return new InputStreamReader(new ByteBufferInputStream(this.bytes.duplicate()), newDecoder(charset));
+	}
+
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+
+
+		private ByteBufferInputStream(ByteBuffer _buf){
+			this.buf = _buf;
+		}
+
+
+		@Override
+		public int read(){
+			return this.buf.hasRemaining() ? this.buf.get() & 0xFF : -1;
+		}
+
+
+		@Override
+		public int read(byte[] b, int off, int len){
+			if (len == 0){
+				return 0;
+			}
+			if (!this.buf.hasRemaining()){
+				return -1;
+			}
+			int count = Math.min(len, this.buf.remaining());
+			this.buf.get(b, off, count);
+			return count;
+		}
+
+
+		@Override
+		public int available(){
+			return this.buf.remaining();
+		}
+	}
+}
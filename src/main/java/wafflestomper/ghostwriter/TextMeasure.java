@@ -0,0 +1,179 @@
+package wafflestomper.ghostwriter;
+
+import java.util.Arrays;
+
+/**
+ * Pixel widths for every prefix of a string, so questions like "how much of this fits in 200 pixels?" can be
+ * answered with a binary search instead of re-measuring the string one character at a time.
+ * Building one is linear in the length of the string, and each query after that is O(log n).
+ *
+ * Formatting codes are zero width and bold text is measured as bold, the same as FontMetrics.getStringWidth().
+ * Widths are always measured in the context of the whole string, so a piece cut from the right side of bold text
+ * is measured as bold even though the substring itself no longer contains the formatting code.
+ */
+public class TextMeasure {
+	private final String text;
+	private final FontMetrics widths;
+	/** prefixWidths[i] is the width in pixels of the first i chars of the text */
+	private final int[] prefixWidths;
+
+
+	public TextMeasure(String _text){
+		this(_text, GlyphWidthTable.get());
+	}
+
+
+	public TextMeasure(String _text, FontMetrics _widths){
+		this.text = _text;
+		this.widths = _widths;
+		this.prefixWidths = new int[_text.length()+1];
+
+		// Formatting codes are the gaps between runs, so they keep the width from before them
+		FormatRuns runs = new FormatRuns(_text);
+		int width = 0;
+		int measuredTo = 0;
+		for (int run=0; run<runs.getRunCount(); run++){
+			int start = runs.getRunStart(run);
+			int end = runs.getRunEnd(run);
+			Arrays.fill(this.prefixWidths, measuredTo+1, start+1, width);
+			boolean bold = FormatRuns.isBold(runs.getRunStyle(run));
+			for (int i=start; i<end; i++){
+				char c = _text.charAt(i);
+				if (Character.isHighSurrogate(c) && i < end-1 && Character.isLowSurrogate(_text.charAt(i+1))){
+					// The whole pair is measured together, and only counted once it's complete
+					this.prefixWidths[++i] = width;
+					width += _widths.getWidth(Character.toCodePoint(c, _text.charAt(i)), bold);
+				}
+				else{
+					width += _widths.getWidth(c, bold);
+				}
+				this.prefixWidths[i+1] = width;
+			}
+			measuredTo = end;
+		}
+		Arrays.fill(this.prefixWidths, measuredTo+1, _text.length()+1, width);
+	}
+
+
+	public String getText(){
+		return this.text;
+	}
+
+
+	/**
+	 * Checks if the widths weren't measured with the font that's currently active (e.g. after a resource pack change)
+	 */
+	public boolean isStale(){
+		return this.widths != GlyphWidthTable.get();
+	}
+
+
+	public int getWidth(){
+		return this.prefixWidths[this.text.length()];
+	}
+
+
+	/**
+	 * Width in pixels of the chars between start (inclusive) and end (exclusive)
+	 */
+	public int getWidth(int start, int end){
+		return this.prefixWidths[end] - this.prefixWidths[start];
+	}
+
+
+	/**
+	 * @return The number of chars from the start of the text that fit in maxWidth pixels
+	 */
+	public int fitFromLeft(int maxWidth){
+		// Find the longest prefix that fits. prefixWidths never decreases, so a binary search works
+		int low = 0;
+		int high = this.text.length();
+		while (low < high){
+			int mid = (low + high + 1) >>> 1;
+			if (this.prefixWidths[mid] <= maxWidth){
+				low = mid;
+			}
+			else{
+				high = mid-1;
+			}
+		}
+		// Zero width chars at the end of the prefix (e.g. formatting codes) are kept, but don't cut one in half
+		while (low > 0 && !this.isBoundary(low)){
+			low--;
+		}
+		return low;
+	}
+
+
+	/**
+	 * @return The number of chars from the end of the text that fit in maxWidth pixels
+	 */
+	public int fitFromRight(int maxWidth){
+		// Find the earliest start position where the rest of the text fits
+		int total = this.getWidth();
+		int low = 0;
+		int high = this.text.length();
+		while (low < high){
+			int mid = (low + high) >>> 1;
+			if (total - this.prefixWidths[mid] <= maxWidth){
+				high = mid;
+			}
+			else{
+				low = mid+1;
+			}
+		}
+		while (low < this.text.length() && !this.isBoundary(low)){
+			low++;
+		}
+		return this.text.length() - low;
+	}
+
+
+	/**
+	 * Checks that splitting the text at pos won't separate a surrogate pair or a formatting code
+	 */
+	private boolean isBoundary(int pos){
+		if (pos <= 0 || pos >= this.text.length()){
+			return true;
+		}
+		char before = this.text.charAt(pos-1);
+		if (Character.isHighSurrogate(before) && Character.isLowSurrogate(this.text.charAt(pos))){
+			return false;
+		}
+		if (before != '\u00a7'){
+			return true;
+		}
+		// Make sure that the section sign isn't itself the code of an earlier formatting code
+		int signs = 0;
+		for (int i=pos-1; i>=0 && this.text.charAt(i) == '\u00a7'; i--){
+			signs++;
+		}
+		return signs % 2 == 0;
+	}
+
+
+	/**
+	 * The longest prefix of the text that fits in maxWidth pixels
+	 */
+	public String trimToWidth(int maxWidth){
+		return this.text.substring(0, this.fitFromLeft(maxWidth));
+	}
+
+
+	/**
+	 * Returns the text as-is if it fits in maxWidth pixels. Otherwise it's cut down (from the right if keepRightSide
+	 * is false, from the left if it's true) and substituteChars is added to show where the text was cut.
+	 */
+	public String truncate(String substituteChars, int maxWidth, boolean keepRightSide){
+		if (this.getWidth() <= maxWidth){
+			return this.text;
+		}
+		int available = maxWidth - this.widths.getStringWidth(substituteChars);
+		if (keepRightSide){
+			return substituteChars + this.text.substring(this.text.length() - this.fitFromRight(available));
+		}
+		else{
+			return this.text.substring(0, this.fitFromLeft(available)) + substituteChars;
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package wafflestomper.ghostwriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that books load the same way they did before the loaders were rewritten to stream
+ */
+public class FileHandlerTest {
+	private static final String PLAIN_TEXT_PAGE_BREAK = ">>>><<<<>>>><<<<";
+	private static final String[] PIECES = {
+			"a", "Lorem", "ipsum", " ", " ", "\n", "\r\n", "\r", "\n\n", "\u00a7l", "\u00a7r", PLAIN_TEXT_PAGE_BREAK,
+			"##", ">>>>", "/* comment */", "// comment", "title:", "author:", "caf\u00e9"
+	};
+	private static final String[] GHB_PIECES = {
+			"a", "Lorem", "ipsum", " ", " ", "\t", "\n", "\r\n", "\r", "\n\n", "\u00a7l", "##", ">>>>", "// comment",
+			"title:", "author:", "caf\u00e9"
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	private File write(String name, String text) throws IOException {
+		File file = new File(this.folder.getRoot(), name);
+		Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+
+	/**
+	 * The old loadPlainText(), which read the file a line at a time and added a \n to the end of each line
+	 */
+	private static List<String> legacyPlainText(File file) throws IOException {
+		StringBuilder concat = new StringBuilder();
+		for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)){
+			concat.append(line).append("\n");
+		}
+		return LegacyBookUtilities.stringWithPageBreaksToPages(concat.toString(), PLAIN_TEXT_PAGE_BREAK, DefaultFontMetrics.INSTANCE);
+	}
+
+
+	private List<String> loadPlainText(File file){
+		Clipboard book = new Clipboard();
+		assertTrue(new FileHandler(book, this.folder.getRoot()).loadPlainText(file, DefaultFontMetrics.INSTANCE));
+		return book.pages;
+	}
+
+
+	@Test
+	public void singleCharacterPlainText() throws IOException {
+		assertEquals(Collections.singletonList("a\n"), this.loadPlainText(this.write("a.txt", "a")));
+		assertEquals(Arrays.asList("First\n", "a\n"), this.loadPlainText(this.write("b.txt", "First\n" + PLAIN_TEXT_PAGE_BREAK + "a")));
+	}
+
+
+	@Test
+	public void plainTextMatchesLineByLineLoading() throws Exception {
+		RandomText.forEachSeed(300, (seed, random) -> {
+			String text = RandomText.join(random, PIECES, 1 + random.nextInt(random.nextBoolean() ? 10 : 400));
+			// The old version cut the last character off a file that started with a page break, see leadingPageBreak()
+			if (!text.startsWith(PLAIN_TEXT_PAGE_BREAK)){
+				File file = this.write("random.txt", text);
+				assertEquals("seed " + seed, legacyPlainText(file), this.loadPlainText(file));
+			}
+		});
+	}
+
+
+	/**
+	 * The old stringWithPageBreaksToPages() removed a page break at the start of the text along with the text's last
+	 * character
+	 */
+	@Test
+	public void leadingPageBreak() throws IOException {
+		File file = this.write("a.txt", PLAIN_TEXT_PAGE_BREAK + "First\n" + PLAIN_TEXT_PAGE_BREAK + "Second");
+		assertEquals(Arrays.asList("First\n", "Second"), legacyPlainText(file));
+		assertEquals(Arrays.asList("First\n", "Second\n"), this.loadPlainText(file));
+	}
+
+
+	/**
+	 * AutoReload reads a file once, then hashes and loads the same bytes
+	 */
+	@Test
+	public void loadFromContentsAlreadyRead() throws IOException {
+		for (String name : new String[]{"book.ghb", "book.txt"}){
+			File file = this.write(name, "title: Title\nauthor: Author\nSome text##more text>>>>" + PLAIN_TEXT_PAGE_BREAK + "\r\nnext");
+			TextFileDecoder contents = TextFileDecoder.readUnshared(file);
+			assertEquals(ContentHash.of(file), contents.hash());
+			Clipboard expected = new Clipboard();
+			assertTrue(new FileHandler(expected, this.folder.getRoot()).loadBook(file, DefaultFontMetrics.INSTANCE));
+			Clipboard book = new Clipboard();
+			assertTrue(new FileHandler(book, this.folder.getRoot()).loadBook(file, contents, DefaultFontMetrics.INSTANCE));
+			assertEquals(name, expected.title, book.title);
+			assertEquals(name, expected.author, book.author);
+			assertEquals(name, expected.pages, book.pages);
+		}
+	}
+
+
+	/**
+	 * A bug in the code writing a file is reported as a failed write, and leaves no temp file behind
+	 */
+	@Test
+	public void failedWriteLeavesOriginal() throws IOException {
+		File file = this.write("book.ghb", "original");
+		assertFalse(FileHandler.writeFileAtomically(file, out -> {
+			out.write(1);
+			throw new IllegalStateException("Broken writer");
+		}));
+		assertEquals("original", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		assertEquals(Collections.singletonList("book.ghb"), Arrays.asList(this.folder.getRoot().list()));
+	}
+	
+	
+	/**
+	 * GHB files used to be split into lines and joined back together with \n before they were cleaned up, so any line
+	 * ending has to load the way it did then. Block comments aren't used here, since the old regexes treated some of
+	 * them differently on purpose (see GhbTokenizerTest).
+	 */
+	@Test
+	public void ghbMatchesOldLoading() throws Exception {
+		RandomText.forEachSeed(300, (seed, random) -> {
+			String text = RandomText.join(random, GHB_PIECES, 1 + random.nextInt(100));
+			File file = this.write("random.ghb", text);
+			String[] legacy = LegacyGhb.load(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+			// As with plain text, the old version cut the last character off a body that started with a page break
+			if (legacy[2].startsWith(GhbTokenizer.PAGE_BREAK)){
+				return;
+			}
+			Clipboard book = new Clipboard();
+			assertTrue(new FileHandler(book, this.folder.getRoot()).loadBookFromGHBFile(file, DefaultFontMetrics.INSTANCE));
+			String context = "seed " + seed + ": " + text;
+			assertEquals(context, legacy[0], book.title);
+			assertEquals(context, legacy[1], book.author);
+			assertEquals(context, LegacyBookUtilities.stringWithPageBreaksToPages(legacy[2], GhbTokenizer.PAGE_BREAK,
+					DefaultFontMetrics.INSTANCE), book.pages);
+		});
+	}
+}
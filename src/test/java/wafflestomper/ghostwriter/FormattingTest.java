@@ -0,0 +1,86 @@
+package wafflestomper.ghostwriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that formatting codes only change how text is measured, and never what ends up on the pages
+ */
+public class FormattingTest {
+	private static final FontMetrics METRICS = DefaultFontMetrics.INSTANCE;
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	
+	private static String repeat(String str, int count){
+		StringBuilder out = new StringBuilder();
+		for (int i=0; i<count; i++){
+			out.append(str);
+		}
+		return out.toString();
+	}
+	
+	
+	/**
+	 * Every page in the game starts out unformatted, and pages are never given the previous page's codes
+	 */
+	@Test
+	public void formattingDoesNotCarryOntoTheNextPage(){
+		String text = "\u00a7l\u00a7c" + repeat("bold red words ", 60);
+		List<String> pages = BookUtilities.stringToPages(text, METRICS);
+		assertTrue(pages.size() > 1);
+		StringBuilder joined = new StringBuilder();
+		for (String page : pages){
+			joined.append(page);
+		}
+		assertTrue(pages.get(0).startsWith("\u00a7l\u00a7c"));
+		for (int i=1; i<pages.size(); i++){
+			assertTrue("page " + i, !pages.get(i).startsWith("\u00a7"));
+		}
+		// Only the spaces and line breaks that pages were broken on are missing
+		assertEquals(text.replace(" ", "").replace("\n", ""), joined.toString().replace(" ", "").replace("\n", ""));
+	}
+	
+	
+	/**
+	 * sizeStringToWidth() has always measured each wrapped line as if it starts out not bold
+	 */
+	@Test
+	public void boldStopsAtTheEndOfAWrappedLine(){
+		String words = repeat("wide words ", 20);
+		List<String> lines = BookUtilities.splitStringIntoLines("\u00a7l" + words, METRICS);
+		assertTrue(lines.size() > 2);
+		String rest = words.substring(lines.get(0).length() - 2);
+		assertEquals(BookUtilities.splitStringIntoLines(rest, METRICS), lines.subList(1, lines.size()));
+	}
+	
+	
+	@Test
+	public void formattedPagesSurviveSaving() throws IOException {
+		List<String> pages = Arrays.asList("\u00a7lBold start", "Plain page", "\u00a7cRed\u00a7o", "After red", "\u00a7rReset");
+		StringWriter out = new StringWriter();
+		FileHandler.writeGHB(out, "now", "Title", "Author", pages, METRICS);
+		File file = new File(this.folder.getRoot(), "formatted.ghb");
+		Files.write(file.toPath(), out.toString().getBytes(StandardCharsets.UTF_8));
+		Clipboard book = new Clipboard();
+		assertTrue(new FileHandler(book, this.folder.getRoot()).loadBookFromGHBFile(file, METRICS));
+		// Every line is written with a line break after it, so each page comes back with one on the end
+		for (int i=0; i<pages.size(); i++){
+			assertEquals(pages.get(i) + "\n", book.pages.get(i));
+		}
+		assertEquals(pages.size(), book.pages.size());
+	}
+}
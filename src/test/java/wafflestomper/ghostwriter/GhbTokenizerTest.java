@@ -0,0 +1,178 @@
+package wafflestomper.ghostwriter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks GhbTokenizer against the regular expressions GHB files used to be cleaned with, on random well-formed files,
+ * and pins down the cases where it deliberately does something different
+ */
+public class GhbTokenizerTest {
+	private static final String[] BODY_PIECES = {
+			"Lorem", "ipsum", "a", "#", "##", "###", ">", ">>", ">>>>", " ", " ", "  ", "\t", ".", "title"
+	};
+	private static final String[] BODY_AND_COMMENT_PIECES = {
+			"Lorem", "ipsum", "a", "#", "##", "###", ">", ">>", ">>>>", " ", " ", "  ", "\t", ".", "title",
+			" /* comment */ ", " /**/ ", " /* has ## and >>>> in it */ "
+	};
+	private static final String[] VALUE_PIECES = {"The", "Book", "a", " ", "  ", "#", "##", ">>>>", "\t"};
+
+
+	/**
+	 * A random file that both versions should read the same way. Each header appears at most once and never inside or
+	 * alongside a block comment, and if there are any block comments, the body starts with one (otherwise the old
+	 * version erased everything in front of the first one, see textBeforeFirstCommentIsKept()). Block comments are
+	 * never followed directly by a slash (see commentEndFollowedBySlash()).
+	 */
+	private static List<String> randomFile(Random random){
+		List<String> lines = new ArrayList<>();
+		boolean comments = random.nextBoolean();
+		String[] bodyPieces = comments ? BODY_AND_COMMENT_PIECES : BODY_PIECES;
+		boolean inComment = false;
+		boolean bodyStarted = false;
+		List<String> headers = new ArrayList<>();
+		headers.add(random.nextBoolean() ? "title:" : "Title:");
+		headers.add(random.nextBoolean() ? "author:" : "AUTHOR:");
+		int count = random.nextInt(30);
+		for (int i=0; i<count; i++){
+			StringBuilder line = new StringBuilder();
+			if (!inComment && !headers.isEmpty() && random.nextInt(6) == 0){
+				line.append(headers.remove(random.nextInt(headers.size())));
+				line.append(RandomText.join(random, VALUE_PIECES, random.nextInt(4)));
+				lines.add(line.toString());
+				continue;
+			}
+			if (inComment){
+				line.append(RandomText.join(random, VALUE_PIECES, random.nextInt(4)));
+				if (random.nextBoolean()){
+					line.append("*/ ").append(RandomText.join(random, bodyPieces, random.nextInt(4)));
+					inComment = false;
+				}
+			}
+			else{
+				if (comments && !bodyStarted){
+					line.append("/* opening comment */ ");
+				}
+				line.append(RandomText.join(random, bodyPieces, random.nextInt(8)));
+				if (random.nextInt(5) == 0){
+					line.append("// ").append(RandomText.join(random, VALUE_PIECES, random.nextInt(4)));
+				}
+				else if (comments && random.nextInt(5) == 0){
+					line.append("/* ").append(RandomText.join(random, VALUE_PIECES, random.nextInt(4)));
+					inComment = true;
+				}
+			}
+			bodyStarted = true;
+			lines.add(line.toString());
+		}
+		return lines;
+	}
+
+
+	@Test
+	public void matchesLegacyCleaning() throws Exception {
+		RandomText.forEachSeed(5000, (seed, random) -> {
+			List<String> lines = randomFile(random);
+			String[] expected = LegacyGhb.load(lines);
+			GhbTokenizer tokenizer = new GhbTokenizer(String.join("\n", lines));
+			String context = "seed " + seed + ": " + lines;
+			assertEquals(context, expected[0], tokenizer.getTitle());
+			assertEquals(context, expected[1], tokenizer.getAuthor());
+			assertEquals(context, expected[2], tokenizer.getBody());
+		});
+	}
+
+
+	@Test
+	public void lineBreaksPairUpAfterWhitespaceIsRemoved(){
+		assertEquals("\n#", new GhbTokenizer("# ##").getBody());
+		assertEquals(LegacyGhb.load(lines("# ##"))[2], new GhbTokenizer("# ##").getBody());
+	}
+
+
+	@Test
+	public void headers(){
+		String file = "TITLE:  The Book \nAuthor: Someone\nBody\ntitle: Not the title";
+		GhbTokenizer tokenizer = new GhbTokenizer(file);
+		assertEquals("The Book", tokenizer.getTitle());
+		assertEquals("Someone", tokenizer.getAuthor());
+		assertEquals("Bodytitle: Not the title", tokenizer.getBody());
+		assertEquals(Arrays.asList(LegacyGhb.load(lines(file))),
+				Arrays.asList(tokenizer.getTitle(), tokenizer.getAuthor(), tokenizer.getBody()));
+	}
+
+
+	@Test
+	public void whitespaceBeforeBreaksIsRemoved(){
+		String file = "a \t##b  \n>>>>c";
+		assertEquals("a\nb>>>>c", new GhbTokenizer(file).getBody());
+		assertEquals(LegacyGhb.load(lines(file))[2], new GhbTokenizer(file).getBody());
+	}
+
+
+	@Test
+	public void singleLineComments(){
+		String file = "a // comment\nb//\n// whole line\nc";
+		assertEquals("a bc", new GhbTokenizer(file).getBody());
+		assertEquals(LegacyGhb.load(lines(file))[2], new GhbTokenizer(file).getBody());
+	}
+
+
+	/**
+	 * The old version erased everything from the start of the file to a stray end of comment. Now it's just text.
+	 */
+	@Test
+	public void unclosedCommentEndAtStart(){
+		assertEquals(" too", LegacyGhb.load(lines("kept */ too"))[2]);
+		assertEquals("kept */ too", new GhbTokenizer("kept */ too").getBody());
+	}
+
+
+	/**
+	 * The old version also erased the text in front of the first comment, since the second half of its comment
+	 * pattern matched from the start of the file to the first end of comment
+	 */
+	@Test
+	public void textBeforeFirstCommentIsKept(){
+		assertEquals(" after", LegacyGhb.load(lines("before /* comment */ after"))[2]);
+		assertEquals("before  after", new GhbTokenizer("before /* comment */ after").getBody());
+	}
+
+
+	/**
+	 * The old version read headers line by line before any comments were removed, so a title: line inside a block
+	 * comment still set the title
+	 */
+	@Test
+	public void headersInsideCommentsAreIgnored(){
+		String file = "/*\ntitle: Commented out\n*/\nBody";
+		assertEquals("Commented out", LegacyGhb.load(lines(file))[0]);
+		GhbTokenizer tokenizer = new GhbTokenizer(file);
+		assertEquals("", tokenizer.getTitle());
+		assertEquals("Body", tokenizer.getBody());
+	}
+
+
+	/**
+	 * The old version removed single line comments first, so the end of a block comment followed directly by another
+	 * comment turned into the start of a single line comment, and the block comment then ran on to the next end of
+	 * comment. Now the block comment ends where it looks like it does.
+	 */
+	@Test
+	public void commentEndFollowedBySlash(){
+		String file = "/* a *//* b */kept\n/* c */more";
+		assertEquals("more", LegacyGhb.load(lines(file))[2]);
+		assertEquals("keptmore", new GhbTokenizer(file).getBody());
+	}
+
+
+	private static List<String> lines(String file){
+		return Arrays.asList(file.split("\n", -1));
+	}
+}
@@ -0,0 +1,134 @@
+package wafflestomper.ghostwriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that random books come back out of a .gwb file exactly as they went in
+ */
+public class GwbBookTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+
+	private static String randomString(Random random, int maxLength){
+		StringBuilder out = new StringBuilder();
+		int length = random.nextInt(maxLength + 1);
+		boolean repetitive = random.nextBoolean();
+		for (int i=0; i<length; i++){
+			int kind = random.nextInt(20);
+			if (repetitive){
+				// Compresses well, so the page gets deflated
+				out.append("the quick brown fox ".charAt(i % 20));
+			}
+			else if (kind == 0){
+				out.append('\u00a7');
+			}
+			else if (kind == 1){
+				out.append('\n');
+			}
+			else if (kind == 2){
+				out.append("\ud83d\ude00");
+			}
+			else if (kind == 3){
+				out.append('\0');
+			}
+			else{
+				out.append((char)(' ' + random.nextInt(0x2000)));
+			}
+		}
+		return out.toString();
+	}
+
+
+	private static void roundTrip(File file, String title, String author, List<String> pages) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)){
+			GwbBook.write(out, title, author, pages);
+		}
+		GwbBook book = GwbBook.open(file);
+		assertEquals(title, book.getTitle());
+		assertEquals(author, book.getAuthor());
+		assertEquals(pages.size(), book.getPageCount());
+		// Out of order, since pages are decoded as they're asked for
+		for (int i=pages.size()-1; i>=0; i--){
+			assertEquals("page " + i, pages.get(i), book.getPage(i));
+		}
+	}
+
+
+	@Test
+	public void randomBooks() throws Exception {
+		File file = new File(this.folder.getRoot(), "book.gwb");
+		RandomText.forEachSeed(200, (seed, random) -> {
+			List<String> pages = new ArrayList<>();
+			int count = random.nextInt(60);
+			for (int i=0; i<count; i++){
+				pages.add(randomString(random, 300));
+			}
+			roundTrip(file, randomString(random, 16), randomString(random, 16), pages);
+		});
+	}
+
+
+	@Test
+	public void emptyBook() throws IOException {
+		roundTrip(new File(this.folder.getRoot(), "empty.gwb"), "", "", new ArrayList<>());
+	}
+
+
+	@Test
+	public void unusualPages() throws IOException {
+		List<String> pages = Arrays.asList("", "\u00a7", "\ud83d\ude00", "\0\0", "\u00a7lBold\u00a7r\n");
+		roundTrip(new File(this.folder.getRoot(), "unusual.gwb"), "\u00a7cTitle", "Caf\u00e9", pages);
+	}
+
+
+	@Test(expected = IOException.class)
+	public void notAGwbFile() throws IOException {
+		File file = new File(this.folder.getRoot(), "book.gwb");
+		Files.write(file.toPath(), "title: A GHB file\n".getBytes(StandardCharsets.UTF_8));
+		GwbBook.open(file);
+	}
+
+
+	@Test
+	public void largeBook() throws IOException {
+		// A few megabytes
+		Random random = new Random(0);
+		List<String> pages = new ArrayList<>();
+		for (int i=0; i<5000; i++){
+			pages.add(randomString(random, 600));
+		}
+		roundTrip(new File(this.folder.getRoot(), "large.gwb"), "Large", "", pages);
+	}
+
+
+	@Test(expected = IOException.class)
+	public void truncatedFile() throws IOException {
+		File file = new File(this.folder.getRoot(), "truncated.gwb");
+		List<String> pages = new ArrayList<>();
+		pages.add("Lost");
+		try (OutputStream out = new FileOutputStream(file)){
+			GwbBook.write(out, "Title", "Author", pages);
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+			raf.setLength(raf.length() - 2);
+		}
+		GwbBook.open(file).getPage(0);
+	}
+}
@@ -0,0 +1,126 @@
+package wafflestomper.ghostwriter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that JsonPageDecoder decodes random page JSON exactly the way going through Gson does, whenever it doesn't
+ * hand the page back to Gson itself. BookUtilities.deJSONifyWithGson() is the old deJSONify(), unchanged.
+ */
+public class JsonPageDecoderTest {
+	private static final String[] STRING_PIECES = {
+			"a", "Lorem ipsum", " ", "\u00a7l", "\u00a7r", "caf\u00e9", "\ud83d\ude00", "\\n", "\\\"", "\\\\", "\\/", "\\t",
+			"\\u00e9", "\\u00A7", "\\r", "\\b", "\\f", "{", "}", "[", "]", ":", ",", "'", "text"
+	};
+	private static final String[] FORMATTING = {
+			"\"bold\":true", "\"italic\":false", "\"underlined\":\"true\"", "\"color\":\"dark_red\"", "\"insertion\":\"x\""
+	};
+
+
+	private static String whitespace(Random random){
+		return random.nextInt(4) == 0 ? " \n\t".substring(random.nextInt(3)) : "";
+	}
+
+
+	private static void appendString(Random random, StringBuilder out){
+		out.append('"').append(RandomText.join(random, STRING_PIECES, random.nextInt(6))).append('"');
+	}
+
+
+	private static void appendComponent(Random random, StringBuilder out, int depth){
+		out.append(whitespace(random));
+		if (random.nextInt(3) == 0){
+			appendString(random, out);
+			out.append(whitespace(random));
+			return;
+		}
+		out.append('{');
+		int fields = random.nextInt(3);
+		boolean hasExtra = depth < 2 && random.nextInt(3) == 0;
+		int textAt = random.nextInt(fields + 1);
+		for (int i=0; i<=fields; i++){
+			if (i > 0){
+				out.append(',');
+			}
+			out.append(whitespace(random));
+			if (i == textAt){
+				out.append("\"text\"").append(whitespace(random)).append(':').append(whitespace(random));
+				appendString(random, out);
+			}
+			else{
+				out.append(FORMATTING[random.nextInt(FORMATTING.length)]);
+			}
+			out.append(whitespace(random));
+		}
+		if (hasExtra){
+			out.append(",\"extra\":[");
+			int count = 1 + random.nextInt(3);
+			for (int i=0; i<count; i++){
+				if (i > 0){
+					out.append(',');
+				}
+				appendComponent(random, out, depth + 1);
+			}
+			out.append(']');
+		}
+		out.append('}').append(whitespace(random));
+	}
+
+
+	@Test
+	public void matchesGson() throws Exception {
+		int[] decoded = {0};
+		RandomText.forEachSeed(5000, (seed, random) -> {
+			StringBuilder json = new StringBuilder();
+			appendComponent(random, json, 0);
+			String page = json.toString();
+			String fast = JsonPageDecoder.decode(page);
+			if (fast != null){
+				assertEquals("seed " + seed + ": " + page, BookUtilities.deJSONifyWithGson(page), fast);
+				decoded[0]++;
+			}
+		});
+		// Nearly all of them should have been decoded without Gson, or this isn't testing much
+		assertTrue("Only " + decoded[0] + " were decoded", decoded[0] > 4500);
+	}
+
+
+	@Test
+	public void plainTextIsReturnedAsIs(){
+		assertEquals("Just some text", JsonPageDecoder.decode("Just some text"));
+		assertEquals("Just some text", BookUtilities.deJSONifyWithGson("Just some text"));
+		assertEquals("", JsonPageDecoder.decode(""));
+	}
+
+
+	@Test
+	public void extraComponentsAreJoined(){
+		String page = "{\"text\":\"a\",\"extra\":[\"b\",{\"bold\":true,\"text\":\"c\"}]}";
+		assertEquals("abc", JsonPageDecoder.decode(page));
+		assertEquals("abc", BookUtilities.deJSONifyWithGson(page));
+	}
+
+
+	@Test
+	public void escapes(){
+		String page = "\"caf\\u00e9\\n\\\"\\u00a7l\"";
+		assertEquals("caf\u00e9\n\"\u00a7l", JsonPageDecoder.decode(page));
+		assertEquals("caf\u00e9\n\"\u00a7l", BookUtilities.deJSONifyWithGson(page));
+	}
+
+
+	/**
+	 * Anything that isn't just text is left to Gson
+	 */
+	@Test
+	public void otherComponentsGoThroughGson(){
+		assertNull(JsonPageDecoder.decode("{\"translate\":\"book.pageIndicator\"}"));
+		assertNull(JsonPageDecoder.decode("{\"text\":\"a\",\"clickEvent\":{\"action\":\"open_url\",\"value\":\"x\"}}"));
+		assertNull(JsonPageDecoder.decode("{\"text\":\"unterminated"));
+	}
+}
@@ -0,0 +1,167 @@
+package wafflestomper.ghostwriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The line wrapping and pagination from BookUtilities as they were before they were rewritten, kept as a reference
+ * for the tests. The only change is that glyph widths come from a FontMetrics instead of the game's font renderer.
+ */
+final class LegacyBookUtilities {
+	private static final int BOOK_TEXT_WIDTH = 116;
+	private static final char SPLIT_CHAR = '\u1337';
+
+
+	private LegacyBookUtilities(){}
+
+
+	private static boolean isFormatColor(char par0){
+		return par0 >= 48 && par0 <= 57 || par0 >= 97 && par0 <= 102 || par0 >= 65 && par0 <= 70;
+	}
+
+
+	private static int sizeStringToWidth(String par1Str, int par2, FontMetrics metrics){
+		int j = par1Str.length();
+		int k = 0;
+		int l = 0;
+		int i1 = -1;
+
+		for (boolean flag = false; l < j; ++l){
+			char c0 = par1Str.charAt(l);
+
+			switch (c0){
+				case 10:
+					--l;
+					break;
+				case 167:
+					if (l < j - 1){
+						++l;
+						char c1 = par1Str.charAt(l);
+
+						if (c1 != 108 && c1 != 76){
+							if (c1 == 114 || c1 == 82 || isFormatColor(c1)){
+								flag = false;
+							}
+						}
+						else{
+							flag = true;
+						}
+					}
+
+					break;
+				case 32:
+					i1 = l;
+				default:
+					k += metrics.getWidth(c0, false);
+
+					if (flag){
+						++k;
+					}
+			}
+
+			if (c0 == 10){
+				++l;
+				i1 = l;
+				break;
+			}
+
+			if (k > par2){
+				break;
+			}
+		}
+
+		return l != j && i1 != -1 && i1 < l ? i1 : l;
+	}
+
+
+	private static String wrapFormattedStringToWidth(String strIn, int maxWidth, FontMetrics metrics){
+		int maxCharsInWidth = sizeStringToWidth(strIn, maxWidth, metrics);
+
+		if (strIn.length() <= maxCharsInWidth){
+			return strIn;
+		}
+		else{
+			String s1 = strIn.substring(0, maxCharsInWidth);
+			char c0 = strIn.charAt(maxCharsInWidth);
+			boolean newlineOrSpace = c0 == 32 || c0 == 10;
+			String s2 = strIn.substring(maxCharsInWidth + (newlineOrSpace ? 1 : 0));
+			if (newlineOrSpace){s1 += c0;}
+			return s1 + SPLIT_CHAR + wrapFormattedStringToWidth(s2, maxWidth, metrics);
+		}
+	}
+
+
+	static List<String> splitStringIntoLines(String str, FontMetrics metrics){
+		while (str.endsWith("\n") || str.endsWith(" ")){
+			str = str.substring(0, str.length() - 1);
+		}
+		String[] lines = str.split("\\n");
+		List<String> out = new ArrayList<>();
+		for (String line : lines){
+			out.addAll(Arrays.asList(wrapFormattedStringToWidth(line, BOOK_TEXT_WIDTH, metrics).split("" + SPLIT_CHAR)));
+		}
+		return out;
+	}
+
+
+	static List<String> stringToPages(String str, FontMetrics metrics){
+		String wrapped = wrapFormattedStringToWidth(str, BOOK_TEXT_WIDTH, metrics);
+		List<String> pages = new ArrayList<>();
+		int newLineCount = 0;
+		int charCount = 0;
+		char currChar;
+		int lastSubstringEnd = 0;
+		for (int i=0; i<wrapped.length(); i++){
+			currChar = wrapped.charAt(i);
+			if (currChar == SPLIT_CHAR){
+				newLineCount++;
+			}
+			else{
+				charCount++;
+			}
+
+			if (newLineCount == 13){
+				pages.add(wrapped.substring(lastSubstringEnd, i).replaceAll("" + SPLIT_CHAR, ""));
+				lastSubstringEnd = i+1;
+				newLineCount = 0;
+				charCount = 0;
+			}
+			else if (charCount == 256){
+				while(i>=0 && currChar != '\n' && currChar != ' ' && currChar != SPLIT_CHAR){
+					i--;
+					currChar = wrapped.charAt(i);
+				}
+				pages.add(wrapped.substring(lastSubstringEnd, i).replaceAll("" + SPLIT_CHAR, ""));
+				lastSubstringEnd = i+1;
+				newLineCount = 0;
+				charCount = 0;
+			}
+			if (i == wrapped.length()-1 && lastSubstringEnd < i){
+				pages.add(wrapped.substring(lastSubstringEnd).replaceAll("" + SPLIT_CHAR, ""));
+			}
+		}
+		return pages;
+	}
+
+
+	static List<String> stringWithPageBreaksToPages(String str, String pageBreakString, FontMetrics metrics){
+		while (str.startsWith(pageBreakString)){
+			str = str.substring(pageBreakString.length(), str.length()-1);
+		}
+		String[] pageBroken = str.split(pageBreakString);
+		List<String> out = new ArrayList<>();
+		for (String largePage : pageBroken){
+			out.addAll(stringToPages(largePage, metrics));
+		}
+
+		List<String> cleanedOut = new ArrayList<>();
+		for (String page : out){
+			if (page.replaceAll("[ \n\r\t]|(\\u00A7.)", "").length() > 0){
+				cleanedOut.add(page);
+			}
+		}
+
+		return cleanedOut;
+	}
+}
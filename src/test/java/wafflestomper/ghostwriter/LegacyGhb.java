@@ -0,0 +1,56 @@
+package wafflestomper.ghostwriter;
+
+import java.util.List;
+
+/**
+ * How GHB files were read before GhbTokenizer, kept as a reference for the tests
+ */
+final class LegacyGhb {
+	private LegacyGhb(){}
+
+
+	/**
+	 * The old cleanGHBString()
+	 */
+	static String clean(String str){
+		str = str.replaceAll("(?s)//.*?((\\n)|(\\r\\n)|(\\Z))", "\n");
+		str = str.replaceAll("(?s)((/\\*).*?((\\*/)|(\\Z)))|(((/\\*)|(\\A)).*?(\\*/))", "");
+		str = str.replaceAll("[\\t\\r\\n ]+(##|>>>>)", "$1");
+		str = str.replaceAll("[\\r\\n]", "");
+		return str;
+	}
+
+
+	/**
+	 * The old loadBookFromGHBFile(), up to the point where the body was split into pages
+	 * @return The title, author and body
+	 */
+	static String[] load(List<String> lines){
+		String title = "";
+		String author = "";
+		StringBuilder concat = new StringBuilder();
+		for (String line : lines){
+			if (line.toLowerCase().startsWith("title:") && title.isEmpty()){
+				if (line.length() >= 7){
+					title = clean(line.substring(6)).trim();
+					if (line.contains("/*")){
+						concat.append(line.substring(line.indexOf("/*"))).append("\\n");
+					}
+				}
+			}
+			else if (line.toLowerCase().startsWith("author:") && author.isEmpty()){
+				if (line.length() >= 8){
+					author = clean(line.substring(7)).trim();
+					if (line.contains("/*")){
+						concat.append(line.substring(line.indexOf("/*"))).append("\\n");
+					}
+				}
+			}
+			else{
+				concat.append(line).append("\n");
+			}
+		}
+		String body = clean(concat.toString()).replaceAll("##", "\\\n");
+		return new String[]{title, author, body};
+	}
+}
@@ -0,0 +1,122 @@
+package wafflestomper.ghostwriter;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that PaginatedText always ends up with exactly the pages that paginating the whole text from scratch gives,
+ * however the text's edited, and that those are the pages the old BookUtilities (see LegacyBookUtilities) laid out
+ */
+public class PaginatedTextTest {
+	private static final FontMetrics METRICS = DefaultFontMetrics.INSTANCE;
+
+
+	private static List<String> paginate(String text, String pageBreak){
+		text = text.replace("\r\n", "\n").replace('\r', '\n');
+		if (pageBreak == null){
+			return BookUtilities.stringToPages(text, METRICS);
+		}
+		return BookUtilities.stringWithPageBreaksToPages(text, pageBreak, METRICS);
+	}
+
+
+	private static List<String> legacyPaginate(String text, String pageBreak){
+		if (pageBreak == null){
+			return LegacyBookUtilities.stringToPages(text, METRICS);
+		}
+		return LegacyBookUtilities.stringWithPageBreaksToPages(text, pageBreak, METRICS);
+	}
+
+
+	private static void checkEdits(long seed, Random random, String pageBreak){
+		PaginatedText paginated = new PaginatedText(pageBreak, METRICS);
+		for (int edit=0; edit<60; edit++){
+			List<String> before = paginate(paginated.getText(), pageBreak);
+			int firstChanged;
+			String text = paginated.getText();
+			if (text.isEmpty() || random.nextInt(10) == 0){
+				firstChanged = paginated.setText(RandomText.join(random, RandomText.BOOK_PIECES, random.nextInt(2000)));
+			}
+			else{
+				int start = random.nextInt(text.length() + 1);
+				int end = Math.min(text.length(), start + random.nextInt(random.nextBoolean() ? 8 : 400));
+				firstChanged = paginated.replaceText(start, end,
+						RandomText.join(random, RandomText.BOOK_PIECES, random.nextInt(random.nextBoolean() ? 3 : 100)));
+			}
+			List<String> expected = paginate(paginated.getText(), pageBreak);
+			String context = "seed " + seed + ", edit " + edit;
+			assertEquals(context, expected, paginated.getPages());
+			for (int i=0; i<firstChanged && i<before.size(); i++){
+				assertEquals(context + ": page " + i + " changed but " + firstChanged + " was reported as the first change",
+						before.get(i), expected.get(i));
+			}
+			assertTrue(context, firstChanged <= expected.size());
+			// The old version cut the last character off text that started with a page break, which isn't kept
+			if (pageBreak == null || !paginated.getText().startsWith(pageBreak)){
+				assertEquals(context + " (old pagination)", legacyPaginate(paginated.getText(), pageBreak), paginated.getPages());
+			}
+		}
+	}
+
+
+	@Test
+	public void matchesStringToPages() throws Exception {
+		RandomText.forEachSeed(40, (seed, random) -> checkEdits(seed, random, null));
+	}
+
+
+	@Test
+	public void matchesStringWithPageBreaksToPages() throws Exception {
+		RandomText.forEachSeed(40, (seed, random) -> checkEdits(seed, random, ">>>>"));
+	}
+
+
+	@Test
+	public void emptyText(){
+		PaginatedText paginated = new PaginatedText(null, METRICS);
+		paginated.setText("one page");
+		paginated.setText("");
+		assertEquals(paginate("", null), paginated.getPages());
+	}
+
+
+	@Test
+	public void unchangedTextChangesNoPages(){
+		PaginatedText paginated = new PaginatedText(">>>>", METRICS);
+		paginated.setText("one>>>>two");
+		assertEquals(2, paginated.setText("one>>>>two"));
+	}
+
+
+	@Test
+	public void lineEndingsAreNormalized(){
+		PaginatedText paginated = new PaginatedText(null, METRICS);
+		paginated.setText("one\r\ntwo\rthree");
+		assertEquals("one\ntwo\nthree", paginated.getText());
+		assertEquals(paginate("one\ntwo\nthree", null), paginated.getPages());
+	}
+
+
+	/**
+	 * Adding to the end of a long book only lays out the last page or two again
+	 */
+	@Test
+	public void editNearTheEndKeepsEarlierPages(){
+		StringBuilder text = new StringBuilder();
+		for (int i=0; i<2000; i++){
+			text.append("redstone ");
+		}
+		PaginatedText paginated = new PaginatedText(null, METRICS);
+		paginated.setText(text.toString());
+		int pageCount = paginated.getPages().size();
+		assertTrue(pageCount > 50);
+		int firstChanged = paginated.replaceText(text.length(), text.length(), "more");
+		assertTrue("First change was on page " + firstChanged + " of " + pageCount, firstChanged >= pageCount - 2);
+		assertEquals(paginate(paginated.getText(), null), paginated.getPages());
+	}
+}
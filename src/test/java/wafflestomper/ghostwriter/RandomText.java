@@ -0,0 +1,48 @@
+package wafflestomper.ghostwriter;
+
+import java.util.Random;
+
+/**
+ * Builds random text out of pieces that are likely to hit edge cases, with a fixed seed per run so a failure can be
+ * reproduced from the seed in its message
+ */
+final class RandomText {
+	/**
+	 * Words of different widths, whitespace, formatting codes and the page break markers, for text going into a book
+	 */
+	static final String[] BOOK_PIECES = {
+			"the", "a", "redstone", "supercalifragilisticexpialidocious", "caf\u00e9", "WWWWWWWW", "iiiiiiii",
+			" ", " ", " ", "  ", "\n", "\n", "\n\n", "\r\n", ".", ",",
+			"\u00a7l", "\u00a7o", "\u00a7r", "\u00a7c", "\u00a7", ">>>>", ">>", "#"
+	};
+
+
+	interface SeedCheck {
+		void check(long seed, Random random) throws Exception;
+	}
+
+
+	private RandomText(){}
+
+
+	/**
+	 * Runs the check once for each seed from 0 up to (but not including) seeds
+	 */
+	static void forEachSeed(int seeds, SeedCheck check) throws Exception {
+		for (long seed=0; seed<seeds; seed++){
+			check.check(seed, new Random(seed));
+		}
+	}
+
+
+	/**
+	 * @return count pieces picked at random, joined together
+	 */
+	static String join(Random random, String[] pieces, int count){
+		StringBuilder out = new StringBuilder();
+		for (int i=0; i<count; i++){
+			out.append(pieces[random.nextInt(pieces.length)]);
+		}
+		return out.toString();
+	}
+}